@@ -50,46 +50,89 @@ public class AnnotationMessage {
 	 *
 	 */
 	public enum MessageCode {
-				
-		/*
 
+		// Hopefully we will be able to require that data is a map. If so, it will be possible to predefine the object type
+		// (even complex ones) for every element in an enum. The expected contents of data are given for each code below.
 
-		TODO: this.
-		
-		Hopefully we will be able to require that data is a map. If so, it will be possible to predefine
-		the object type (even complex ones) for every element in an enum...
-		
-		Might not be necessary to have a map... getData could just return an generic Object, the structure of which is defined below...
-		
-		
-		REFERENCED_ID_NOT_FOUND	{key: string, value: string}	The NexSON attribute with the name key refers to an ID, but the ID is not in the NexSON. We have about 3000 cases of this with @otu in nodes or @source in edge objects not matching.
-		TIP_WITHOUT_OTU	{}	refersTo object is a node that is a tip on the tree, but is not mapped to any OTU object. This is an NexSON error, not failure to map to OTT. We have about 3000 cases
-		UNRECOGNIZED_PROPERTY_VALUE	{key: string, value: string}	the meta array associated key value pair in which the key is recognized, but the value is not valid. We have about 51 cases of this in which key is "ot:branchLengthMode" and value is "ot:years" (which is deprecated, I think).
-		MISSING_OPTIONAL_KEY	string	the attribute is not found. Used to report lack of "ot:dataDeposit", "ot:focalClade", "ot:inGroupClade", "ot:ottolid", and "ot:studyPublication" fields. So we have about 32 thousand of these
-		NO_ROOT_NODE	{}	tree that is refersTo has no node flagged as the root. We have 12 cases
-		TIP_WITHOUT_OTT_ID	{}	refersTo is a node with and otu, but the otu has no OTT ID. (about 31 thousand cases)
-		MULTIPLE_TIPS_MAPPED_TO_OTT_ID	{nodes:[list of IDs]}	refersTo is a tree the nodes listed are tips in the tree that map to the same OTT ID (about 31 thousand nodes)
-		MULTIPLE_TREES	{}	trees element is refersTo and it has multiple trees with no indication of which one treemachine should prefer to use
-		UNRECOGIZED_TAG	string	value of an ot:tag meta is not understood. This is not unexpected at all (and this sort of message will probably be suppressed), but the validator does emit it currently so we can see what tags are being used.
-		UNVALIDATED_ANNOTATION	{key: string, value: string}	a object in the meta list was an unrecognized key. Not surprising (will be suppressed).
-		CONFLICTING_PROPERTY_VALUES	list of key-value pairs that conflict	Flags with conflicting meanings, for example the "delete me" and the "choose me" tags
-		NO_TREES	{}	file contains no trees that are not flagged for deletion
-		NON_MONOPHYLETIC_TIPS_MAPPED_TO_OTT_ID	list of lists of IDs. each sublist is a set of nodes that are monophyletic on the tree and for which all the tips have the same OTT ID	This code is more serious than MULTIPLE_TIPS_MAPPED_TO_OTT_ID because it indicates cases in which different arbitrary prunings could lead to different phylogenetic statements
-		Codes that can be emitted when we support POSTing of NexSON. These indicate serious problems with the NexSON (and we can probably be unfriendly about them in terms of UI, because they'll probably be encountered by developers):
-
-		code name	data contents	explanation
-		MISSING_MANDATORY_KEY	string - key name	refersTo object lacks a mandatory attribute.
-		UNRECOGNIZED_KEY	string - key name	refersTo object has an attribute that is not allowed by the NeXML schema
-		MISSING_LIST_EXPECTED	?	element (e.g. edge) that should be a list, was not
-		DUPLICATING_SINGLETON_KEY	string	the attribute specified was encountered more than one time, though it should have been found only once (e.g. a doi)
-		REPEATED_ID	string	ID found more than once
-		MULTIPLE_ROOT_NODES	{}	tree has more than one node marked as root
-		MULTIPLE_EDGES_FOR_NODES	{}	node has more than one edge to parent
-		CYCLE_DETECTED	{node : id string}	tree has a cycle (including the referenced node)
-		DISCONNECTED_GRAPH_DETECTED	{}	tree is not connected graph
-		INCORRECT_ROOT_NODE_LABEL	{}	the node labelled as the root has a parent
-		
-		*/
+		/** data {key: string, value: string}: the NexSON attribute with the name key refers to an ID, but the ID is not in the NexSON (e.g. @otu in nodes or @source in edges not matching). */
+		REFERENCED_ID_NOT_FOUND,
+
+		/** data {}: refersTo object is a node that is a tip on the tree, but is not mapped to any OTU object. This is a NexSON error, not failure to map to OTT. */
+		TIP_WITHOUT_OTU,
+
+		/** data {key: string, value: string}: a meta key is recognized, but its value is not valid. */
+		UNRECOGNIZED_PROPERTY_VALUE,
+
+		/** data {key: string, value: string}: a meta value is invalid for its key. */
+		INVALID_PROPERTY_VALUE,
+
+		/** data {key: string, value: string}: a meta value is valid, but carries no useful information. */
+		PROPERTY_VALUE_NOT_USEFUL,
+
+		/** data string: an optional attribute (e.g. "ot:dataDeposit", "ot:focalClade", "ot:inGroupClade") is not found. */
+		MISSING_OPTIONAL_KEY,
+
+		/** data {}: the tree that is refersTo has no node flagged as the root. */
+		NO_ROOT_NODE,
+
+		/** data {}: refersTo is a node with an otu, but the otu has no OTT ID. */
+		TIP_WITHOUT_OTT_ID,
+
+		/** data {nodes: [list of IDs]}: refersTo is a tree, the nodes listed are tips in the tree that map to the same OTT ID. */
+		MULTIPLE_TIPS_MAPPED_TO_OTT_ID,
+
+		/** data {}: the study has multiple trees with no indication of which one should be preferred for synthesis. */
+		MULTIPLE_TREES,
+
+		/** data string: the value of an ot:tag meta is not understood. */
+		UNRECOGNIZED_TAG,
+
+		/** data {key: string, value: string}: an object in the meta list has an unrecognized key. */
+		UNVALIDATED_ANNOTATION,
+
+		/** data: list of key-value pairs that conflict, e.g. the "delete me" and the "choose me" tags. */
+		CONFLICTING_PROPERTY_VALUES,
+
+		/** data {}: the study contains no trees that are not flagged for deletion. */
+		NO_TREES,
+
+		/** data: list of lists of IDs, each a set of nodes that are monophyletic on the tree and whose tips all have the same OTT ID. More serious than MULTIPLE_TIPS_MAPPED_TO_OTT_ID, since different arbitrary prunings could lead to different phylogenetic statements. */
+		NON_MONOPHYLETIC_TIPS_MAPPED_TO_OTT_ID,
+
+		/** data string: a deprecated property is used. */
+		DEPRECATED_PROPERTY,
+
+		// The codes below indicate serious problems with the structure of the NexSON.
+
+		/** data string (key name): refersTo object lacks a mandatory attribute. */
+		MISSING_MANDATORY_KEY,
+
+		/** data string (key name): refersTo object has an attribute that is not allowed by the NeXML schema. */
+		UNRECOGNIZED_KEY,
+
+		/** data string (key name): an element (e.g. edge) that should be a list was not. */
+		MISSING_LIST_EXPECTED,
+
+		/** data string: the attribute was encountered more than once, though it should have been found only once (e.g. a doi). */
+		DUPLICATING_SINGLETON_KEY,
+
+		/** data string: the ID was found more than once. */
+		REPEATED_ID,
+
+		/** data {nodes: [list of IDs]}: the tree has more than one node marked as root. */
+		MULTIPLE_ROOT_NODES,
+
+		/** data {node: id string}: the node has more than one edge to a parent. */
+		MULTIPLE_EDGES_FOR_NODES,
+
+		/** data {node: id string}: the tree has a cycle (including the referenced node). */
+		CYCLE_DETECTED,
+
+		/** data {roots: [list of IDs]}: the tree is not a connected graph; the listed nodes have no parent. */
+		DISCONNECTED_GRAPH_DETECTED,
+
+		/** data {}: the node labelled as the root has a parent. */
+		INCORRECT_ROOT_NODE_LABEL
 	}
 	
 	/**
@@ -185,32 +228,67 @@ public class AnnotationMessage {
 		properties.put(name, value);
 	}
 	
+	/**
+	 * Populate this message from its NexSON. Severities, codes and message types that are not recognized are kept as
+	 * properties under their NexSON keys rather than being set, and refersTo is kept as JSON text if it is an object.
+	 * @param nexson
+	 */
 	public void parseNexson(JSONObject nexson) {
 		
-		setSeverity(Severity.valueOf((String) nexson.get("severity")));
-//		setCode(MessageCode.valueOf((String) nexson.get("code")));
-		System.out.println((String) nexson.get("code"));
+		for (Object keyObj : nexson.keySet()) {
+			String key = String.valueOf(keyObj);
+			Object value = nexson.get(keyObj);
+			
+			if (key.equals("severity")) {
+				setSeverity(enumValue(Severity.class, key, value));
+				
+			} else if (key.equals("code")) {
+				setCode(enumValue(MessageCode.class, key, value));
 
-//		setHumanMessageType(HumanMessageType.valueOf((String) nexson.get("humanReadableMessageType")));
-		System.out.println((String) nexson.get("humanReadableMessageType"));
+			} else if (key.equals("humanReadableMessageType")) {
+				setHumanMessageType(enumValue(HumanMessageType.class, key, value));
 
-		if (getHumanMessageType() != HumanMessageType.NONE) {
-			setHumanDescription((String) nexson.get("humanReadableMessage"));
-		}
-	
-		setDataAnnotation((String) nexson.get("dataAnnotation"));
-//		setData((JSONObject) nexson.get("data"));
-		data = (Object) nexson.get("data");
-		if (data != null) {
-			System.out.println(data.toString());
-		}
-		
-//		setRefersTo((String) nexson.get("refersTo"));
-		System.out.println(((JSONObject) nexson.get("refersTo")).toJSONString());
+			} else if (key.equals("humanReadableMessage")) {
+				setHumanDescription(value == null ? null : String.valueOf(value));
+
+			} else if (key.equals("dataAnnotation")) {
+				setDataAnnotation(value == null ? null : String.valueOf(value));
 
-		setToBePreserved((Boolean) nexson.get("preserve"));
+			} else if (key.equals("data")) {
+				setData(value);
 
-		// TODO: set arbitrary properties. will work better if these are set in meta elements so they are straightforward to access
+			} else if (key.equals("refersTo")) {
+				if (value instanceof JSONObject) {
+					setRefersTo(((JSONObject) value).toJSONString());
+				} else {
+					setRefersTo(value == null ? null : String.valueOf(value));
+				}
+
+			} else if (key.equals("preserve")) {
+				setToBePreserved(Boolean.TRUE.equals(value));
+
+			} else {
+				addProperty(key, value);
+			}
+		}
 		
+		if (getHumanMessageType() == HumanMessageType.NONE) {
+			setHumanDescription(null);
+		}
+	}
+	
+	/**
+	 * Return the constant of the enum named by the value, or null if there is none, in which case the value is kept as a
+	 * property under the key.
+	 */
+	private <E extends Enum<E>> E enumValue(Class<E> type, String key, Object value) {
+		if (value != null) {
+			try {
+				return Enum.valueOf(type, String.valueOf(value).toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				addProperty(key, value);
+			}
+		}
+		return null;
 	}
 }
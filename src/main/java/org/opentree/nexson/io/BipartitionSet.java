@@ -0,0 +1,450 @@
+package org.opentree.nexson.io;
+
+import jade.tree.NodeOrder;
+import jade.tree.Tree;
+import jade.tree.TreeBipartition;
+import jade.tree.TreeNode;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>The bipartitions of a tree, represented as bitsets over its tips. Each tip is assigned a bit position, and the
+ * bitset of a node has the bits of all the tips descended from it set. All the bitsets are computed in a single postorder
+ * pass, by OR-ing together the bitsets of each node's children. The bitsets of internal nodes are stored contiguously in
+ * one long[] array; that of a tip is just its bit position, and is not stored.</p>
+ * <br/>
+ * <p>Each internal node's bitset takes one bit per tip, so the memory used and the time taken to build the set are
+ * proportional to the number of internal nodes times the number of tips (divided by 64). Trees for which the bitsets
+ * would not fit in a single array are rejected with an IllegalArgumentException.</p>
+ * <br/>
+ * <p>Clade tests (whether one node's tips include another's, whether two clades conflict, etc.) are then a few word-wise
+ * operations rather than comparisons of tip sets. The bitsets can also be retrieved directly, and jade TreeBipartition
+ * objects are built from them on request.</p>
+ * <br/>
+ * <p>Tips are the nodes without children. The set reflects the tree at the time it was built; it is not updated if the
+ * tree is modified afterward.</p>
+ * <br/>
+ * <p>For a CompactNexsonTree the bitsets are computed directly from the tree's index arrays and stored by node index,
+ * so no node views are created while building, and the nodes passed to the clade tests are located by their index
+ * rather than through a map.</p>
+ *
+ * @author cody
+ *
+ */
+public class BipartitionSet {
+
+	private final TreeNode root;
+	private final int words;
+
+	// each node has a row: its position in postorder for a generic tree, or its node index for a compact tree. the slot
+	// of the node in row i is slots[i]: its internal node index k if it is internal, or ~b for the tip with bit position b
+	private final int[] slots;
+	private final long[] bits; // the bitset of internal node k occupies bits[k * words, (k + 1) * words)
+	private final int[] tipRows; // the row of each tip, in order of bit position
+
+	// for a generic tree, the nodes in postorder and the row of each. null for a compact tree
+	private final TreeNode[] nodes;
+	private final Map<TreeNode, Integer> nodeIndexes;
+
+	// for a compact tree, the tree itself. null for a generic tree
+	private final CompactNexsonTree compactTree;
+
+	/**
+	 * Compute the bipartitions of the provided tree.
+	 * @param tree
+	 */
+	public BipartitionSet(Tree tree) {
+
+		this.root = tree.getRoot();
+		this.compactTree = null;
+
+		List<TreeNode> nodeList = new ArrayList<TreeNode>();
+		int tipCount = 0;
+		for (TreeNode node : new NodeTraversal(root, NodeOrder.POSTORDER, NodeTraversal.Filter.ALL)) {
+			nodeList.add(node);
+			if (node.getChildCount() == 0) {
+				tipCount++;
+			}
+		}
+		nodes = nodeList.toArray(new TreeNode[nodeList.size()]);
+		slots = new int[nodes.length];
+		tipRows = new int[tipCount];
+		words = Math.max(1, (tipCount + 63) >>> 6);
+		bits = new long[bitsLength(nodes.length - tipCount, tipCount, words)];
+
+		nodeIndexes = new HashMap<TreeNode, Integer>(nodes.length * 2);
+		int tip = 0;
+		int internal = 0;
+		for (int i = 0; i < nodes.length; i++) {
+			TreeNode node = nodes[i];
+			nodeIndexes.put(node, i);
+			int childCount = node.getChildCount();
+			if (childCount == 0) {
+				slots[i] = ~tip;
+				tipRows[tip++] = i;
+			} else {
+				// children precede their parent in postorder, so their bitsets are complete
+				slots[i] = internal;
+				int offset = internal++ * words;
+				for (int c = 0; c < childCount; c++) {
+					orInto(offset, slots[nodeIndexes.get(node.getChild(c))]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the bipartitions of the provided compact tree. This walks the tree's postorder and child index arrays
+	 * directly, without creating node views.
+	 * @param tree
+	 */
+	public BipartitionSet(CompactNexsonTree tree) {
+
+		this.root = tree.getRoot();
+		this.compactTree = tree;
+		this.nodes = null;
+		this.nodeIndexes = null;
+
+		int nodeCount = tree.getNodeCount();
+		int tipCount = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			if (tree.getFirstChildIndex(i) == -1) {
+				tipCount++;
+			}
+		}
+		slots = new int[nodeCount];
+		tipRows = new int[tipCount];
+		words = Math.max(1, (tipCount + 63) >>> 6);
+		bits = new long[bitsLength(nodeCount - tipCount, tipCount, words)];
+
+		int tip = 0;
+		int internal = 0;
+		for (int i : tree.getPostorder()) {
+			int child = tree.getFirstChildIndex(i);
+			if (child == -1) {
+				slots[i] = ~tip;
+				tipRows[tip++] = i;
+			} else {
+				// children precede their parent in postorder, so their bitsets are complete
+				slots[i] = internal;
+				int offset = internal++ * words;
+				for (; child != -1; child = tree.getNextSiblingIndex(child)) {
+					orInto(offset, slots[child]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the length of the array holding the bitsets of the internal nodes, or throw an IllegalArgumentException if
+	 * it would be too large for an array.
+	 */
+	private static int bitsLength(int internalCount, int tipCount, int words) {
+		long length = (long) internalCount * words;
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("The bipartitions of a tree with " + internalCount + " internal nodes and "
+					+ tipCount + " tips are too large to compute (" + length + " words)");
+		}
+		return (int) length;
+	}
+
+	/**
+	 * OR the bitset of the node in the provided slot into the bitset of the internal node at the offset.
+	 */
+	private void orInto(int offset, int slot) {
+		if (slot < 0) {
+			int bit = ~slot;
+			bits[offset + (bit >>> 6)] |= 1L << bit;
+		} else {
+			int childOffset = slot * words;
+			for (int w = 0; w < words; w++) {
+				bits[offset + w] |= bits[childOffset + w];
+			}
+		}
+	}
+
+	// ### getters
+
+	public int getTipCount() {
+		return tipRows.length;
+	}
+
+	/**
+	 * Return the tip assigned to the specified bit position.
+	 * @param bit
+	 * @return
+	 */
+	public TreeNode getTip(int bit) {
+		return nodeAt(tipRows[bit]);
+	}
+
+	/**
+	 * Return the number of longs in each bitset.
+	 * @return
+	 */
+	public int getWordCount() {
+		return words;
+	}
+
+	/**
+	 * Return the number of tips descended from the node (1 for a tip).
+	 * @param node
+	 * @return
+	 */
+	public int getTipCount(TreeNode node) {
+		int slot = slotOf(node);
+		if (slot < 0) {
+			return 1;
+		}
+		int offset = slot * words;
+		int count = 0;
+		for (int w = 0; w < words; w++) {
+			count += Long.bitCount(bits[offset + w]);
+		}
+		return count;
+	}
+
+	/**
+	 * Return a copy of the bitset of the node, as an array of getWordCount() longs. Bit i (bit i % 64 of word i / 64)
+	 * is set if getTip(i) is descended from the node.
+	 * @param node
+	 * @return
+	 */
+	public long[] getBits(TreeNode node) {
+		long[] copy = new long[words];
+		int slot = slotOf(node);
+		if (slot < 0) {
+			copy[~slot >>> 6] = 1L << ~slot;
+		} else {
+			System.arraycopy(bits, slot * words, copy, 0, words);
+		}
+		return copy;
+	}
+
+	/**
+	 * Return the bitset of the node as a java.util.BitSet.
+	 * @param node
+	 * @return
+	 */
+	public BitSet getBitSet(TreeNode node) {
+		return BitSet.valueOf(getBits(node));
+	}
+
+	/**
+	 * Return a bitset (in the format returned by getBits) with the bits of the provided tips set. Nodes that are not tips
+	 * of this tree are ignored.
+	 * @param tipNodes
+	 * @return
+	 */
+	public long[] bitsFor(Collection<? extends TreeNode> tipNodes) {
+		long[] result = new long[words];
+		for (TreeNode node : tipNodes) {
+			int i = rowOf(node);
+			if (i != -1 && isTipRow(i)) {
+				int bit = ~slots[i];
+				result[bit >>> 6] |= 1L << bit;
+			}
+		}
+		return result;
+	}
+
+	// ### clade tests
+
+	/**
+	 * Return true if the tip is descended from (or is) the node.
+	 * @param node
+	 * @param tip
+	 * @return
+	 */
+	public boolean contains(TreeNode node, TreeNode tip) {
+		int bit = tipBitOf(tip);
+		return (word(slotOf(node), bit >>> 6) & (1L << bit)) != 0;
+	}
+
+	/**
+	 * Return true if every tip descended from the inner node is also descended from the outer node.
+	 * @param inner
+	 * @param outer
+	 * @return
+	 */
+	public boolean isNested(TreeNode inner, TreeNode outer) {
+		int a = slotOf(inner);
+		int b = slotOf(outer);
+		for (int w = 0; w < words; w++) {
+			if ((word(a, w) & ~word(b, w)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if every tip set in the provided bitset is descended from the node.
+	 * @param node
+	 * @param tipBits a bitset in the format returned by getBits
+	 * @return
+	 */
+	public boolean containsAll(TreeNode node, long[] tipBits) {
+		int slot = slotOf(node);
+		for (int w = 0; w < words; w++) {
+			if ((tipBits[w] & ~word(slot, w)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if the clades of the two nodes overlap but neither contains the other, i.e. they cannot both be present
+	 * in the same tree.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public boolean conflicts(TreeNode a, TreeNode b) {
+		int x = slotOf(a);
+		int y = slotOf(b);
+		boolean intersect = false;
+		boolean aOnly = false;
+		boolean bOnly = false;
+		for (int w = 0; w < words; w++) {
+			long p = word(x, w);
+			long q = word(y, w);
+			intersect |= (p & q) != 0;
+			aOnly |= (p & ~q) != 0;
+			bOnly |= (q & ~p) != 0;
+		}
+		return intersect && aOnly && bOnly;
+	}
+
+	// ### jade bipartitions
+
+	/**
+	 * Return the bipartition of the tips of the tree induced by the node: the tips descended from the node form the
+	 * ingroup, and all the other tips form the outgroup.
+	 * @param node
+	 * @return
+	 */
+	public TreeBipartition getBipartition(TreeNode node) {
+		int slot = slotOf(node);
+		List<TreeNode> ingroup = new ArrayList<TreeNode>();
+		List<TreeNode> outgroup = new ArrayList<TreeNode>();
+		for (int t = 0; t < tipRows.length; t++) {
+			if ((word(slot, t >>> 6) & (1L << t)) != 0) {
+				ingroup.add(getTip(t));
+			} else {
+				outgroup.add(getTip(t));
+			}
+		}
+		return new TreeBipartition(ingroup, outgroup);
+	}
+
+	/**
+	 * Return the bipartitions induced by the internal nodes of the tree other than the root (the bipartitions of the root
+	 * and the tips are trivial), in postorder. The TreeBipartition objects are built as the iteration proceeds.
+	 * @return
+	 */
+	public Iterable<TreeBipartition> bipartitions() {
+		return new Iterable<TreeBipartition>() {
+			@Override
+			public Iterator<TreeBipartition> iterator() {
+				final int[] postorder = compactTree != null ? compactTree.getPostorder() : null;
+				final int rootRow = root != null ? rowOf(root) : -1;
+				final int rowCount = slots.length;
+				return new Iterator<TreeBipartition>() {
+
+					private int next = advance(0);
+
+					private int rowAt(int position) {
+						return postorder != null ? postorder[position] : position;
+					}
+
+					private int advance(int from) {
+						while (from < rowCount && (isTipRow(rowAt(from)) || rowAt(from) == rootRow)) {
+							from++;
+						}
+						return from;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next < rowCount;
+					}
+
+					@Override
+					public TreeBipartition next() {
+						if (next >= rowCount) {
+							throw new NoSuchElementException();
+						}
+						TreeBipartition bipartition = getBipartition(nodeAt(rowAt(next)));
+						next = advance(next + 1);
+						return bipartition;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	// ### internals
+
+	/**
+	 * Return the row of the node, or -1 if it is not part of this tree.
+	 */
+	private int rowOf(TreeNode node) {
+		if (compactTree != null) {
+			if (node instanceof CompactNexsonTree.Node && ((CompactNexsonTree.Node) node).getTree() == compactTree) {
+				return ((CompactNexsonTree.Node) node).getIndex();
+			}
+			return -1;
+		}
+		Integer i = nodeIndexes.get(node);
+		return i != null ? i : -1;
+	}
+
+	private TreeNode nodeAt(int row) {
+		return compactTree != null ? compactTree.getNode(row) : nodes[row];
+	}
+
+	private boolean isTipRow(int row) {
+		return slots[row] < 0;
+	}
+
+	private int slotOf(TreeNode node) {
+		int i = rowOf(node);
+		if (i == -1) {
+			throw new IllegalArgumentException("The node " + node + " is not part of this tree");
+		}
+		return slots[i];
+	}
+
+	/**
+	 * Return word w of the bitset of the node in the provided slot.
+	 */
+	private long word(int slot, int w) {
+		if (slot < 0) {
+			int bit = ~slot;
+			return w == bit >>> 6 ? 1L << bit : 0L;
+		}
+		return bits[slot * words + w];
+	}
+
+	private int tipBitOf(TreeNode tip) {
+		int slot = slotOf(tip);
+		if (slot >= 0) {
+			throw new IllegalArgumentException("The node " + tip + " is not a tip");
+		}
+		return ~slot;
+	}
+}
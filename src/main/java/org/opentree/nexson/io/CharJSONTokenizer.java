@@ -0,0 +1,453 @@
+package org.opentree.nexson.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A JSONTokenizer over character input, either streamed from a Reader through a fixed size buffer, or read directly
+ * from a range of a char array that already holds the document.
+ *
+ * @author cody
+ *
+ */
+public class CharJSONTokenizer extends JSONTokenizer {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int NAME_CACHE_SIZE = 512; // must be a power of two
+
+	private final Reader in;
+	private char[] buf;
+	private int pos;
+	private int limit;
+
+	/** offset of buf[0] within the overall input */
+	private long base = 0;
+
+	private long tokenOffset = 0;
+
+	// the text of the current string/number token, unescaped. only converted to a String if asked for
+	private char[] text = new char[256];
+	private int textLength = 0;
+	private String textString = null;
+	private boolean integerLiteral = false;
+
+	// true once a complete top level value has been read
+	private boolean rootDone = false;
+	// true if the previous token completed a value inside the current container
+	private boolean needComma = false;
+
+	// field names repeat constantly in NexSON, so we keep the strings we have already made for them
+	private final String[] nameCache = new String[NAME_CACHE_SIZE];
+
+	/**
+	 * Create a tokenizer that reads from the provided Reader. The reader is not wrapped in a BufferedReader, as
+	 * the tokenizer does its own buffering.
+	 * @param reader
+	 */
+	public CharJSONTokenizer(Reader reader) {
+		this.in = reader;
+		this.buf = new char[BUFFER_SIZE];
+		this.pos = 0;
+		this.limit = 0;
+	}
+
+	/**
+	 * Create a tokenizer that reads the characters from start (inclusive) to end (exclusive) of the provided array.
+	 * Offsets reported by the tokenizer are positions within this array.
+	 * @param chars
+	 * @param start
+	 * @param end
+	 */
+	public CharJSONTokenizer(char[] chars, int start, int end) {
+		this.in = null;
+		this.buf = chars;
+		this.pos = start;
+		this.limit = end;
+	}
+
+	/**
+	 * Read the remaining contents of the provided Reader into memory and return a tokenizer over them. Unlike a
+	 * tokenizer streaming from the reader, the returned tokenizer supports slicing.
+	 * @param reader
+	 * @return
+	 */
+	public static CharJSONTokenizer buffered(Reader reader) {
+		char[] chars = new char[BUFFER_SIZE];
+		int length = 0;
+		try {
+			int n;
+			while ((n = reader.read(chars, length, chars.length - length)) >= 0) {
+				length += n;
+				if (length == chars.length) {
+					char[] grown = new char[chars.length * 2];
+					System.arraycopy(chars, 0, grown, 0, length);
+					chars = grown;
+				}
+			}
+		} catch (IOException ex) {
+			throw new NexsonParseException("Could not read JSON input: " + ex.getMessage());
+		}
+		return new CharJSONTokenizer(chars, 0, length);
+	}
+
+	@Override
+	public boolean supportsSlicing() {
+		return in == null;
+	}
+
+	@Override
+	public JSONTokenizer slice(long start, long end) {
+		if (in != null) {
+			return super.slice(start, end);
+		}
+		return new CharJSONTokenizer(buf, (int) start, (int) end);
+	}
+
+	@Override
+	public byte[] copyUtf8(long start, long end) {
+		if (in != null) {
+			return super.copyUtf8(start, end);
+		}
+		return new String(buf, (int) start, (int) (end - start)).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public Token next() {
+
+		textString = null;
+		skipWhitespace();
+		tokenOffset = base + pos;
+
+		if (pos >= limit && !fill()) {
+			if (getDepth() == 0 && rootDone) {
+				return current = Token.END_DOCUMENT;
+			}
+			throw new NexsonParseException("Unexpected end of JSON input at offset " + tokenOffset);
+		}
+
+		if (getDepth() == 0 && rootDone) {
+			return current = Token.END_DOCUMENT;
+		}
+
+		char c = buf[pos];
+
+		// closing a container
+		if (c == '}' || c == ']') {
+			if (current == Token.FIELD_NAME) {
+				throw new NexsonParseException("Missing value for field name at offset " + tokenOffset);
+			}
+			pos++;
+			boolean isObject = c == '}';
+			pop(isObject);
+			afterValue();
+			return current = isObject ? Token.END_OBJECT : Token.END_ARRAY;
+		}
+
+		// separators between container members
+		if (needComma) {
+			if (c != ',') {
+				throw new NexsonParseException("Expected ',' but found '" + c + "' at offset " + tokenOffset);
+			}
+			pos++;
+			needComma = false;
+			skipWhitespace();
+			tokenOffset = base + pos;
+			if (pos >= limit && !fill()) {
+				throw new NexsonParseException("Unexpected end of JSON input at offset " + tokenOffset);
+			}
+			c = buf[pos];
+			if (c == '}' || c == ']') {
+				throw new NexsonParseException("Trailing ',' before '" + c + "' at offset " + tokenOffset);
+			}
+		}
+
+		// field names
+		if (expectingName) {
+			if (c != '"') {
+				throw new NexsonParseException("Expected a field name but found '" + c + "' at offset " + tokenOffset);
+			}
+			pos++;
+			readStringBody();
+			skipWhitespace();
+			if (nextChar() != ':') {
+				throw new NexsonParseException("Expected ':' after field name at offset " + (base + pos - 1));
+			}
+			expectingName = false;
+			return current = Token.FIELD_NAME;
+		}
+
+		// values
+		switch (c) {
+		case '{':
+			pos++;
+			push(true);
+			needComma = false;
+			return current = Token.START_OBJECT;
+		case '[':
+			pos++;
+			push(false);
+			needComma = false;
+			return current = Token.START_ARRAY;
+		case '"':
+			pos++;
+			readStringBody();
+			afterValue();
+			return current = Token.STRING;
+		case 't':
+			readLiteral("true");
+			afterValue();
+			return current = Token.TRUE;
+		case 'f':
+			readLiteral("false");
+			afterValue();
+			return current = Token.FALSE;
+		case 'n':
+			readLiteral("null");
+			afterValue();
+			return current = Token.NULL;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				readNumber();
+				afterValue();
+				return current = Token.NUMBER;
+			}
+			throw new NexsonParseException("Unexpected character '" + c + "' at offset " + tokenOffset);
+		}
+	}
+
+	@Override
+	public String getText() {
+		if (textString == null) {
+			if (current == Token.FIELD_NAME) {
+				textString = cachedName();
+			} else {
+				textString = new String(text, 0, textLength);
+			}
+		}
+		return textString;
+	}
+
+	@Override
+	public long getTokenOffset() {
+		return tokenOffset;
+	}
+
+	@Override
+	public long getOffset() {
+		return base + pos;
+	}
+
+	@Override
+	protected boolean isIntegerLiteral() {
+		return integerLiteral;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+
+	// ### lexing
+
+	private void afterValue() {
+		if (getDepth() == 0) {
+			rootDone = true;
+		} else {
+			needComma = true;
+			expectingName = inObject();
+		}
+	}
+
+	/**
+	 * Refill the buffer from the reader. Returns false if there is no more input.
+	 */
+	private boolean fill() {
+		if (in == null) {
+			return false;
+		}
+		try {
+			base += limit;
+			pos = 0;
+			limit = 0;
+			int n;
+			while ((n = in.read(buf, 0, buf.length)) == 0) { }
+			if (n < 0) {
+				return false;
+			}
+			limit = n;
+			return true;
+		} catch (IOException ex) {
+			throw new NexsonParseException("Could not read JSON input: " + ex.getMessage());
+		}
+	}
+
+	private char nextChar() {
+		if (pos >= limit && !fill()) {
+			throw new NexsonParseException("Unexpected end of JSON input at offset " + (base + pos));
+		}
+		return buf[pos++];
+	}
+
+	private void skipWhitespace() {
+		for (;;) {
+			while (pos < limit) {
+				char c = buf[pos];
+				if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+					pos++;
+				} else {
+					return;
+				}
+			}
+			if (!fill()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Read a string whose opening quote has already been consumed into the text buffer, resolving escapes.
+	 */
+	private void readStringBody() {
+		textLength = 0;
+		for (;;) {
+			if (pos >= limit && !fill()) {
+				throw new NexsonParseException("Unterminated string starting at offset " + tokenOffset);
+			}
+			int start = pos;
+			while (pos < limit) {
+				char c = buf[pos];
+				if (c == '"' || c == '\\') {
+					break;
+				}
+				pos++;
+			}
+			appendText(buf, start, pos - start);
+			if (pos >= limit) {
+				continue;
+			}
+			char c = buf[pos++];
+			if (c == '"') {
+				return;
+			}
+			char e = nextChar();
+			switch (e) {
+			case '"':
+			case '\\':
+			case '/':
+				appendText(e);
+				break;
+			case 'b':
+				appendText('\b');
+				break;
+			case 'f':
+				appendText('\f');
+				break;
+			case 'n':
+				appendText('\n');
+				break;
+			case 'r':
+				appendText('\r');
+				break;
+			case 't':
+				appendText('\t');
+				break;
+			case 'u':
+				int value = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(nextChar(), 16);
+					if (digit < 0) {
+						throw new NexsonParseException("Invalid unicode escape in string at offset " + (base + pos - 1));
+					}
+					value = (value << 4) | digit;
+				}
+				appendText((char) value);
+				break;
+			default:
+				throw new NexsonParseException("Invalid escape '\\" + e + "' in string at offset " + (base + pos - 1));
+			}
+		}
+	}
+
+	private void readNumber() {
+		textLength = 0;
+		integerLiteral = true;
+		int state = NUMBER_START;
+		for (;;) {
+			if (pos >= limit && !fill()) {
+				checkNumberEnd(state, -1);
+				return;
+			}
+			char c = buf[pos];
+			int next = nextNumberState(state, c);
+			if (next < 0) {
+				checkNumberEnd(state, c);
+				return;
+			}
+			if (c == '.' || c == 'e' || c == 'E') {
+				integerLiteral = false;
+			}
+			appendText(c);
+			state = next;
+			pos++;
+		}
+	}
+
+	private void readLiteral(String literal) {
+		for (int i = 0; i < literal.length(); i++) {
+			if (nextChar() != literal.charAt(i)) {
+				throw new NexsonParseException("Invalid literal at offset " + tokenOffset + ", expected '" + literal + "'");
+			}
+		}
+	}
+
+	private void appendText(char c) {
+		if (textLength == text.length) {
+			growText(1);
+		}
+		text[textLength++] = c;
+	}
+
+	private void appendText(char[] chars, int start, int length) {
+		if (textLength + length > text.length) {
+			growText(length);
+		}
+		System.arraycopy(chars, start, text, textLength, length);
+		textLength += length;
+	}
+
+	private void growText(int needed) {
+		char[] grown = new char[Math.max(text.length * 2, textLength + needed)];
+		System.arraycopy(text, 0, grown, 0, textLength);
+		text = grown;
+	}
+
+	/**
+	 * Return a string for the current field name, reusing a previously created one if possible.
+	 */
+	private String cachedName() {
+		int h = 0;
+		for (int i = 0; i < textLength; i++) {
+			h = 31 * h + text[i];
+		}
+		int slot = (h ^ (h >>> 16)) & (NAME_CACHE_SIZE - 1);
+		String cached = nameCache[slot];
+		if (cached != null && cached.length() == textLength) {
+			boolean same = true;
+			for (int i = 0; i < textLength; i++) {
+				if (cached.charAt(i) != text[i]) {
+					same = false;
+					break;
+				}
+			}
+			if (same) {
+				return cached;
+			}
+		}
+		String name = new String(text, 0, textLength);
+		nameCache[slot] = name;
+		return name;
+	}
+}
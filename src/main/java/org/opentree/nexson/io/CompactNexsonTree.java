@@ -0,0 +1,589 @@
+package org.opentree.nexson.io;
+
+import jade.tree.NodeOrder;
+import jade.tree.Tree;
+import jade.tree.TreeBipartition;
+import jade.tree.TreeNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * <p>A read-only tree stored as a struct of primitive arrays rather than as a graph of NexsonNode objects. Each node is
+ * identified by its index, and the nodes are laid out in preorder, so that walking the tree in preorder is a sequential
+ * scan of the arrays. For each node we store:<br/>
+ * <br/>
+ * the index of its parent, its first child and its next sibling (-1 where there is none)<br/>
+ * the indexes of its children, stored with those of the other nodes in one array, so that any child is found in
+ * constant time<br/>
+ * its parent branch length (NaN where there is none)<br/>
+ * the index of its OTU within the OTU table of the tree (-1 where there is none)<br/>
+ * its NexSON id, and its leaf/root/ingroup flags<br/>
+ * <br/>
+ * This takes several times less memory than the equivalent NexsonTree, and traversals touch contiguous memory.</p>
+ * <br/>
+ * <p>The jade Tree and TreeNode interfaces are provided through lightweight views: each TreeNode returned by this class
+ * is a small object holding the tree and a node index, created as needed. Two views of the same node are equal. The
+ * structure of the tree cannot be modified through the views.</p>
+ * <br/>
+ * <p>A compact tree is built from a parsed NexsonTree; once it has been built the NexsonTree can be discarded (e.g. with
+ * NexsonSource.releaseTree() for lazily parsed trees).</p>
+ *
+ * @author cody
+ *
+ */
+public class CompactNexsonTree implements Tree {
+
+	private static final int NONE = -1;
+
+	private static final byte LEAF = 1;
+	private static final byte TREE_ROOT = 2;
+	private static final byte INGROUP_ROOT = 4;
+
+	private final String id;
+	private final Map<String, Object> properties;
+	private final NexsonSource parentStudy;
+
+	private final int nodeCount;
+	private final int[] parent;
+	private final int[] firstChild;
+	private final int[] nextSibling;
+	private final int[] childOffsets; // the children of node i are children[childOffsets[i], childOffsets[i + 1])
+	private final int[] children;
+	private final double[] branchLength;
+	private final int[] otuIndex;
+	private final byte[] flags;
+	private final String[] nodeIds;
+
+	// most nodes have no properties, so the property maps of the original nodes are only kept for those that do
+	private final Map<String, Object>[] nodeProperties;
+
+	// the distinct OTUs referred to by the nodes of this tree
+	private final NexsonOTU[] otus;
+
+	private final int externalCount;
+	private final int ingroupNode;
+
+	// computed the first time a postorder traversal is requested
+	private int[] postorder = null;
+
+	// computed the first time bipartitions are requested
+	private BipartitionSet bipartitionSet = null;
+
+	/**
+	 * Create a compact copy of the provided tree. The properties of the tree and the OTUs of its nodes are shared with the
+	 * original, but the nodes themselves are not, so the NexsonTree can be discarded afterward.
+	 * @param tree
+	 */
+	@SuppressWarnings("unchecked")
+	public CompactNexsonTree(NexsonTree tree) {
+
+		this.id = tree.getId();
+		this.properties = tree.getProperties();
+		this.parentStudy = tree.getParentStudy();
+
+		// lay the nodes out in preorder
+		List<NexsonNode> nodes = new ArrayList<NexsonNode>();
+		if (tree.getRoot() != null) {
+			List<NexsonNode> stack = new ArrayList<NexsonNode>();
+			stack.add(tree.getRoot());
+			while (! stack.isEmpty()) {
+				NexsonNode node = stack.remove(stack.size() - 1);
+				nodes.add(node);
+				for (int i = node.getChildCount() - 1; i >= 0; i--) {
+					stack.add((NexsonNode) node.getChild(i));
+				}
+			}
+		}
+
+		nodeCount = nodes.size();
+		parent = new int[nodeCount];
+		firstChild = new int[nodeCount];
+		nextSibling = new int[nodeCount];
+		branchLength = new double[nodeCount];
+		otuIndex = new int[nodeCount];
+		flags = new byte[nodeCount];
+		nodeIds = new String[nodeCount];
+		nodeProperties = (Map<String, Object>[]) new Map<?, ?>[nodeCount];
+
+		Map<NexsonNode, Integer> indexes = new IdentityHashMap<NexsonNode, Integer>(nodeCount * 2);
+		Map<NexsonOTU, Integer> otuIndexes = new IdentityHashMap<NexsonOTU, Integer>();
+		List<NexsonOTU> otuList = new ArrayList<NexsonOTU>();
+		int[] lastChild = new int[nodeCount];
+		int externals = 0;
+		int ingroup = NONE;
+
+		for (int i = 0; i < nodeCount; i++) {
+			NexsonNode node = nodes.get(i);
+			indexes.put(node, i);
+			firstChild[i] = NONE;
+			nextSibling[i] = NONE;
+			lastChild[i] = NONE;
+
+			// the parent always precedes its children in preorder
+			Integer p = node.getParent() != null ? indexes.get(node.getParent()) : null;
+			parent[i] = p != null ? p : NONE;
+			if (p != null) {
+				if (lastChild[p] == NONE) {
+					firstChild[p] = i;
+				} else {
+					nextSibling[lastChild[p]] = i;
+				}
+				lastChild[p] = i;
+			}
+
+			Double length = node.getParentBranchLength();
+			branchLength[i] = length != null ? length : Double.NaN;
+
+			NexsonOTU otu = node.getOTU();
+			if (otu != null) {
+				Integer o = otuIndexes.get(otu);
+				if (o == null) {
+					o = otuList.size();
+					otuList.add(otu);
+					otuIndexes.put(otu, o);
+				}
+				otuIndex[i] = o;
+			} else {
+				otuIndex[i] = NONE;
+			}
+
+			if (node.isExternal()) {
+				flags[i] |= LEAF;
+				externals++;
+			}
+			if (node.isTreeRoot()) {
+				flags[i] |= TREE_ROOT;
+			}
+			if (node.isIngroupRoot()) {
+				flags[i] |= INGROUP_ROOT;
+			}
+			if (node == tree.getSpecifiedIngroupNode()) {
+				ingroup = i;
+			}
+			nodeIds[i] = node.getId();
+			if (node.properties != null && ! node.properties.isEmpty()) {
+				nodeProperties[i] = node.properties;
+			}
+		}
+
+		// lay the children of each node out contiguously, in order, for constant time access by position
+		int edgeCount = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			if (parent[i] != NONE) {
+				edgeCount++;
+			}
+		}
+		childOffsets = new int[nodeCount + 1];
+		children = new int[edgeCount];
+		int k = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			childOffsets[i] = k;
+			for (int c = firstChild[i]; c != NONE; c = nextSibling[c]) {
+				children[k++] = c;
+			}
+		}
+		childOffsets[nodeCount] = k;
+
+		this.otus = otuList.toArray(new NexsonOTU[otuList.size()]);
+		this.externalCount = externals;
+		this.ingroupNode = ingroup;
+	}
+
+	// ### tree-level getters
+
+	public String getId() {
+		return id;
+	}
+
+	public Map<String, Object> getProperties() {
+		return properties;
+	}
+
+	public Object getProperty(String propertyName) {
+		return properties.get(propertyName);
+	}
+
+	public NexsonSource getParentStudy() {
+		return parentStudy;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Return the index of the root node, or -1 if the tree is empty. Since nodes are stored in preorder this is always 0
+	 * for a non-empty tree.
+	 * @return
+	 */
+	public int getRootIndex() {
+		return nodeCount > 0 ? 0 : NONE;
+	}
+
+	/**
+	 * Return the index of the node that was specified as the ingroup of the original tree, or -1 if there is none.
+	 * @return
+	 */
+	public int getSpecifiedIngroupIndex() {
+		return ingroupNode;
+	}
+
+	// ### node-level getters, by index
+
+	public int getParentIndex(int node) {
+		return parent[node];
+	}
+
+	public int getFirstChildIndex(int node) {
+		return firstChild[node];
+	}
+
+	public int getNextSiblingIndex(int node) {
+		return nextSibling[node];
+	}
+
+	/**
+	 * Return the length of the branch leading to the node, or NaN if it has none.
+	 * @param node
+	 * @return
+	 */
+	public double getBranchLength(int node) {
+		return branchLength[node];
+	}
+
+	public boolean isLeaf(int node) {
+		return (flags[node] & LEAF) != 0;
+	}
+
+	public boolean isTreeRoot(int node) {
+		return (flags[node] & TREE_ROOT) != 0;
+	}
+
+	public boolean isIngroupRoot(int node) {
+		return (flags[node] & INGROUP_ROOT) != 0;
+	}
+
+	public String getNodeId(int node) {
+		return nodeIds[node];
+	}
+
+	/**
+	 * Return the OTU assigned to the node, or null if there is none.
+	 * @param node
+	 * @return
+	 */
+	public NexsonOTU getOTU(int node) {
+		return otuIndex[node] != NONE ? otus[otuIndex[node]] : null;
+	}
+
+	/**
+	 * Return the value of the specified NexSON property of the node, or null if it is not set.
+	 * @param node
+	 * @param propertyName
+	 * @return
+	 */
+	public Object getNodeProperty(int node, String propertyName) {
+		return nodeProperties[node] != null ? nodeProperties[node].get(propertyName) : null;
+	}
+
+	public int getChildCount(int node) {
+		return childOffsets[node + 1] - childOffsets[node];
+	}
+
+	/**
+	 * Return the index of the i-th child of the node.
+	 * @param node
+	 * @param i
+	 * @return
+	 */
+	public int getChildIndex(int node, int i) {
+		if (i < 0 || i >= getChildCount(node)) {
+			throw new IndexOutOfBoundsException("Child index " + i + " is out of range for node " + nodeIds[node]);
+		}
+		return children[childOffsets[node] + i];
+	}
+
+	/**
+	 * Return a TreeNode view of the node with the specified index.
+	 * @param node
+	 * @return
+	 */
+	public Node getNode(int node) {
+		if (node < 0 || node >= nodeCount) {
+			throw new IndexOutOfBoundsException("Node index " + node + " is out of range for a tree with " + nodeCount + " nodes");
+		}
+		return new Node(node);
+	}
+
+	/**
+	 * Return the node indexes in postorder (each node follows all of its descendants, children are visited in order).
+	 * The returned array must not be modified.
+	 * @return
+	 */
+	public int[] getPostorder() {
+		if (postorder == null) {
+			int[] order = new int[nodeCount];
+			if (nodeCount > 0) {
+				int n = 0;
+				int[] stack = new int[nodeCount];
+				int top = 0;
+				int current = 0;
+				while (true) {
+					// descend to the first leaf below the current node
+					while (firstChild[current] != NONE) {
+						stack[top++] = current;
+						current = firstChild[current];
+					}
+					order[n++] = current;
+					// climb until we find a node with a next sibling
+					while (nextSibling[current] == NONE && top > 0) {
+						current = stack[--top];
+						order[n++] = current;
+					}
+					if (top == 0) {
+						break;
+					}
+					current = nextSibling[current];
+				}
+			}
+			postorder = order;
+		}
+		return postorder;
+	}
+
+	// ### Tree interface
+
+	@Override
+	public Node getRoot() {
+		return nodeCount > 0 ? new Node(0) : null;
+	}
+
+	@Override
+	public Iterable<TreeNode> nodes(NodeOrder order) {
+		return new NodeIterable(order, true, true);
+	}
+
+	@Override
+	public Iterable<TreeNode> internalNodes(NodeOrder order) {
+		return new NodeIterable(order, true, false);
+	}
+
+	@Override
+	public Iterable<TreeNode> externalNodes() {
+		return new NodeIterable(NodeOrder.PREORDER, false, true);
+	}
+
+	@Override
+	public int internalNodeCount() {
+		return nodeCount - externalCount;
+	}
+
+	@Override
+	public int externalNodeCount() {
+		return externalCount;
+	}
+
+	@Override
+	public Iterable<TreeBipartition> bipartitions() {
+		return getBipartitionSet().bipartitions();
+	}
+
+	public TreeBipartition getBipartition(TreeNode node) {
+		return getBipartitionSet().getBipartition(node);
+	}
+
+	/**
+	 * Return the bitset representation of the bipartitions of this tree, computed the first time it is requested.
+	 * @return
+	 */
+	public BipartitionSet getBipartitionSet() {
+		if (bipartitionSet == null) {
+			bipartitionSet = new BipartitionSet(this);
+		}
+		return bipartitionSet;
+	}
+
+	/**
+	 * Iterates over node views in preorder (which is storage order) or postorder, optionally skipping internal or
+	 * external nodes.
+	 */
+	private class NodeIterable implements Iterable<TreeNode> {
+
+		private final NodeOrder order;
+		private final boolean includeInternal;
+		private final boolean includeExternal;
+
+		NodeIterable(NodeOrder order, boolean includeInternal, boolean includeExternal) {
+			this.order = order;
+			this.includeInternal = includeInternal;
+			this.includeExternal = includeExternal;
+		}
+
+		@Override
+		public Iterator<TreeNode> iterator() {
+			final int[] sequence = order == NodeOrder.POSTORDER ? getPostorder() : null;
+			return new Iterator<TreeNode>() {
+
+				private int position = advance(0);
+
+				private int advance(int from) {
+					while (from < nodeCount) {
+						boolean leaf = isLeaf(sequence != null ? sequence[from] : from);
+						if (leaf ? includeExternal : includeInternal) {
+							break;
+						}
+						from++;
+					}
+					return from;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return position < nodeCount;
+				}
+
+				@Override
+				public TreeNode next() {
+					if (position >= nodeCount) {
+						throw new NoSuchElementException();
+					}
+					Node node = new Node(sequence != null ? sequence[position] : position);
+					position = advance(position + 1);
+					return node;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	// ### node views
+
+	/**
+	 * A lightweight TreeNode view of a single node of a CompactNexsonTree.
+	 */
+	public class Node implements TreeNode {
+
+		private final int index;
+
+		private Node(int index) {
+			this.index = index;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public CompactNexsonTree getTree() {
+			return CompactNexsonTree.this;
+		}
+
+		public String getId() {
+			return nodeIds[index];
+		}
+
+		public NexsonOTU getOTU() {
+			return CompactNexsonTree.this.getOTU(index);
+		}
+
+		@Override
+		public String getNewick(boolean showBranchLengths) {
+			StringBuilder sb = new StringBuilder();
+			try {
+				new NewickWriter(NewickWriter.LabelSource.OTU_LABEL, showBranchLengths).writeSubtree(getTree(), index, sb);
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex); // StringBuilder does not throw IOException
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public boolean isExternal() {
+			return isLeaf(index);
+		}
+
+		@Override
+		public boolean isInternal() {
+			return ! isLeaf(index);
+		}
+
+		@Override
+		public int getChildCount() {
+			return CompactNexsonTree.this.getChildCount(index);
+		}
+
+		@Override
+		public TreeNode getChild(int i) {
+			return new Node(getChildIndex(index, i));
+		}
+
+		@Override
+		public List<TreeNode> getChildren() {
+			List<TreeNode> nodes = new ArrayList<TreeNode>(childOffsets[index + 1] - childOffsets[index]);
+			for (int k = childOffsets[index]; k < childOffsets[index + 1]; k++) {
+				nodes.add(new Node(children[k]));
+			}
+			return nodes;
+		}
+
+		@Override
+		public boolean addChild(TreeNode child) {
+			throw new UnsupportedOperationException("CompactNexsonTree is read-only");
+		}
+
+		@Override
+		public boolean removeChild(TreeNode child) {
+			throw new UnsupportedOperationException("CompactNexsonTree is read-only");
+		}
+
+		@Override
+		public TreeNode getParent() {
+			return parent[index] != NONE ? new Node(parent[index]) : null;
+		}
+
+		@Override
+		public boolean isTheRoot() {
+			return isTreeRoot(index);
+		}
+
+		/**
+		 * Return the length of the branch leading to this node, or NaN if it has none.
+		 */
+		@Override
+		public double getBL() {
+			return branchLength[index];
+		}
+
+		@Override
+		public Object getLabel() {
+			NexsonOTU otu = getOTU();
+			return otu != null ? otu.getProperty(OTVocabularyPredicate.OT_OTT_ID) : null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Node && ((Node) o).index == index && ((Node) o).getTree() == getTree();
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(getTree()) * 31 + index;
+		}
+
+		@Override
+		public String toString() {
+			return nodeIds[index];
+		}
+	}
+}
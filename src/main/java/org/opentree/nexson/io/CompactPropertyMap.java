@@ -0,0 +1,233 @@
+package org.opentree.nexson.io;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>A small map from property names to values that stores its entries as a pair of parallel arrays: the keys assigned
+ * to the property names by NexsonPropertyKeys, and the values. NexSON elements typically have only a handful of
+ * properties, so a linear scan over an int array is faster than hashing and uses a fraction of the memory of a
+ * HashMap.</p>
+ * <br/>
+ * <p>Entries are iterated in insertion order. Null values are permitted. The map is not thread safe.</p>
+ *
+ * @author cody
+ *
+ */
+final class CompactPropertyMap extends AbstractMap<String, Object> {
+
+	private static final int[] NO_KEYS = new int[0];
+	private static final Object[] NO_VALUES = new Object[0];
+
+	private int[] keys = NO_KEYS;
+	private Object[] values = NO_VALUES;
+	private int size = 0;
+	private int modCount = 0;
+
+	// ### access by key
+
+	/**
+	 * Return the index of the entry with the specified key, or -1 if there is none.
+	 */
+	int indexOf(int key) {
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	Object get(int key) {
+		int i = indexOf(key);
+		return i >= 0 ? values[i] : null;
+	}
+
+	Object put(int key, Object value) {
+		int i = indexOf(key);
+		if (i >= 0) {
+			Object previous = values[i];
+			values[i] = value;
+			return previous;
+		}
+		if (size == keys.length) {
+			int capacity = size == 0 ? 4 : size * 2;
+			int[] grownKeys = new int[capacity];
+			Object[] grownValues = new Object[capacity];
+			System.arraycopy(keys, 0, grownKeys, 0, size);
+			System.arraycopy(values, 0, grownValues, 0, size);
+			keys = grownKeys;
+			values = grownValues;
+		}
+		keys[size] = key;
+		values[size] = value;
+		size++;
+		modCount++;
+		return null;
+	}
+
+	private Object removeAt(int i) {
+		Object previous = values[i];
+		System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+		System.arraycopy(values, i + 1, values, i, size - i - 1);
+		size--;
+		values[size] = null;
+		modCount++;
+		return previous;
+	}
+
+	// ### Map interface
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object name) {
+		return name instanceof String && containsKey(NexsonPropertyKeys.lookup((String) name));
+	}
+
+	@Override
+	public Object get(Object name) {
+		return name instanceof String ? get(NexsonPropertyKeys.lookup((String) name)) : null;
+	}
+
+	@Override
+	public Object put(String name, Object value) {
+		if (name == null) {
+			throw new IllegalArgumentException("Attempt to add a property with name==null");
+		}
+		return put(NexsonPropertyKeys.keyFor(name), value);
+	}
+
+	@Override
+	public Object remove(Object name) {
+		if (name instanceof String) {
+			int i = indexOf(NexsonPropertyKeys.lookup((String) name));
+			if (i >= 0) {
+				return removeAt(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			values[i] = null;
+		}
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return new AbstractSet<Entry<String, Object>>() {
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public Iterator<Entry<String, Object>> iterator() {
+				return new EntryIterator();
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator<Entry<String, Object>> {
+
+		private int next = 0;
+		private int last = -1;
+		private int expectedModCount = modCount;
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			last = next++;
+			return new PropertyEntry(last);
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			removeAt(last);
+			next = last;
+			last = -1;
+			expectedModCount = modCount;
+		}
+	}
+
+	private class PropertyEntry implements Map.Entry<String, Object> {
+
+		private final int index;
+
+		PropertyEntry(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String getKey() {
+			return NexsonPropertyKeys.nameOf(keys[index]);
+		}
+
+		@Override
+		public Object getValue() {
+			return values[index];
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			Object previous = values[index];
+			values[index] = value;
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Object value = getValue();
+			return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			Object value = getValue();
+			return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package org.opentree.nexson.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * <p>A minimal pull tokenizer for JSON. Callers advance through the document one token at a time with next(), and only
+ * the values they actually ask for (with getText(), getNumber(), readValue(), etc.) are materialized as java objects.
+ * Everything else can be passed over with skipValue(), which does not allocate.</p>
+ * <br/>
+ * <p>Numbers are reported the same way json-simple reports them: integers as Long and everything else as Double, so
+ * that properties bound through the tokenizer are indistinguishable from properties read from a JSONObject.</p>
+ * <br/>
+ * <p>Subclasses provide the actual lexing over a particular kind of input.</p>
+ *
+ * @author cody
+ *
+ */
+public abstract class JSONTokenizer implements Closeable {
+
+	/**
+	 * The kinds of tokens reported by the tokenizer.
+	 */
+	public enum Token {
+		START_OBJECT,
+		END_OBJECT,
+		START_ARRAY,
+		END_ARRAY,
+		FIELD_NAME,
+		STRING,
+		NUMBER,
+		TRUE,
+		FALSE,
+		NULL,
+		END_DOCUMENT
+	}
+
+	protected Token current = null;
+
+	// ### container state, shared by all subclasses
+
+	private static final int INITIAL_DEPTH = 32;
+
+	/** true at depth i if the container at that depth is an object, false if it is an array */
+	private boolean[] inObject = new boolean[INITIAL_DEPTH];
+	private int depth = 0;
+
+	/** true if the next token inside the current object should be a field name */
+	protected boolean expectingName = false;
+
+	/**
+	 * Advance to the next token in the document and return it. Throws a NexsonParseException if the document is
+	 * not well formed.
+	 * @return
+	 */
+	public abstract Token next();
+
+	/**
+	 * Return the text of the current token. For FIELD_NAME and STRING tokens this is the unescaped string value,
+	 * for NUMBER tokens it is the literal as it appears in the document.
+	 * @return
+	 */
+	public abstract String getText();
+
+	/**
+	 * Return the offset (in the units of the underlying input) at which the current token begins.
+	 * @return
+	 */
+	public abstract long getTokenOffset();
+
+	/**
+	 * Return the offset (in the units of the underlying input) immediately following the current token.
+	 * @return
+	 */
+	public abstract long getOffset();
+
+	/**
+	 * Return true if this tokenizer's input can be revisited with slice(), i.e. if the entire document is available to
+	 * the tokenizer rather than being streamed through it.
+	 * @return
+	 */
+	public boolean supportsSlicing() {
+		return false;
+	}
+
+	/**
+	 * Return a new tokenizer over the part of this tokenizer's input from start (inclusive) to end (exclusive), where
+	 * start and end are offsets as reported by getTokenOffset() and getOffset(). The range should contain exactly one
+	 * JSON value. Only supported if supportsSlicing() returns true.
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public JSONTokenizer slice(long start, long end) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support slicing of its input");
+	}
+
+	/**
+	 * Return the part of this tokenizer's input from start (inclusive) to end (exclusive) as UTF-8 encoded bytes, in an
+	 * array of its own, so that it can be kept without keeping the whole input. Offsets are as for slice(), and this is
+	 * only supported if supportsSlicing() returns true.
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public byte[] copyUtf8(long start, long end) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support slicing of its input");
+	}
+
+	// ### accessors
+
+	/**
+	 * Return the most recent token returned by next(), or null if next() has not been called.
+	 * @return
+	 */
+	public Token current() {
+		return current;
+	}
+
+	/**
+	 * Return the number of containers (objects or arrays) enclosing the current position.
+	 * @return
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Return the value of the current NUMBER token as a Long if it is an integer, or as a Double otherwise.
+	 * @return
+	 */
+	public Number getNumber() {
+		checkCurrent(Token.NUMBER);
+		String literal = getText();
+		try {
+			if (isIntegerLiteral()) {
+				return Long.valueOf(literal);
+			} else {
+				return Double.valueOf(literal);
+			}
+		} catch (NumberFormatException ex) { // only an integer too large for a long, since the grammar has been checked
+			throw new NexsonParseException("Number " + literal + " out of range at offset " + getTokenOffset());
+		}
+	}
+
+	/**
+	 * Return the value of the current NUMBER token as a double.
+	 * @return
+	 */
+	public double getDouble() {
+		checkCurrent(Token.NUMBER);
+		return Double.parseDouble(getText());
+	}
+
+	/**
+	 * Return true if the current NUMBER token has no fraction or exponent part.
+	 * @return
+	 */
+	protected abstract boolean isIntegerLiteral();
+
+	/**
+	 * Return the value of the current scalar token (STRING, NUMBER, TRUE, FALSE or NULL) as the corresponding
+	 * java object. If the current token is START_OBJECT or START_ARRAY, the entire container is read into a
+	 * JSONObject or JSONArray. Use this sparingly, for small subtrees whose structure is not known in advance.
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public Object readValue() {
+		switch (current) {
+		case STRING:
+			return getText();
+		case NUMBER:
+			return getNumber();
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case NULL:
+			return null;
+		case START_OBJECT:
+			JSONObject obj = new JSONObject();
+			while (next() == Token.FIELD_NAME) {
+				String key = getText();
+				next();
+				obj.put(key, readValue());
+			}
+			return obj;
+		case START_ARRAY:
+			JSONArray arr = new JSONArray();
+			while (next() != Token.END_ARRAY) {
+				arr.add(readValue());
+			}
+			return arr;
+		default:
+			throw new NexsonParseException("Expected a JSON value but found " + current + " at offset " + getTokenOffset());
+		}
+	}
+
+	/**
+	 * Return the value of the current token as a String, or null if the token is a JSON null. Numbers and booleans
+	 * are converted to their string representations.
+	 * @return
+	 */
+	public String readString() {
+		switch (current) {
+		case STRING:
+		case NUMBER:
+			return getText();
+		case TRUE:
+			return "true";
+		case FALSE:
+			return "false";
+		case NULL:
+			return null;
+		default:
+			throw new NexsonParseException("Expected a string value but found " + current + " at offset " + getTokenOffset());
+		}
+	}
+
+	/**
+	 * If the current token starts an object or array, advance past the matching end token. Otherwise do nothing.
+	 * Nothing encountered along the way is materialized.
+	 */
+	public void skipValue() {
+		if (current == Token.START_OBJECT || current == Token.START_ARRAY) {
+			int target = depth - 1;
+			while (depth > target) {
+				if (next() == Token.END_DOCUMENT) {
+					throw new NexsonParseException("Unexpected end of document while skipping a value");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Throw a NexsonParseException if the current token is not of the expected type.
+	 * @param expected
+	 */
+	public void checkCurrent(Token expected) {
+		if (current != expected) {
+			throw new NexsonParseException("Expected " + expected + " but found " + current + " at offset " + getTokenOffset());
+		}
+	}
+
+	/**
+	 * Advance to the next token and throw a NexsonParseException if it is not of the expected type.
+	 * @param expected
+	 */
+	public void expect(Token expected) {
+		next();
+		checkCurrent(expected);
+	}
+
+	// ### opening files
+
+	/**
+	 * Return a tokenizer over the UTF-8 encoded JSON file, which may be gzip-compressed (as recognized from its first
+	 * bytes, not its name). Uncompressed files are memory-mapped. Compressed files are inflated on a separate thread
+	 * ahead of the tokenizer (see PipelinedInputStream), unless slicing is required, in which case they are inflated into
+	 * memory first. The tokenizer should be closed when it is no longer needed, to stop the inflating thread.
+	 * @param file
+	 * @param slicing true if the returned tokenizer must support slicing
+	 * @return
+	 * @throws IOException
+	 */
+	public static JSONTokenizer open(Path file, boolean slicing) throws IOException {
+		if (!PipelinedInputStream.isGzip(file)) {
+			return Utf8JSONTokenizer.map(file);
+		} else if (slicing) {
+			return new Utf8JSONTokenizer(PipelinedInputStream.readFully(PipelinedInputStream.open(file)));
+		} else {
+			return new CharJSONTokenizer(new InputStreamReader(PipelinedInputStream.open(file), Charset.forName("UTF-8")));
+		}
+	}
+
+	// ### container bookkeeping for subclasses
+
+	protected void push(boolean isObject) {
+		if (depth == inObject.length) {
+			boolean[] grown = new boolean[depth * 2];
+			System.arraycopy(inObject, 0, grown, 0, depth);
+			inObject = grown;
+		}
+		inObject[depth++] = isObject;
+		expectingName = isObject;
+	}
+
+	protected void pop(boolean isObject) {
+		if (depth == 0 || inObject[depth - 1] != isObject) {
+			throw new NexsonParseException("Mismatched " + (isObject ? "'}'" : "']'") + " at offset " + getTokenOffset());
+		}
+		depth--;
+		expectingName = false;
+	}
+
+	protected boolean inObject() {
+		return depth > 0 && inObject[depth - 1];
+	}
+
+	// ### number grammar for subclasses
+
+	/** the state before the first character of a number */
+	protected static final int NUMBER_START = 0;
+
+	// the other states: after the minus sign, a leading zero, integer digits, the decimal point, fraction digits, the
+	// exponent marker, the exponent sign, and exponent digits
+	private static final int NUMBER_MINUS = 1;
+	private static final int NUMBER_ZERO = 2;
+	private static final int NUMBER_INTEGER = 3;
+	private static final int NUMBER_POINT = 4;
+	private static final int NUMBER_FRACTION = 5;
+	private static final int NUMBER_EXPONENT = 6;
+	private static final int NUMBER_EXPONENT_SIGN = 7;
+	private static final int NUMBER_EXPONENT_DIGITS = 8;
+
+	/**
+	 * Return the state of the JSON number grammar after the character c, given the state before it, or -1 if c cannot
+	 * continue the number. Subclasses scanning a number call this for each character, starting from NUMBER_START; when it
+	 * returns -1 the number has ended if c is not itself a number character (see checkNumberEnd()).
+	 * @param state
+	 * @param c
+	 * @return
+	 */
+	protected static int nextNumberState(int state, int c) {
+		boolean digit = c >= '0' && c <= '9';
+		switch (state) {
+		case NUMBER_START:
+			return c == '-' ? NUMBER_MINUS : c == '0' ? NUMBER_ZERO : digit ? NUMBER_INTEGER : -1;
+		case NUMBER_MINUS:
+			return c == '0' ? NUMBER_ZERO : digit ? NUMBER_INTEGER : -1;
+		case NUMBER_ZERO:
+			return c == '.' ? NUMBER_POINT : (c == 'e' || c == 'E') ? NUMBER_EXPONENT : -1;
+		case NUMBER_INTEGER:
+			return digit ? NUMBER_INTEGER : c == '.' ? NUMBER_POINT : (c == 'e' || c == 'E') ? NUMBER_EXPONENT : -1;
+		case NUMBER_POINT:
+			return digit ? NUMBER_FRACTION : -1;
+		case NUMBER_FRACTION:
+			return digit ? NUMBER_FRACTION : (c == 'e' || c == 'E') ? NUMBER_EXPONENT : -1;
+		case NUMBER_EXPONENT:
+			return (c == '+' || c == '-') ? NUMBER_EXPONENT_SIGN : digit ? NUMBER_EXPONENT_DIGITS : -1;
+		case NUMBER_EXPONENT_SIGN:
+		case NUMBER_EXPONENT_DIGITS:
+			return digit ? NUMBER_EXPONENT_DIGITS : -1;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Check that a number that has reached the specified state is complete, where c (or -1 at the end of the input) is the
+	 * character following it. Throws a NexsonParseException, with the offset of the number, if the number is malformed
+	 * (e.g. "-", "1.", "--1", "1-2" or "01").
+	 * @param state
+	 * @param c
+	 */
+	protected void checkNumberEnd(int state, int c) {
+		boolean numberCharacter = (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+		if (numberCharacter || !(state == NUMBER_ZERO || state == NUMBER_INTEGER || state == NUMBER_FRACTION
+				|| state == NUMBER_EXPONENT_DIGITS)) {
+			throw new NexsonParseException("Malformed number at offset " + getTokenOffset());
+		}
+	}
+
+	@Override
+	public void close() throws IOException { }
+}
@@ -0,0 +1,185 @@
+package org.opentree.nexson.io;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * <p>A JSONTokenizer over JSON values that are already in memory: JSONObjects (or other Maps with String keys),
+ * JSONArrays (or other Lists), Strings, Numbers, Booleans and nulls. The values are walked in place, so NexSON that has
+ * already been parsed into a JSONObject can be read by NexsonStreamReader without being serialized and parsed again.</p>
+ * <br/>
+ * <p>readValue() returns the JSONObjects and JSONArrays of the input themselves rather than copies, and skipValue()
+ * skips a container without walking its contents. Offsets reported by this tokenizer are the positions of its tokens in
+ * the sequence it returns. Slicing is not supported.</p>
+ *
+ * @author cody
+ *
+ */
+public class JSONValueTokenizer extends JSONTokenizer {
+
+	private final Object root;
+	private boolean rootDone = false;
+
+	// iterators over the entries of the open objects and the elements of the open arrays, innermost last
+	private Iterator<?>[] containers = new Iterator<?>[32];
+	private int open = 0;
+
+	// the value of the current token, and the name and value of the current field
+	private Object value = null;
+	private String fieldName = null;
+	private Object fieldValue = null;
+
+	private long tokenOffset = -1;
+
+	/**
+	 * Create a tokenizer over the provided value, which is typically a JSONObject.
+	 * @param root
+	 */
+	public JSONValueTokenizer(Object root) {
+		this.root = root;
+	}
+
+	@Override
+	public Token next() {
+
+		tokenOffset++;
+		if (current == Token.FIELD_NAME) {
+			return start(fieldValue);
+		}
+
+		if (open == 0) {
+			if (!rootDone) {
+				rootDone = true;
+				return start(root);
+			}
+			value = null;
+			return current = Token.END_DOCUMENT;
+		}
+
+		Iterator<?> iter = containers[open - 1];
+		boolean object = inObject();
+		if (!iter.hasNext()) {
+			close(object);
+			return current;
+		}
+		if (!object) {
+			return start(iter.next());
+		}
+		Map.Entry<?, ?> entry = (Map.Entry<?, ?>) iter.next();
+		if (!(entry.getKey() instanceof String)) {
+			throw new NexsonParseException("Expected a string field name but found " + entry.getKey() + " at offset " + tokenOffset);
+		}
+		fieldName = (String) entry.getKey();
+		fieldValue = entry.getValue();
+		value = null;
+		return current = Token.FIELD_NAME;
+	}
+
+	/**
+	 * Make the provided value the current one, opening it if it is an object or an array, and return its token.
+	 */
+	private Token start(Object v) {
+		value = v;
+		if (v instanceof Map) {
+			open(((Map<?, ?>) v).entrySet().iterator(), true);
+			return current = Token.START_OBJECT;
+		} else if (v instanceof List) {
+			open(((List<?>) v).iterator(), false);
+			return current = Token.START_ARRAY;
+		} else if (v instanceof String) {
+			return current = Token.STRING;
+		} else if (v instanceof Number) {
+			return current = Token.NUMBER;
+		} else if (v instanceof Boolean) {
+			return current = ((Boolean) v).booleanValue() ? Token.TRUE : Token.FALSE;
+		} else if (v == null) {
+			return current = Token.NULL;
+		}
+		throw new NexsonParseException("Unsupported JSON value of type " + v.getClass().getName() + " at offset " + tokenOffset);
+	}
+
+	private void open(Iterator<?> iter, boolean object) {
+		if (open == containers.length) {
+			Iterator<?>[] grown = new Iterator<?>[open * 2];
+			System.arraycopy(containers, 0, grown, 0, open);
+			containers = grown;
+		}
+		containers[open++] = iter;
+		push(object);
+	}
+
+	/**
+	 * Close the innermost container, making its end token the current one.
+	 */
+	private void close(boolean object) {
+		containers[--open] = null;
+		pop(object);
+		value = null;
+		current = object ? Token.END_OBJECT : Token.END_ARRAY;
+	}
+
+	@Override
+	public String getText() {
+		if (current == Token.FIELD_NAME) {
+			return fieldName;
+		}
+		return current == Token.STRING || current == Token.NUMBER ? value.toString() : null;
+	}
+
+	@Override
+	public long getTokenOffset() {
+		return tokenOffset;
+	}
+
+	@Override
+	public long getOffset() {
+		return tokenOffset + 1;
+	}
+
+	@Override
+	public Number getNumber() {
+		checkCurrent(Token.NUMBER);
+		return (Number) value;
+	}
+
+	@Override
+	public double getDouble() {
+		checkCurrent(Token.NUMBER);
+		return ((Number) value).doubleValue();
+	}
+
+	@Override
+	protected boolean isIntegerLiteral() {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+				|| value instanceof BigInteger;
+	}
+
+	/**
+	 * Return the value of the current token. JSONObjects and JSONArrays are returned as they are, without being copied;
+	 * other maps and lists are copied into JSONObjects and JSONArrays.
+	 */
+	@Override
+	public Object readValue() {
+		if ((current == Token.START_OBJECT && value instanceof JSONObject) || (current == Token.START_ARRAY && value instanceof JSONArray)) {
+			Object container = value;
+			close(current == Token.START_OBJECT);
+			return container;
+		}
+		return super.readValue();
+	}
+
+	/**
+	 * If the current token starts an object or array, advance past the matching end token, without walking the contents.
+	 */
+	@Override
+	public void skipValue() {
+		if (current == Token.START_OBJECT || current == Token.START_ARRAY) {
+			close(current == Token.START_OBJECT);
+		}
+	}
+}
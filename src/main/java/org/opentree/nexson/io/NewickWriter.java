@@ -0,0 +1,308 @@
+package org.opentree.nexson.io;
+
+import jade.tree.TreeNode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.opentree.properties.OTVocabularyPredicate;
+import org.opentree.utils.LabelEncoder;
+
+/**
+ * <p>Writes trees in Newick format directly to an Appendable (a Writer, StringBuilder, etc.) or an OutputStream.</p>
+ * <br/>
+ * <p>Trees are written without recursion: the writer walks down through the children of each node and back up through
+ * the parent links, remembering only the index of the current child at each level of nesting. No strings are built for
+ * subtrees; labels and branch lengths are appended to the output as they are reached. Trees of any size or depth can be
+ * written with a small, fixed amount of extra memory (one int per level of nesting).</p>
+ * <br/>
+ * <p>Node labels are taken from the OTU assigned to each node, using the chosen LabelSource. Nodes without an OTU (or
+ * whose OTU lacks the chosen property) are written unlabeled. Labels are quoted by LabelEncoder.NEWICK, following the
+ * same rules as GeneralUtils.newickName().</p>
+ *
+ * @author cody
+ *
+ */
+public class NewickWriter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The property of a node's OTU used as its label.
+	 */
+	public enum LabelSource {
+
+		/**
+		 * The ott id of the OTU (ot:ottId).
+		 */
+		OTT_ID,
+
+		/**
+		 * The label of the OTU, as returned by NexsonOTU.getLabel(): the ott taxon name if there is one, otherwise the
+		 * original label.
+		 */
+		OTU_LABEL,
+
+		/**
+		 * The label originally assigned to the OTU by the study authors (ot:originalLabel).
+		 */
+		ORIGINAL_LABEL
+	}
+
+	private LabelSource labelSource = LabelSource.OTU_LABEL;
+	private boolean includeBranchLengths = true;
+
+	// reused for formatting numbers, so that they are appended without creating strings
+	private final StringBuilder numberBuffer = new StringBuilder(32);
+
+	/**
+	 * Create a NewickWriter that labels nodes with their OTU labels and includes branch lengths.
+	 */
+	public NewickWriter() { }
+
+	/**
+	 * Create a NewickWriter with the specified label source and branch length setting.
+	 * @param labelSource
+	 * @param includeBranchLengths
+	 */
+	public NewickWriter(LabelSource labelSource, boolean includeBranchLengths) {
+		this.labelSource = labelSource;
+		this.includeBranchLengths = includeBranchLengths;
+	}
+
+	// ### getters
+
+	public LabelSource getLabelSource() {
+		return labelSource;
+	}
+
+	public boolean isIncludeBranchLengths() {
+		return includeBranchLengths;
+	}
+
+	// ### setters
+
+	public void setLabelSource(LabelSource labelSource) {
+		this.labelSource = labelSource;
+	}
+
+	public void setIncludeBranchLengths(boolean includeBranchLengths) {
+		this.includeBranchLengths = includeBranchLengths;
+	}
+
+	// ### writing
+
+	/**
+	 * Write the tree, followed by a semicolon, to the provided Appendable. Nothing is written for an empty tree.
+	 * @param tree
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(NexsonTree tree, Appendable out) throws IOException {
+		if (tree.getRoot() != null) {
+			writeSubtree(tree.getRoot(), out);
+			out.append(';');
+		}
+	}
+
+	/**
+	 * Write the tree, followed by a semicolon, to the provided Appendable. Nothing is written for an empty tree.
+	 * @param tree
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(CompactNexsonTree tree, Appendable out) throws IOException {
+		if (tree.getNodeCount() > 0) {
+			writeSubtree(tree, tree.getRootIndex(), out);
+			out.append(';');
+		}
+	}
+
+	/**
+	 * Write the tree, followed by a semicolon, to the provided OutputStream as UTF-8. The stream is flushed but not
+	 * closed.
+	 * @param tree
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(NexsonTree tree, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+		write(tree, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Return the Newick string for the tree, including the final semicolon.
+	 * @param tree
+	 * @return
+	 */
+	public String toNewick(NexsonTree tree) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			write(tree, sb);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); // StringBuilder does not throw IOException
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Return the Newick string for the subtree below (and including) the provided node, without a final semicolon.
+	 * @param node
+	 * @return
+	 */
+	public String subtreeToNewick(TreeNode node) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			writeSubtree(node, sb);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); // StringBuilder does not throw IOException
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write the subtree below (and including) the provided node, without a final semicolon. The nodes must have their
+	 * parent links set, as they are for trees read from NexSON.
+	 * @param start
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeSubtree(TreeNode start, Appendable out) throws IOException {
+
+		// childIndex[d] is the index of the child being written at nesting depth d
+		int[] childIndex = new int[64];
+		int depth = 0;
+		TreeNode node = start;
+
+		while (true) {
+
+			// descend to the first leaf, opening a parenthesis at each internal node on the way
+			while (node.getChildCount() > 0) {
+				out.append('(');
+				if (depth == childIndex.length) {
+					int[] grown = new int[depth * 2];
+					System.arraycopy(childIndex, 0, grown, 0, depth);
+					childIndex = grown;
+				}
+				childIndex[depth++] = 0;
+				node = node.getChild(0);
+			}
+
+			// write the leaf, then close every node whose last child we have just finished
+			writeNode(node, out);
+			while (depth > 0) {
+				TreeNode parent = node.getParent();
+				int next = childIndex[depth - 1] + 1;
+				if (next < parent.getChildCount()) {
+					out.append(',');
+					childIndex[depth - 1] = next;
+					node = parent.getChild(next);
+					break;
+				}
+				out.append(')');
+				depth--;
+				node = parent;
+				writeNode(node, out);
+			}
+			if (depth == 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write the subtree of the compact tree below (and including) the node with the specified index, without a final
+	 * semicolon. This uses the sibling links of the compact tree, so it needs no stack at all.
+	 * @param tree
+	 * @param start
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeSubtree(CompactNexsonTree tree, int start, Appendable out) throws IOException {
+
+		int node = start;
+		while (true) {
+			while (tree.getFirstChildIndex(node) >= 0) {
+				out.append('(');
+				node = tree.getFirstChildIndex(node);
+			}
+			writeNode(tree.getOTU(node), tree.getBranchLength(node), out);
+			while (node != start) {
+				int sibling = tree.getNextSiblingIndex(node);
+				if (sibling >= 0) {
+					out.append(',');
+					node = sibling;
+					break;
+				}
+				out.append(')');
+				node = tree.getParentIndex(node);
+				writeNode(tree.getOTU(node), tree.getBranchLength(node), out);
+			}
+			if (node == start) {
+				return;
+			}
+		}
+	}
+
+	// ### labels and branch lengths
+
+	private void writeNode(TreeNode node, Appendable out) throws IOException {
+		if (node instanceof NexsonNode) {
+			Double length = ((NexsonNode) node).getParentBranchLength();
+			writeNode(((NexsonNode) node).getOTU(), length != null ? length : Double.NaN, out);
+		} else if (node instanceof CompactNexsonTree.Node) {
+			writeNode(((CompactNexsonTree.Node) node).getOTU(), node.getBL(), out);
+		} else {
+			Object label = node.getLabel();
+			if (label != null) {
+				appendLabel(String.valueOf(label), out);
+			}
+			if (includeBranchLengths) {
+				appendBranchLength(node.getBL(), out);
+			}
+		}
+	}
+
+	private void writeNode(NexsonOTU otu, double branchLength, Appendable out) throws IOException {
+		if (otu != null) {
+			Object label;
+			switch (labelSource) {
+			case OTT_ID:
+				label = otu.getProperty(OTVocabularyPredicate.OT_OTT_ID);
+				break;
+			case ORIGINAL_LABEL:
+				label = otu.getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL);
+				break;
+			default:
+				label = otu.getLabel();
+			}
+			if (label instanceof Long) {
+				numberBuffer.setLength(0);
+				numberBuffer.append(((Long) label).longValue());
+				out.append(numberBuffer);
+			} else if (label != null) {
+				appendLabel(label.toString(), out);
+			}
+		}
+		if (includeBranchLengths) {
+			appendBranchLength(branchLength, out);
+		}
+	}
+
+	private void appendBranchLength(double length, Appendable out) throws IOException {
+		if (! Double.isNaN(length)) {
+			numberBuffer.setLength(0);
+			numberBuffer.append(':').append(length);
+			out.append(numberBuffer);
+		}
+	}
+
+	private static void appendLabel(String label, Appendable out) throws IOException {
+		LabelEncoder.NEWICK.encode(label, out);
+	}
+}
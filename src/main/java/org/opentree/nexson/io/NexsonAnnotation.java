@@ -139,7 +139,7 @@ public class NexsonAnnotation {
 			} else if (key.equals("author")) {
 				setAuthor(new AnnotationAuthor((JSONObject) nexson.get(key)));
 
-			} else if (key.equals("setDateCreated")) {
+			} else if (key.equals("dateCreated")) {
 				setDateCreated((String) nexson.get(key));
 
 			} else if (key.equals("dateModified")) {
@@ -0,0 +1,374 @@
+package org.opentree.nexson.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Loads many NexSON study files concurrently on a bounded pool of worker threads.</p>
+ * <br/>
+ * <p>Results are handed back to the caller in completion order, either through an iterator or a listener that is called
+ * on the caller's thread. Parsed studies wait in a bounded queue until the caller takes them, and workers stop parsing
+ * while the queue is full, so a slow consumer limits the number of parsed studies held in memory at once.</p>
+ * <br/>
+ * <p>Each study is loaded independently: if a study cannot be read or parsed, its result records the exception and loading
+ * continues with the other studies. An Error thrown while loading a study (e.g. an OutOfMemoryError) is not a failure of
+ * that study: it stops the load, and is rethrown to the consumer when it asks for the next result.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonCorpusLoader {
+
+	private final int workerCount;
+	private final int queueCapacity;
+	private NexsonParseOptions parseOptions = new NexsonParseOptions();
+
+	/**
+	 * Create a loader using one worker per available processor, and a result queue twice that size.
+	 */
+	public NexsonCorpusLoader() {
+		this(Runtime.getRuntime().availableProcessors(), 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a loader using the specified number of worker threads. At most queueCapacity parsed studies will be held
+	 * waiting for the consumer (plus one per worker that has finished parsing and is waiting to hand its result over).
+	 * @param workerCount
+	 * @param queueCapacity
+	 */
+	public NexsonCorpusLoader(int workerCount, int queueCapacity) {
+		if (workerCount < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("The worker count and queue capacity must be positive");
+		}
+		this.workerCount = workerCount;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Set the options used to parse each study.
+	 * @param parseOptions
+	 */
+	public void setParseOptions(NexsonParseOptions parseOptions) {
+		this.parseOptions = parseOptions;
+	}
+
+	/**
+	 * Callback interface for receiving load results.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called once for each study, on the thread that called NexsonCorpusLoader.load().
+		 * @param result
+		 */
+		void studyLoaded(NexsonLoadResult result);
+	}
+
+	// ### loading
+
+	/**
+	 * Load all the .json files in the specified directory (and its subdirectories), passing each result to the listener.
+	 * Returns when all the studies have been loaded.
+	 * @param directory
+	 * @param listener
+	 * @return statistics for the load
+	 * @throws IOException if the directory cannot be listed
+	 */
+	public Statistics load(Path directory, Listener listener) throws IOException {
+		return load(findStudyFiles(directory), listener);
+	}
+
+	/**
+	 * Load the specified study files, passing each result to the listener. Returns when all the studies have been loaded.
+	 * @param files
+	 * @param listener
+	 * @return statistics for the load
+	 */
+	public Statistics load(Collection<Path> files, Listener listener) {
+		ResultIterator results = iterate(files);
+		try {
+			while (results.hasNext()) {
+				listener.studyLoaded(results.next());
+			}
+		} finally {
+			results.close();
+		}
+		return results.getStatistics();
+	}
+
+	/**
+	 * Start loading the specified study files and return an iterator over the results, in the order the studies finish
+	 * loading. The iterator should be closed if it is abandoned before it has been exhausted.
+	 * @param files
+	 * @return
+	 */
+	public ResultIterator iterate(Collection<Path> files) {
+		return new ResultIterator(new ArrayList<Path>(files));
+	}
+
+	/**
+	 * Return the .json (and gzip-compressed .json.gz) files in the specified directory and its subdirectories, sorted by
+	 * path.
+	 * @param directory
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Path> findStudyFiles(Path directory) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		addStudyFiles(directory, files);
+		Collections.sort(files);
+		return files;
+	}
+
+	private static void addStudyFiles(Path directory, List<Path> files) throws IOException {
+		DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+		try {
+			for (Path entry : entries) {
+				if (Files.isDirectory(entry)) {
+					addStudyFiles(entry, files);
+				} else if (isStudyFile(entry.getFileName().toString())) {
+					files.add(entry);
+				}
+			}
+		} finally {
+			entries.close();
+		}
+	}
+
+	private static boolean isStudyFile(String name) {
+		return name.endsWith(".json") || name.endsWith(".json.gz");
+	}
+
+	/**
+	 * Read and parse a single study, capturing any exception in the result. Errors are not caught.
+	 */
+	private NexsonLoadResult loadStudy(Path file) {
+		long start = System.nanoTime();
+		try {
+			NexsonSource source = new NexsonSource(file, parseOptions);
+			return new NexsonLoadResult(file, source, null, System.nanoTime() - start);
+		} catch (IOException ex) {
+			return new NexsonLoadResult(file, null, ex, System.nanoTime() - start);
+		} catch (RuntimeException ex) {
+			return new NexsonLoadResult(file, null, ex, System.nanoTime() - start);
+		}
+	}
+
+	/** queued by a worker that has thrown an Error, in place of its result. allocated up front, since memory may be short */
+	private static final NexsonLoadResult ABORTED = new NexsonLoadResult(null, null, null, 0);
+
+	// ### results
+
+	/**
+	 * An iterator over the results of a corpus load. Workers block when the result queue is full, so studies are only
+	 * parsed as fast as they are consumed.
+	 */
+	public class ResultIterator implements Iterator<NexsonLoadResult>, Closeable {
+
+		private final int total;
+		private final BlockingQueue<NexsonLoadResult> queue = new ArrayBlockingQueue<NexsonLoadResult>(queueCapacity);
+		private final ExecutorService workers;
+		private final Statistics statistics = new Statistics();
+		private int delivered = 0;
+		private boolean closed = false;
+
+		// the first Error thrown by a worker, which stops the load
+		private volatile Error fatal = null;
+
+		private ResultIterator(List<Path> files) {
+			this.total = files.size();
+			this.workers = Executors.newFixedThreadPool(workerCount, new WorkerThreadFactory());
+			statistics.start = System.nanoTime();
+			for (final Path file : files) {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							queue.put(loadStudy(file));
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt(); // the iterator was closed
+						} catch (Error err) {
+							abort(err);
+							throw err;
+						}
+					}
+				});
+			}
+			workers.shutdown();
+		}
+
+		/**
+		 * Stop the other workers, and wake the consumer so that it rethrows the error.
+		 */
+		private void abort(Error err) {
+			if (fatal == null) {
+				fatal = err;
+			}
+			workers.shutdownNow();
+			// the consumer will not take the remaining results, and the marker needs room
+			while (!queue.offer(ABORTED)) {
+				queue.clear();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !closed && delivered < total; // every file produces exactly one result, even if it fails
+		}
+
+		@Override
+		public NexsonLoadResult next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			NexsonLoadResult result;
+			try {
+				result = queue.take();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a study to load");
+			}
+			if (result == ABORTED) {
+				close();
+				throw fatal;
+			}
+			delivered++;
+			statistics.record(result);
+			if (delivered == total) {
+				statistics.end = System.nanoTime();
+			}
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Stop loading studies. Studies that are being parsed when this is called will be finished but not delivered.
+		 */
+		@Override
+		public void close() {
+			closed = true;
+			workers.shutdownNow();
+			if (statistics.end == 0) {
+				statistics.end = System.nanoTime();
+			}
+		}
+
+		/**
+		 * Return statistics for the results that have been delivered so far.
+		 * @return
+		 */
+		public Statistics getStatistics() {
+			return statistics;
+		}
+	}
+
+	/**
+	 * Summary statistics for a corpus load.
+	 */
+	public static class Statistics {
+
+		private int loaded = 0;
+		private int failed = 0;
+		private long totalParseNanos = 0;
+		private long start = 0;
+		private long end = 0;
+
+		private void record(NexsonLoadResult result) {
+			if (result.isSuccess()) {
+				loaded++;
+			} else {
+				failed++;
+			}
+			totalParseNanos += result.getParseNanos();
+		}
+
+		public int getStudiesLoaded() {
+			return loaded;
+		}
+
+		public int getStudiesFailed() {
+			return failed;
+		}
+
+		/**
+		 * The sum of the per-study parse times, in nanoseconds. With several workers this exceeds the elapsed time.
+		 * @return
+		 */
+		public long getTotalParseNanos() {
+			return totalParseNanos;
+		}
+
+		/**
+		 * The wall clock time from the start of the load until the last result was delivered, in nanoseconds.
+		 * @return
+		 */
+		public long getElapsedNanos() {
+			return (end != 0 ? end : System.nanoTime()) - start;
+		}
+
+		/**
+		 * The number of studies (loaded or failed) delivered per second of elapsed time.
+		 * @return
+		 */
+		public double getStudiesPerSecond() {
+			long elapsed = getElapsedNanos();
+			return elapsed > 0 ? (loaded + failed) / (elapsed / 1e9) : 0;
+		}
+
+		@Override
+		public String toString() {
+			return loaded + " studies loaded, " + failed + " failed in " + String.format("%.2f", getElapsedNanos() / 1e9) +
+					" s (" + String.format("%.1f", getStudiesPerSecond()) + " studies/s)";
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger poolNumber = new AtomicInteger(1);
+		private final int pool = poolNumber.getAndIncrement();
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "nexson-loader-" + pool + "-" + threadNumber.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Load all the studies in the directory given as the first argument and report timing.
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		NexsonCorpusLoader loader = new NexsonCorpusLoader();
+		Statistics stats = loader.load(Paths.get(args[0]), new Listener() {
+			@Override
+			public void studyLoaded(NexsonLoadResult result) {
+				System.out.println(result);
+			}
+		});
+		System.out.println(stats);
+	}
+}
@@ -0,0 +1,187 @@
+package org.opentree.nexson.io;
+
+import java.util.Arrays;
+
+import org.opentree.nexson.io.AnnotationMessage.MessageCode;
+
+/**
+ * <p>Collects the problems found while parsing NexSON leniently (see NexsonParseOptions.setStrict()), such as tips that
+ * are not mapped to any OTU. Each problem is recorded as a MessageCode, the study it was found in, the id of the element
+ * it concerns, and the offset of that element in the input (as reported by the tokenizer, so a byte offset for
+ * memory-mapped files), in parallel arrays that are allocated up front and doubled when they fill. Recording a problem
+ * does not build an exception, a message or a stack trace, so studies with thousands of problems are parsed as quickly
+ * as studies with none.</p>
+ * <br/>
+ * <p>A collector may be shared by several studies (by setting it on the NexsonParseOptions used to parse them), and trees
+ * parsed concurrently may record into it, so recording and reading are synchronized. The study of each problem is
+ * identified by its ot:studyId, or by the path of the file it was read from if its id was not known when the problem was
+ * found.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonDiagnostics {
+
+	/** the offset recorded for problems whose location in the input is not known */
+	public static final long NO_OFFSET = -1;
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private MessageCode[] codes;
+	private String[] studyIds;
+	private String[] elementIds;
+	private long[] offsets;
+	private int size = 0;
+
+	/**
+	 * Create a collector with room for 64 problems before it must grow.
+	 */
+	public NexsonDiagnostics() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a collector with room for the specified number of problems before it must grow.
+	 * @param capacity
+	 */
+	public NexsonDiagnostics(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be positive");
+		}
+		codes = new MessageCode[capacity];
+		studyIds = new String[capacity];
+		elementIds = new String[capacity];
+		offsets = new long[capacity];
+	}
+
+	// ### recording
+
+	/**
+	 * Record a problem whose study is not known.
+	 * @param code
+	 * @param elementId the id of the element the problem concerns, or null if it has none
+	 * @param offset the offset of the element in the input, or NO_OFFSET if it is not known
+	 */
+	public void add(MessageCode code, String elementId, long offset) {
+		add(code, null, elementId, offset);
+	}
+
+	/**
+	 * Record a problem.
+	 * @param code
+	 * @param studyId the id of the study the problem was found in (or the path of its file), or null if it is not known
+	 * @param elementId the id of the element the problem concerns, or null if it has none
+	 * @param offset the offset of the element in the input, or NO_OFFSET if it is not known
+	 */
+	public synchronized void add(MessageCode code, String studyId, String elementId, long offset) {
+		if (size == codes.length) {
+			int capacity = size * 2;
+			codes = Arrays.copyOf(codes, capacity);
+			studyIds = Arrays.copyOf(studyIds, capacity);
+			elementIds = Arrays.copyOf(elementIds, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+		codes[size] = code;
+		studyIds[size] = studyId;
+		elementIds[size] = elementId;
+		offsets[size] = offset;
+		size++;
+	}
+
+	/**
+	 * Discard the recorded problems, keeping the space allocated for them.
+	 */
+	public synchronized void clear() {
+		Arrays.fill(studyIds, 0, size, null);
+		Arrays.fill(elementIds, 0, size, null);
+		size = 0;
+	}
+
+	// ### getters
+
+	/**
+	 * Return the number of problems recorded.
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized MessageCode getCode(int i) {
+		checkIndex(i);
+		return codes[i];
+	}
+
+	/**
+	 * Return the id of the study the i'th problem was found in, the path of its file if its id was not known, or null.
+	 * @param i
+	 * @return
+	 */
+	public synchronized String getStudyId(int i) {
+		checkIndex(i);
+		return studyIds[i];
+	}
+
+	public synchronized String getElementId(int i) {
+		checkIndex(i);
+		return elementIds[i];
+	}
+
+	/**
+	 * Return the offset of the element concerned by the i'th problem, or NO_OFFSET if it is not known.
+	 * @param i
+	 * @return
+	 */
+	public synchronized long getOffset(int i) {
+		checkIndex(i);
+		return offsets[i];
+	}
+
+	/**
+	 * Return the number of recorded problems with the specified code.
+	 * @param code
+	 * @return
+	 */
+	public synchronized int count(MessageCode code) {
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (codes[i] == code) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Return a one line description of the i'th problem, e.g. "TIP_WITHOUT_OTU node12 in pg_10 at offset 3456".
+	 * @param i
+	 * @return
+	 */
+	public synchronized String describe(int i) {
+		checkIndex(i);
+		return codes[i] + " " + elementIds[i] + (studyIds[i] == null ? "" : " in " + studyIds[i])
+				+ (offsets[i] == NO_OFFSET ? "" : " at offset " + offsets[i]);
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder s = new StringBuilder("NexsonDiagnostics [size=").append(size);
+		for (MessageCode code : MessageCode.values()) {
+			int count = count(code);
+			if (count > 0) {
+				s.append(", ").append(code).append('=').append(count);
+			}
+		}
+		return s.append(']').toString();
+	}
+}
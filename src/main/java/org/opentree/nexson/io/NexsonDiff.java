@@ -0,0 +1,454 @@
+package org.opentree.nexson.io;
+
+import jade.tree.TreeNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * <p>The differences between two versions of the same study: trees that were added, removed or modified, OTUs that were
+ * added or removed or whose ott ids changed, and changes to the study properties. For each tree present in both versions
+ * the diff records changes to the tree properties and to its topology, by node id: nodes that were added or removed,
+ * nodes that were moved to a different parent, and changes to branch lengths and OTU assignments.</p>
+ * <br/>
+ * <p>Elements are matched by their NexSON ids using hash maps, so the diff takes time linear in the size of the two
+ * studies. Trees that are being parsed lazily are only parsed if they are present in both versions, and are then parsed
+ * into copies that are discarded once compared (see NexsonSource.getTreeWithoutRetaining()), so the diff neither keeps
+ * them in memory nor modifies either study. All lists of changes are in the order of the new version (for additions and
+ * changes) or the old version (for removals), so a diff of the same two studies is always the same.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonDiff {
+
+	private final List<PropertyChange> studyPropertyChanges;
+	private final List<String> addedOTUs = new ArrayList<String>();
+	private final List<String> removedOTUs = new ArrayList<String>();
+	private final List<Change> ottIdRemaps = new ArrayList<Change>();
+	private final List<String> addedTrees = new ArrayList<String>();
+	private final List<String> removedTrees = new ArrayList<String>();
+	private final List<TreeDiff> modifiedTrees = new ArrayList<TreeDiff>();
+
+	/**
+	 * Compute the differences between the old and new versions of a study.
+	 * @param oldSource
+	 * @param newSource
+	 */
+	public NexsonDiff(NexsonSource oldSource, NexsonSource newSource) {
+		studyPropertyChanges = compareProperties(oldSource, newSource);
+		compareOTUs(oldSource, newSource);
+		compareTrees(oldSource, newSource);
+	}
+
+	// ### getters
+
+	public List<PropertyChange> getStudyPropertyChanges() {
+		return studyPropertyChanges;
+	}
+
+	/**
+	 * Return the ids of the OTUs present only in the new version.
+	 * @return
+	 */
+	public List<String> getAddedOTUs() {
+		return addedOTUs;
+	}
+
+	/**
+	 * Return the ids of the OTUs present only in the old version.
+	 * @return
+	 */
+	public List<String> getRemovedOTUs() {
+		return removedOTUs;
+	}
+
+	/**
+	 * Return the OTUs present in both versions whose ott ids differ. The id of each change is the OTU id, and the old and
+	 * new values are the ott ids (Longs, or null if the OTU had no ott id in that version).
+	 * @return
+	 */
+	public List<Change> getOttIdRemaps() {
+		return ottIdRemaps;
+	}
+
+	/**
+	 * Return the ids of the trees present only in the new version.
+	 * @return
+	 */
+	public List<String> getAddedTrees() {
+		return addedTrees;
+	}
+
+	/**
+	 * Return the ids of the trees present only in the old version.
+	 * @return
+	 */
+	public List<String> getRemovedTrees() {
+		return removedTrees;
+	}
+
+	/**
+	 * Return the differences for each tree present in both versions that has changed.
+	 * @return
+	 */
+	public List<TreeDiff> getModifiedTrees() {
+		return modifiedTrees;
+	}
+
+	/**
+	 * Return true if the two versions do not differ in any of the ways recorded by this diff.
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return studyPropertyChanges.isEmpty() && addedOTUs.isEmpty() && removedOTUs.isEmpty() && ottIdRemaps.isEmpty()
+				&& addedTrees.isEmpty() && removedTrees.isEmpty() && modifiedTrees.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "NexsonDiff [studyPropertyChanges=" + studyPropertyChanges.size() + ", addedOTUs=" + addedOTUs.size()
+				+ ", removedOTUs=" + removedOTUs.size() + ", ottIdRemaps=" + ottIdRemaps.size() + ", addedTrees=" + addedTrees
+				+ ", removedTrees=" + removedTrees + ", modifiedTrees=" + modifiedTrees + "]";
+	}
+
+	// ### change types
+
+	/**
+	 * A change to a value associated with the element with a given id. Either value may be null, e.g. when a value was
+	 * added or removed.
+	 */
+	public static class Change {
+
+		private final String id;
+		private final Object oldValue;
+		private final Object newValue;
+
+		Change(String id, Object oldValue, Object newValue) {
+			this.id = id;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public Object getOldValue() {
+			return oldValue;
+		}
+
+		public Object getNewValue() {
+			return newValue;
+		}
+
+		@Override
+		public String toString() {
+			return id + ": " + oldValue + " -> " + newValue;
+		}
+	}
+
+	/**
+	 * A change to the value of a property of the element with a given id.
+	 */
+	public static class PropertyChange extends Change {
+
+		private final String property;
+		private final boolean added;
+		private final boolean removed;
+
+		PropertyChange(String id, String property, Object oldValue, Object newValue, boolean added, boolean removed) {
+			super(id, oldValue, newValue);
+			this.property = property;
+			this.added = added;
+			this.removed = removed;
+		}
+
+		public String getProperty() {
+			return property;
+		}
+
+		/**
+		 * Return true if the property was not set in the old version.
+		 * @return
+		 */
+		public boolean isAdded() {
+			return added;
+		}
+
+		/**
+		 * Return true if the property is not set in the new version.
+		 * @return
+		 */
+		public boolean isRemoved() {
+			return removed;
+		}
+
+		@Override
+		public String toString() {
+			return getId() + " " + property + ": " + (added ? "(unset)" : getOldValue()) + " -> " + (removed ? "(unset)" : getNewValue());
+		}
+	}
+
+	/**
+	 * The differences between the old and new versions of a tree, by node id.
+	 */
+	public static class TreeDiff {
+
+		private final String treeId;
+		private List<PropertyChange> propertyChanges = Collections.emptyList();
+		private final List<String> addedNodes = new ArrayList<String>();
+		private final List<String> removedNodes = new ArrayList<String>();
+		private final List<Change> movedNodes = new ArrayList<Change>();
+		private final List<Change> branchLengthChanges = new ArrayList<Change>();
+		private final List<Change> otuChanges = new ArrayList<Change>();
+
+		TreeDiff(String treeId) {
+			this.treeId = treeId;
+		}
+
+		public String getTreeId() {
+			return treeId;
+		}
+
+		public List<PropertyChange> getPropertyChanges() {
+			return propertyChanges;
+		}
+
+		/**
+		 * Return the ids of the nodes present only in the new version of the tree.
+		 * @return
+		 */
+		public List<String> getAddedNodes() {
+			return addedNodes;
+		}
+
+		/**
+		 * Return the ids of the nodes present only in the old version of the tree.
+		 * @return
+		 */
+		public List<String> getRemovedNodes() {
+			return removedNodes;
+		}
+
+		/**
+		 * Return the nodes present in both versions whose parents differ. The old and new values are the ids of the parent
+		 * nodes (null for the root).
+		 * @return
+		 */
+		public List<Change> getMovedNodes() {
+			return movedNodes;
+		}
+
+		/**
+		 * Return the nodes present in both versions whose parent branch lengths differ. The old and new values are Doubles
+		 * (null if the node had no branch length in that version).
+		 * @return
+		 */
+		public List<Change> getBranchLengthChanges() {
+			return branchLengthChanges;
+		}
+
+		/**
+		 * Return the nodes present in both versions that are assigned to different OTUs. The old and new values are the
+		 * ids of the OTUs (null if the node had no OTU in that version).
+		 * @return
+		 */
+		public List<Change> getOTUChanges() {
+			return otuChanges;
+		}
+
+		/**
+		 * Return true if the topology of the tree differs between the versions: nodes were added, removed or moved.
+		 * @return
+		 */
+		public boolean hasTopologyChanges() {
+			return ! (addedNodes.isEmpty() && removedNodes.isEmpty() && movedNodes.isEmpty());
+		}
+
+		public boolean isEmpty() {
+			return propertyChanges.isEmpty() && ! hasTopologyChanges() && branchLengthChanges.isEmpty() && otuChanges.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return treeId + " [propertyChanges=" + propertyChanges.size() + ", addedNodes=" + addedNodes.size()
+					+ ", removedNodes=" + removedNodes.size() + ", movedNodes=" + movedNodes.size() + ", branchLengthChanges="
+					+ branchLengthChanges.size() + ", otuChanges=" + otuChanges.size() + "]";
+		}
+	}
+
+	// ### comparison
+
+	private static List<PropertyChange> compareProperties(NexsonElement oldElement, NexsonElement newElement) {
+
+		Map<String, Object> oldProperties = oldElement.properties != null ? oldElement.properties : Collections.<String, Object>emptyMap();
+		Map<String, Object> newProperties = newElement.properties != null ? newElement.properties : Collections.<String, Object>emptyMap();
+		List<PropertyChange> changes = new ArrayList<PropertyChange>();
+		String id = newElement.getId();
+
+		for (Entry<String, Object> entry : newProperties.entrySet()) {
+			String property = entry.getKey();
+			if (! oldProperties.containsKey(property)) {
+				changes.add(new PropertyChange(id, property, null, entry.getValue(), true, false));
+			} else {
+				Object oldValue = oldProperties.get(property);
+				if (! valuesEqual(oldValue, entry.getValue())) {
+					changes.add(new PropertyChange(id, property, oldValue, entry.getValue(), false, false));
+				}
+			}
+		}
+		for (Entry<String, Object> entry : oldProperties.entrySet()) {
+			if (! newProperties.containsKey(entry.getKey())) {
+				changes.add(new PropertyChange(id, entry.getKey(), entry.getValue(), null, false, true));
+			}
+		}
+		return changes;
+	}
+
+	private void compareOTUs(NexsonSource oldSource, NexsonSource newSource) {
+
+		Map<String, NexsonOTU> oldOTUs = new HashMap<String, NexsonOTU>(oldSource.getOTUCount() * 2);
+		for (NexsonOTU otu : oldSource.getOTUList()) {
+			oldOTUs.put(otu.getId(), otu);
+		}
+
+		Map<String, NexsonOTU> newOTUs = new HashMap<String, NexsonOTU>(newSource.getOTUCount() * 2);
+		for (NexsonOTU otu : newSource.getOTUList()) {
+			newOTUs.put(otu.getId(), otu);
+			NexsonOTU oldOTU = oldOTUs.get(otu.getId());
+			if (oldOTU == null) {
+				addedOTUs.add(otu.getId());
+			} else {
+				Object oldOttId = oldOTU.getProperty(OTVocabularyPredicate.OT_OTT_ID);
+				Object newOttId = otu.getProperty(OTVocabularyPredicate.OT_OTT_ID);
+				if (! valuesEqual(oldOttId, newOttId)) {
+					ottIdRemaps.add(new Change(otu.getId(), oldOttId, newOttId));
+				}
+			}
+		}
+
+		for (NexsonOTU otu : oldSource.getOTUList()) {
+			if (! newOTUs.containsKey(otu.getId())) {
+				removedOTUs.add(otu.getId());
+			}
+		}
+	}
+
+	private void compareTrees(NexsonSource oldSource, NexsonSource newSource) {
+
+		// match the trees by id without parsing any lazy trees
+		Map<String, Integer> oldIndexes = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < oldSource.getTreeCount(); i++) {
+			oldIndexes.put(oldSource.getTreeId(i), i);
+		}
+
+		Map<String, Integer> newIndexes = new HashMap<String, Integer>();
+		for (int i = 0; i < newSource.getTreeCount(); i++) {
+			String treeId = newSource.getTreeId(i);
+			newIndexes.put(treeId, i);
+			Integer oldIndex = oldIndexes.get(treeId);
+			if (oldIndex == null) {
+				addedTrees.add(treeId);
+			} else {
+				TreeDiff treeDiff = compareTree(oldSource.getTreeWithoutRetaining(oldIndex), newSource.getTreeWithoutRetaining(i));
+				if (! treeDiff.isEmpty()) {
+					modifiedTrees.add(treeDiff);
+				}
+			}
+		}
+
+		for (String treeId : oldIndexes.keySet()) {
+			if (! newIndexes.containsKey(treeId)) {
+				removedTrees.add(treeId);
+			}
+		}
+	}
+
+	private static TreeDiff compareTree(NexsonTree oldTree, NexsonTree newTree) {
+
+		TreeDiff diff = new TreeDiff(newTree.getId());
+		diff.propertyChanges = compareProperties(oldTree, newTree);
+
+		List<NexsonNode> oldNodes = nodesInPreorder(oldTree);
+		Map<String, NexsonNode> oldNodesById = new HashMap<String, NexsonNode>(oldNodes.size() * 2);
+		for (NexsonNode node : oldNodes) {
+			oldNodesById.put(node.getId(), node);
+		}
+
+		List<NexsonNode> newNodes = nodesInPreorder(newTree);
+		Map<String, NexsonNode> newNodesById = new HashMap<String, NexsonNode>(newNodes.size() * 2);
+		for (NexsonNode node : newNodes) {
+			newNodesById.put(node.getId(), node);
+			NexsonNode oldNode = oldNodesById.get(node.getId());
+			if (oldNode == null) {
+				diff.addedNodes.add(node.getId());
+				continue;
+			}
+
+			String oldParent = idOf(oldNode.getParent());
+			String newParent = idOf(node.getParent());
+			if (! valuesEqual(oldParent, newParent)) {
+				diff.movedNodes.add(new Change(node.getId(), oldParent, newParent));
+			}
+
+			Double oldLength = oldNode.getParentBranchLength();
+			Double newLength = node.getParentBranchLength();
+			if (! valuesEqual(oldLength, newLength)) {
+				diff.branchLengthChanges.add(new Change(node.getId(), oldLength, newLength));
+			}
+
+			String oldOTU = oldNode.getOTU() != null ? oldNode.getOTU().getId() : null;
+			String newOTU = node.getOTU() != null ? node.getOTU().getId() : null;
+			if (! valuesEqual(oldOTU, newOTU)) {
+				diff.otuChanges.add(new Change(node.getId(), oldOTU, newOTU));
+			}
+		}
+
+		for (NexsonNode node : oldNodes) {
+			if (! newNodesById.containsKey(node.getId())) {
+				diff.removedNodes.add(node.getId());
+			}
+		}
+		return diff;
+	}
+
+	// ### utility
+
+	private static List<NexsonNode> nodesInPreorder(NexsonTree tree) {
+		List<NexsonNode> nodes = new ArrayList<NexsonNode>();
+		for (TreeNode node : new NodeTraversal(tree.getRoot(), NodeTraversal.Order.PREORDER, NodeTraversal.Filter.ALL)) {
+			nodes.add((NexsonNode) node);
+		}
+		return nodes;
+	}
+
+	private static String idOf(TreeNode node) {
+		return node != null ? ((NexsonNode) node).getId() : null;
+	}
+
+	/**
+	 * Compare two property values. Integral numbers are compared by value regardless of their type, since the same value
+	 * may be parsed as an Integer or a Long depending on how the NexSON was read.
+	 */
+	private static boolean valuesEqual(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		if (isIntegral(a) && isIntegral(b)) {
+			return ((Number) a).longValue() == ((Number) b).longValue();
+		}
+		return a.equals(b);
+	}
+
+	private static boolean isIntegral(Object value) {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+}
@@ -4,8 +4,8 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -18,8 +18,16 @@ public abstract class NexsonElement {
 
 	protected String id = null;
 	protected boolean deprecatedStatus = false;
-	protected Map<String, Object> properties = new HashMap<String, Object>();
-	protected List<NexsonAnnotation> annotations = new ArrayList<NexsonAnnotation>();
+	
+	// properties are kept in a compact array-backed map keyed by NexsonPropertyKeys (see CompactPropertyMap), although a
+	// subclass may replace it with any map. both the properties and the annotations are null until the first one is added
+	// (or until they are requested), since most nodes have few or none.
+	protected Map<String, Object> properties = null;
+	protected List<NexsonAnnotation> annotations = null;
+
+	// annotations as they were read by a parser, decoded into NexsonAnnotations when they are first requested. both
+	// annotation fields are guarded by this once the element has been published
+	protected List<RawAnnotation> rawAnnotations = null;
 	
 	/**
 	 * Each NexSON element extending this class should be able to parse incoming NexSON to populate the element itself.
@@ -45,26 +53,168 @@ public abstract class NexsonElement {
 	
 	// ## meta annotations
 	
-	public List<NexsonAnnotation> getAnnotations() {
+	/**
+	 * Return the annotations of this element. The list is the element's own, so annotations may be added to it directly.
+	 * Annotations read from NexSON are held undecoded until this is first called, and are decoded all at once here.
+	 * Reads and changes of the list itself are not synchronized, so an element shared between threads should not be
+	 * modified through it.
+	 * @return
+	 */
+	public synchronized List<NexsonAnnotation> getAnnotations() {
+		if (rawAnnotations != null) {
+			decodeAnnotations();
+		}
+		if (annotations == null) {
+			annotations = new ArrayList<NexsonAnnotation>(2);
+		}
 		return annotations;
 	}
 	
-	public void addAnnotation(NexsonAnnotation annotation) {
+	/**
+	 * Return the number of annotations on this element, without decoding them.
+	 * @return
+	 */
+	public synchronized int getAnnotationCount() {
+		int count = annotations == null ? 0 : annotations.size();
+		return rawAnnotations == null ? count : count + rawAnnotations.size();
+	}
+	
+	public synchronized void addAnnotation(NexsonAnnotation annotation) {
+		if (rawAnnotations != null) {
+			decodeAnnotations(); // keep the annotations in the order they were added
+		}
 		if (annotation != null) {
+			if (annotations == null) {
+				annotations = new ArrayList<NexsonAnnotation>(2);
+			}
 			annotations.add(annotation);
 		} else {
 			throw new java.lang.IllegalArgumentException("attempt to add a null annotation");
 		}
 	}
 		
+	/**
+	 * Record an annotation to be decoded when the annotations of this element are first requested.
+	 * @param annotation
+	 */
+	synchronized void addRawAnnotation(RawAnnotation annotation) {
+		if (rawAnnotations == null) {
+			rawAnnotations = new ArrayList<RawAnnotation>(2);
+		}
+		rawAnnotations.add(annotation);
+	}
+	
+	// called with the lock held
+	private void decodeAnnotations() {
+		List<RawAnnotation> raw = rawAnnotations;
+		List<NexsonAnnotation> decoded = new ArrayList<NexsonAnnotation>(raw.size() + (annotations == null ? 0 : annotations.size()));
+		if (annotations != null) {
+			decoded.addAll(annotations);
+		}
+		for (RawAnnotation r : raw) {
+			decoded.add(new NexsonAnnotation(r.decode()));
+		}
+		annotations = decoded;
+		rawAnnotations = null;
+	}
+	
+	/**
+	 * Return the number of bytes of NexSON held for annotations that have not been decoded yet. Used by
+	 * NexsonSourceCache to estimate the size of a study.
+	 * @return
+	 */
+	synchronized long getUndecodedAnnotationBytes() {
+		long bytes = 0;
+		if (rawAnnotations != null) {
+			for (RawAnnotation r : rawAnnotations) {
+				bytes += r.getLength();
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * The NexSON of an ot:annotation meta element that has not been decoded yet: either a copy of its UTF-8 text, or
+	 * the JSONObject it was read into. The text is copied out of the parser's input, so that an undecoded annotation
+	 * does not keep the whole document in memory.
+	 */
+	static final class RawAnnotation {
+		
+		private final byte[] utf8;
+		private final JSONObject nexson;
+		
+		/**
+		 * An annotation whose meta element lies between the start and end offsets of a tokenizer that supports slicing.
+		 */
+		RawAnnotation(JSONTokenizer source, long start, long end) {
+			this.utf8 = source.copyUtf8(start, end);
+			this.nexson = null;
+		}
+		
+		/**
+		 * An annotation whose meta element has already been read into a JSONObject.
+		 */
+		RawAnnotation(JSONObject nexson) {
+			this.utf8 = null;
+			this.nexson = nexson;
+		}
+		
+		/**
+		 * Return the length of the text held for this annotation, or 0 if it has already been read into a JSONObject.
+		 */
+		int getLength() {
+			return utf8 != null ? utf8.length : 0;
+		}
+		
+		JSONObject decode() {
+			if (nexson != null) {
+				return nexson;
+			}
+			JSONTokenizer tokenizer = new Utf8JSONTokenizer(ByteBuffer.wrap(utf8));
+			tokenizer.next();
+			return (JSONObject) tokenizer.readValue();
+		}
+	}
+		
 	// ## meta properties
 
+	/**
+	 * Returns a live view of the properties of this element. Changes made through the map are reflected in the element.
+	 * @return
+	 */
 	public Map<String, Object> getProperties() {
+		if (properties == null) {
+			properties = new CompactPropertyMap();
+		}
 		return properties;
 	}
 	
+	/**
+	 * Return the properties as a CompactPropertyMap, allowing access by NexsonPropertyKeys key, or null if there are none
+	 * yet (and create is false) or a subclass has replaced the map.
+	 */
+	private CompactPropertyMap compactProperties(boolean create) {
+		if (properties == null && create) {
+			properties = new CompactPropertyMap();
+		}
+		return properties instanceof CompactPropertyMap ? (CompactPropertyMap) properties : null;
+	}
+	
 	public boolean hasProperty(String propertyName) {
-		return properties.containsKey(propertyName);
+		return properties != null && properties.containsKey(propertyName);
+	}
+	
+	/**
+	 * Equivalent to hasProperty(predicate.propertyName()), but avoids looking up the property name.
+	 * @param predicate
+	 * @return
+	 */
+	public boolean hasProperty(OTVocabularyPredicate predicate) {
+		CompactPropertyMap compact = compactProperties(false);
+		if (compact != null) {
+			return compact.containsKey(NexsonPropertyKeys.keyFor(predicate));
+		}
+		return hasProperty(predicate.propertyName());
 	}
 	
 	/**
@@ -73,11 +223,23 @@ public abstract class NexsonElement {
 	 * @return
 	 */
 	public Object getProperty(String propertyName) {
-		if (hasProperty(propertyName)) {
-			return properties.get(propertyName);
-		} else {
+		if (properties == null) {
 			return null;
 		}
+		return properties.get(propertyName);
+	}
+
+	/**
+	 * Equivalent to getProperty(predicate.propertyName()), but avoids looking up the property name.
+	 * @param predicate
+	 * @return
+	 */
+	public Object getProperty(OTVocabularyPredicate predicate) {
+		CompactPropertyMap compact = compactProperties(false);
+		if (compact != null) {
+			return compact.get(NexsonPropertyKeys.keyFor(predicate));
+		}
+		return getProperty(predicate.propertyName());
 	}
 
 	/**
@@ -110,11 +272,25 @@ public abstract class NexsonElement {
 	 */
 	public void setProperty(String propertyName, Object value) {
 		if (propertyName != null) {
-			properties.put(propertyName, value);
+			getProperties().put(propertyName, value);
 		} else {
 			throw new java.lang.IllegalArgumentException("Attempt to add a property with name==null");
 		}
 	}
+
+	/**
+	 * Equivalent to setProperty(predicate.propertyName(), value), but avoids looking up the property name.
+	 * @param predicate
+	 * @param value
+	 */
+	public void setProperty(OTVocabularyPredicate predicate, Object value) {
+		CompactPropertyMap compact = compactProperties(true);
+		if (compact != null) {
+			compact.put(NexsonPropertyKeys.keyFor(predicate), value);
+		} else {
+			properties.put(predicate.propertyName(), value);
+		}
+	}
 	
 	// ## deprecation
 	
@@ -140,7 +316,7 @@ public abstract class NexsonElement {
 		try {
 			setId((String)rootElement.get("@id"));
 		} catch (NullPointerException ex) {
-			throw new NexsonParseException("Attempt to add a null source id near: " + rootElement.toJSONString().substring(0, 200));
+			throw new NexsonParseException("Attempt to add a null source id to an element with keys " + rootElement.keySet());
 		}
 
 		// Process and store study-level metadata and annotations
@@ -241,7 +417,7 @@ public abstract class NexsonElement {
 
 				if (propertyName.equals(OTVocabularyObject.OT_ANNOTATION.propertyName())) { // annotations
 
-					addAnnotation(new NexsonAnnotation(j));
+					addRawAnnotation(new RawAnnotation(j));
 					
 				} else { // simple properties
 					
@@ -251,17 +427,29 @@ public abstract class NexsonElement {
 						value = j.get("@href");
 					}
 
-					// check tags to see if this element has been marked for deletion
-					if (propertyName.equals(OTVocabularyPredicate.OT_TAG.propertyName()) && value != null) {
-						if (String.valueOf(value).startsWith("del")) {
-							deprecatedStatus = true;
-						}
-					}
-					
-					// record the property
-					setProperty(propertyName, value);
+					addMetadataProperty(propertyName, value);
 				}
 			}
 		}
 	}
+	
+	/**
+	 * Record a simple (non-annotation) metadata property for this element, and check tags to see if the element has been
+	 * marked for deletion. Used by both the json-simple and the streaming parsers so that they treat metadata identically.
+	 * 
+	 * @param propertyName
+	 * @param value
+	 */
+	protected void addMetadataProperty(String propertyName, Object value) {
+
+		// check tags to see if this element has been marked for deletion
+		if (propertyName.equals(OTVocabularyPredicate.OT_TAG.propertyName()) && value != null) {
+			if (String.valueOf(value).startsWith("del")) {
+				deprecatedStatus = true;
+			}
+		}
+		
+		// record the property
+		setProperty(propertyName, value);
+	}
 }
@@ -0,0 +1,173 @@
+package org.opentree.nexson.io;
+
+import jade.tree.TreeNode;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * <p>A read-only TreeNode view of a NexsonNode that also offers the JadeNode-style accessors (getName(), getObject(),
+ * assocObject() and hasAssocObject()), for code ported from JadeNode. Views are obtained from a NexsonJadeTree, and are
+ * created on demand as the tree is navigated: nothing is copied from the NexsonNode, and children and parents are
+ * returned as views of the underlying NexsonNodes. Two views of the same NexsonNode are equal.</p>
+ * <br/>
+ * <p>The view implements the TreeNode interface rather than extending JadeNode, so that no JadeNode method can run on
+ * state the view does not have. Code that requires actual JadeNode instances must build its own JadeTree.</p>
+ * <br/>
+ * <p>getObject() is backed by the properties of the NexsonNode and of its OTU (node properties take precedence), and also
+ * recognizes the "nexson_id" and "ingroup_start" keys that NexsonReader used to associate with the JadeNodes it built.
+ * Objects associated through assocObject() are held by the NexsonJadeTree, shadow the NexSON properties, and do not
+ * modify the NexsonNode. getName() returns the label of the node's OTU.</p>
+ * <br/>
+ * <p>The structure of the tree cannot be changed through a view: addChild() and removeChild() throw
+ * UnsupportedOperationException.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonJadeNode implements TreeNode {
+
+	private final NexsonJadeTree tree;
+	private final NexsonNode node;
+
+	NexsonJadeNode(NexsonJadeTree tree, NexsonNode node) {
+		this.tree = tree;
+		this.node = node;
+	}
+
+	// ### getters
+
+	/**
+	 * Return the NexsonNode presented by this view.
+	 * @return
+	 */
+	public NexsonNode getNexsonNode() {
+		return node;
+	}
+
+	@Override
+	public boolean isExternal() {
+		return node.isExternal();
+	}
+
+	@Override
+	public boolean isInternal() {
+		return node.isInternal();
+	}
+
+	@Override
+	public int getChildCount() {
+		return node.getChildCount();
+	}
+
+	@Override
+	public TreeNode getChild(int i) {
+		return tree.view((NexsonNode) node.getChild(i));
+	}
+
+	/**
+	 * Return an unmodifiable list of views of the children of the NexsonNode, which reflects later changes to them.
+	 */
+	@Override
+	public List<TreeNode> getChildren() {
+		return new AbstractList<TreeNode>() {
+			@Override
+			public TreeNode get(int i) {
+				return getChild(i);
+			}
+
+			@Override
+			public int size() {
+				return node.getChildCount();
+			}
+		};
+	}
+
+	@Override
+	public TreeNode getParent() {
+		return tree.view((NexsonNode) node.getParent());
+	}
+
+	/**
+	 * Return true if this node has no parent, as for JadeNodes. Note that NexsonNode.isTheRoot() instead reports whether
+	 * the NexSON designates the node as the root.
+	 */
+	@Override
+	public boolean isTheRoot() {
+		return node.getParent() == null;
+	}
+
+	/**
+	 * Return the length of the branch to this node's parent, or 0 if none was specified.
+	 */
+	@Override
+	public double getBL() {
+		Double length = node.getParentBranchLength();
+		return length == null ? 0 : length;
+	}
+
+	public String getName() {
+		NexsonOTU otu = node.getOTU();
+		return otu == null ? null : otu.getLabel();
+	}
+
+	@Override
+	public Object getLabel() {
+		return getName();
+	}
+
+	@Override
+	public String getNewick(boolean showBranchLengths) {
+		return new NewickWriter(NewickWriter.LabelSource.OTU_LABEL, showBranchLengths).subtreeToNewick(node);
+	}
+
+	public Object getObject(String key) {
+		Object associated = tree.getAssociatedObject(node, key);
+		if (associated != NexsonJadeTree.NOT_ASSOCIATED) {
+			return associated;
+		}
+		if (key.equals("nexson_id")) {
+			return node.getId();
+		} else if (key.equals("ingroup_start")) {
+			return node.isIngroupRoot() ? Boolean.TRUE : null;
+		}
+		Object value = node.getProperty(key);
+		if (value == null && node.getOTU() != null) {
+			value = node.getOTU().getProperty(key);
+		}
+		return value;
+	}
+
+	public boolean hasAssocObject(String key) {
+		return tree.getAssociatedObject(node, key) != NexsonJadeTree.NOT_ASSOCIATED || getObject(key) != null;
+	}
+
+	// ### setters
+
+	/**
+	 * Associate the object with this node, in the NexsonJadeTree rather than in the NexsonNode.
+	 */
+	public void assocObject(String key, Object value) {
+		tree.associateObject(node, key, value);
+	}
+
+	@Override
+	public boolean addChild(TreeNode child) {
+		throw new UnsupportedOperationException("NexsonJadeNode is a read-only view of a NexsonNode");
+	}
+
+	@Override
+	public boolean removeChild(TreeNode child) {
+		throw new UnsupportedOperationException("NexsonJadeNode is a read-only view of a NexsonNode");
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof NexsonJadeNode && ((NexsonJadeNode) other).node == node;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(node);
+	}
+}
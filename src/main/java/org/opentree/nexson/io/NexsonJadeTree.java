@@ -0,0 +1,177 @@
+package org.opentree.nexson.io;
+
+import jade.tree.NodeOrder;
+import jade.tree.Tree;
+import jade.tree.TreeBipartition;
+import jade.tree.TreeNode;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>A read-only Tree view of a parsed NexsonTree that also offers the JadeTree-style getProperty() and setProperty(),
+ * for code ported from JadeTree and JadeNode. The view implements the Tree interface rather than extending JadeTree, so
+ * that no JadeTree method can run on state the view does not have. The view does not copy the tree: its nodes are
+ * NexsonJadeNode views of the NexsonNodes, created as they are reached, and traversals and node counts are delegated to
+ * the NexsonTree. Obtain views with NexsonTree.asJadeTree().</p>
+ * <br/>
+ * <p>getProperty() is backed by the properties of the NexsonTree, and recognizes the "nexson_id" key that NexsonReader
+ * used to set on the JadeTrees it built. Values set through setProperty() (or associated with nodes through
+ * NexsonJadeNode.assocObject()) are held by this view, and do not modify the NexsonTree. Bipartitions are those of the
+ * NexsonTree, and so contain NexsonNodes rather than views.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonJadeTree implements Tree {
+
+	// returned by getAssociatedObject() for keys with no associated object, since null may be associated with a key
+	static final Object NOT_ASSOCIATED = new Object();
+
+	private final NexsonTree tree;
+
+	// created when first needed. guarded by this
+	private Map<String, Object> properties = null;
+	private Map<NexsonNode, Map<String, Object>> nodeObjects = null;
+
+	NexsonJadeTree(NexsonTree tree) {
+		this.tree = tree;
+	}
+
+	// ### getters
+
+	/**
+	 * Return the NexsonTree presented by this view.
+	 * @return
+	 */
+	public NexsonTree getNexsonTree() {
+		return tree;
+	}
+
+	@Override
+	public NexsonJadeNode getRoot() {
+		return view(tree.getRoot());
+	}
+
+	@Override
+	public Iterable<TreeNode> nodes(NodeOrder order) {
+		return views(tree.nodes(order));
+	}
+
+	@Override
+	public Iterable<TreeNode> internalNodes(NodeOrder order) {
+		return views(tree.internalNodes(order));
+	}
+
+	@Override
+	public Iterable<TreeNode> externalNodes() {
+		return views(tree.externalNodes());
+	}
+
+	@Override
+	public int internalNodeCount() {
+		return tree.internalNodeCount();
+	}
+
+	@Override
+	public int externalNodeCount() {
+		return tree.externalNodeCount();
+	}
+
+	@Override
+	public Iterable<TreeBipartition> bipartitions() {
+		return tree.bipartitions();
+	}
+
+	/**
+	 * Return the bipartition induced by the node, which may be either a view or a NexsonNode of this tree.
+	 */
+	@Override
+	public TreeBipartition getBipartition(TreeNode node) {
+		if (node instanceof NexsonJadeNode) {
+			node = ((NexsonJadeNode) node).getNexsonNode();
+		}
+		return tree.getBipartition(node);
+	}
+
+	public synchronized Object getProperty(String key) {
+		if (properties != null && properties.containsKey(key)) {
+			return properties.get(key);
+		}
+		if (key.equals("nexson_id")) {
+			return tree.getId();
+		}
+		return tree.getProperty(key);
+	}
+
+	// ### setters
+
+	/**
+	 * Set the property on this view, without modifying the NexsonTree.
+	 */
+	public synchronized void setProperty(String key, Object value) {
+		if (properties == null) {
+			properties = new HashMap<String, Object>();
+		}
+		properties.put(key, value);
+	}
+
+	// ### views
+
+	/**
+	 * Return the view of the node, or null if the node is null.
+	 */
+	NexsonJadeNode view(NexsonNode node) {
+		return node == null ? null : new NexsonJadeNode(this, node);
+	}
+
+	/**
+	 * Return the object associated with the key for the node through its views, or NOT_ASSOCIATED if there is none.
+	 */
+	synchronized Object getAssociatedObject(NexsonNode node, String key) {
+		Map<String, Object> objects = nodeObjects != null ? nodeObjects.get(node) : null;
+		return objects != null && objects.containsKey(key) ? objects.get(key) : NOT_ASSOCIATED;
+	}
+
+	/**
+	 * Associate the object with the key for the node.
+	 */
+	synchronized void associateObject(NexsonNode node, String key, Object value) {
+		if (nodeObjects == null) {
+			nodeObjects = new IdentityHashMap<NexsonNode, Map<String, Object>>();
+		}
+		Map<String, Object> objects = nodeObjects.get(node);
+		if (objects == null) {
+			objects = new HashMap<String, Object>();
+			nodeObjects.put(node, objects);
+		}
+		objects.put(key, value);
+	}
+
+	private Iterable<TreeNode> views(final Iterable<TreeNode> nodes) {
+		return new Iterable<TreeNode>() {
+			@Override
+			public Iterator<TreeNode> iterator() {
+				final Iterator<TreeNode> iter = nodes.iterator();
+				return new Iterator<TreeNode>() {
+					@Override
+					public boolean hasNext() {
+						return iter.hasNext();
+					}
+
+					@Override
+					public TreeNode next() {
+						return view((NexsonNode) iter.next());
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
@@ -0,0 +1,72 @@
+package org.opentree.nexson.io;
+
+import java.nio.file.Path;
+
+/**
+ * The outcome of loading a single study with a NexsonCorpusLoader. Exactly one of getSource() and getError() is
+ * non-null.
+ *
+ * @author cody
+ *
+ */
+public class NexsonLoadResult {
+
+	private final Path path;
+	private final NexsonSource source;
+	private final Throwable error;
+	private final long parseNanos;
+
+	NexsonLoadResult(Path path, NexsonSource source, Throwable error, long parseNanos) {
+		this.path = path;
+		this.source = source;
+		this.error = error;
+		this.parseNanos = parseNanos;
+	}
+
+	// ### getters
+
+	/**
+	 * The file the study was loaded from.
+	 * @return
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * The parsed study, or null if it could not be loaded.
+	 * @return
+	 */
+	public NexsonSource getSource() {
+		return source;
+	}
+
+	/**
+	 * The exception that prevented the study from being loaded, or null if it was loaded successfully.
+	 * @return
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	/**
+	 * The time spent reading and parsing this study, in nanoseconds.
+	 * @return
+	 */
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+	public double getParseMillis() {
+		return parseNanos / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return path + (isSuccess() ? " loaded" : " failed (" + error + ")") + " in " + String.format("%.1f", getParseMillis()) + " ms";
+	}
+}
@@ -1,27 +1,17 @@
 package org.opentree.nexson.io;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 import jade.tree.NodeOrder;
 import jade.tree.TreeNode;
 
 import org.json.simple.JSONObject;
+import org.opentree.nexson.io.AnnotationMessage.MessageCode;
 import org.opentree.properties.OTVocabularyPredicate;
 
 public class NexsonNode extends NexsonElement implements TreeNode {
 
-	// TODO incomplete new methods
-	
-	@Override
-	public String getNewick(boolean showBranchLengths) {
-		// TODO: should code this up
-		throw new UnsupportedOperationException();
-	}
-
-	// end incomplete new methods
-
 	private List<NexsonNode> children = new ArrayList<NexsonNode>();
 	private boolean isIngroupRoot = false;
 	private boolean isTreeRoot = false;
@@ -120,7 +110,7 @@ public class NexsonNode extends NexsonElement implements TreeNode {
 	public Object getLabel() {
 		Object label = null;
 		if (otu != null) {
-			label = otu.getProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+			label = otu.getProperty(OTVocabularyPredicate.OT_OTT_ID);
 		}
 		return label;
 	}
@@ -144,6 +134,10 @@ public class NexsonNode extends NexsonElement implements TreeNode {
 		this.isTreeRoot = isTreeRoot;
 	}
 	
+	public void setIsLeaf(boolean isLeaf) {
+		this.isLeaf = isLeaf;
+	}
+	
 	public void setParentTree(NexsonTree parentTree) {
 		this.parentTree = parentTree;
 	}
@@ -156,16 +150,22 @@ public class NexsonNode extends NexsonElement implements TreeNode {
 		this.otu = otu;
 	}
 
+	/**
+	 * Return the Newick string for the subtree below this node, labeling nodes with their OTU labels. For large trees,
+	 * use a NewickWriter to write the Newick directly to its destination instead.
+	 */
+	@Override
+	public String getNewick(boolean showBranchLengths) {
+		return new NewickWriter(NewickWriter.LabelSource.OTU_LABEL, showBranchLengths).subtreeToNewick(this);
+	}
+
     // ===== node iterators
 	
+	// These yield nodes lazily from an explicit stack, so they are safe on arbitrarily deep trees. In all cases the
+	// traversal includes this node itself.
+	
     public Iterable<TreeNode> getDescendantLeaves(NodeOrder order) {
-        LinkedList<TreeNode> leaves = new LinkedList<TreeNode>();
-    	for (TreeNode descendant : getDescendants(order)) {
-    		if (descendant.isExternal()) {
-    			leaves.add(descendant);
-    		}
-    	}
-    	return leaves;
+    	return new NodeTraversal(this, order, NodeTraversal.Filter.EXTERNAL);
     }
     
     public Iterable<TreeNode> getDescendantLeaves() {
@@ -177,27 +177,16 @@ public class NexsonNode extends NexsonElement implements TreeNode {
     }
     
     public Iterable<TreeNode> getDescendants(NodeOrder order) {
-        
-        LinkedList<TreeNode> nodes = new LinkedList<TreeNode>();
-        addDescendants((TreeNode) this, nodes, order);
-        return nodes;
+    	return new NodeTraversal(this, order, NodeTraversal.Filter.ALL);
     }
     
-    private void addDescendants(TreeNode n, List<TreeNode> children, NodeOrder order) {
-
-        if (order == NodeOrder.PREORDER) {
-            for (TreeNode c : n.getChildren()){
-                addDescendants(c, children, order);
-            }
-            children.add(n);
-
-        } else if (order == NodeOrder.POSTORDER) {
-            children.add(n);
-
-            for (TreeNode c : n.getChildren()){
-                addDescendants(c, children, order);
-            }
-        }
+    /**
+     * Return this node and its descendants in level order (breadth first): this node, then its children, then its
+     * grandchildren, and so on.
+     * @return
+     */
+    public Iterable<TreeNode> getDescendantsLevelOrder() {
+    	return new NodeTraversal(this, NodeTraversal.Order.LEVELORDER, NodeTraversal.Filter.ALL);
     }
     
 	// ### other stuff
@@ -205,18 +194,32 @@ public class NexsonNode extends NexsonElement implements TreeNode {
 	protected void parseNexson(JSONObject nexson) {
 		
 		processMetadata(nexson);
+		String otuId = (String)nexson.get("@otu");
+		completeParse(otuId, NexsonDiagnostics.NO_OFFSET);
+		checkOTUReference(otuId, NexsonDiagnostics.NO_OFFSET);
+	}
+	
+	/**
+	 * Finish setting up this node once its id and metadata have been recorded: identify whether it is the root or the
+	 * ingroup root of the parent tree, whether it is a leaf, and assign its OTU. Called by parseNexson and by the streaming
+	 * NexsonStreamReader. The parent tree's metadata must have been processed before this is called.
+	 * 
+	 * @param otuId the value of the @otu attribute of the incoming NexSON, or null if there was none
+	 * @param offset the offset of the node in the input, for diagnostics, or NexsonDiagnostics.NO_OFFSET
+	 */
+	void completeParse(String otuId, long offset) {
 		
 		// if this is ingroup root then record that
-		if (getId().equals((String) parentTree.getProperty(OTVocabularyPredicate.OT_INGROUP_CLADE.propertyName()))) {
+		if (getId().equals((String) parentTree.getProperty(OTVocabularyPredicate.OT_INGROUP_CLADE))) {
 			setIsIngroupRoot(true);
 		}
 
 		// identify the root if it has been specified
-		if (getId().equals((String) parentTree.getProperty(OTVocabularyPredicate.OT_SPECIFIED_ROOT.propertyName()))) {
+		if (getId().equals((String) parentTree.getProperty(OTVocabularyPredicate.OT_SPECIFIED_ROOT))) {
 			setIsTreeRoot(true);
 		}
 		
-		if (hasProperty(OTVocabularyPredicate.OT_IS_LEAF.propertyName())) {
+		if (hasProperty(OTVocabularyPredicate.OT_IS_LEAF)) {
 			isLeaf = true;
 		}
 
@@ -226,21 +229,37 @@ public class NexsonNode extends NexsonElement implements TreeNode {
 		if (parentTree != null && parentTree.getParentStudy() != null) {
 
 			// Some nodes have associated OTUs, others may not
-			String otuId = (String)nexson.get("@otu");
 			if (otuId != null) {				
 				assignOTU(parentTree.getParentStudy().getOTUById(otuId)); // will assign null if the parent study has no OTUs
 
 			} else if (isLeaf) { // fail case
-                NexsonParseException e = new NexsonParseException("The node " + getId() + " is identified as a leaf but has not been assigned an OTU.");
-                if (false)
-                    throw e;
-                else {
-                    // See https://github.com/OpenTreeOfLife/peyotl/issues/126
-                    // and https://github.com/OpenTreeOfLife/oti/issues/34  -JAR
-                    System.err.println(e);
-                    assignOTU(null);
-                }
+				// See https://github.com/OpenTreeOfLife/peyotl/issues/126
+				// and https://github.com/OpenTreeOfLife/oti/issues/34  -JAR
+				NexsonSource study = parentTree.getParentStudy();
+				if (study.isStrictParsing()) {
+					throw new NexsonParseException("The node " + getId() + " is identified as a leaf but has not been assigned an OTU.");
+				}
+				parentTree.recordProblem(MessageCode.TIP_WITHOUT_OTU, getId(), offset);
+				assignOTU(null);
 			}
 		}
 	}
+	
+	/**
+	 * Report a problem if the node refers to an OTU (through otuId) but has not been assigned one, once the OTUs of the
+	 * parent study are known.
+	 * 
+	 * @param otuId the value of the @otu attribute of the incoming NexSON, or null if there was none
+	 * @param offset the offset of the node in the input, for diagnostics, or NexsonDiagnostics.NO_OFFSET
+	 */
+	void checkOTUReference(String otuId, long offset) {
+		if (otuId == null || otu != null || parentTree == null || parentTree.getParentStudy() == null) {
+			return;
+		}
+		NexsonSource study = parentTree.getParentStudy();
+		if (study.isStrictParsing()) {
+			throw new NexsonParseException("OTU id '" + otuId + "', specified for node with id " + getId() + ", is not recognized");
+		}
+		parentTree.recordProblem(MessageCode.REFERENCED_ID_NOT_FOUND, getId(), offset);
+	}
 }
@@ -26,6 +26,15 @@ public class NexsonOTU extends NexsonElement {
 		return label;
 	}
 	
+	/**
+	 * Return the value of the ot:ottId property of this OTU, or null if it has none.
+	 * @return
+	 */
+	public Long getOttId() {
+		Object ottId = getProperty(OTVocabularyPredicate.OT_OTT_ID);
+		return ottId == null ? null : ((Number) ottId).longValue();
+	}
+	
 	// ### setters
 	
 	public void setLabel(String label) {
@@ -36,9 +45,19 @@ public class NexsonOTU extends NexsonElement {
 	protected void parseNexson(JSONObject nexson) {
 
 		processMetadata(nexson);
+		completeParse((String) nexson.get("@label"));
+	}
+	
+	/**
+	 * Finish setting up this OTU once its id and metadata have been recorded: normalize the ott id and choose the label.
+	 * Called by parseNexson and by the streaming NexsonStreamReader.
+	 * 
+	 * @param nexsonLabel the value of the @label attribute of the incoming NexSON, or null if there was none
+	 */
+	void completeParse(String nexsonLabel) {
 		
 		// Kludge! For important special case, need to convert incoming ottIds to longs if they are not
-		if (hasProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName())) {
+		if (hasProperty(OTVocabularyPredicate.OT_OTT_ID)) {
 			Object ottId = getNonNullProperty(OTVocabularyPredicate.OT_OTT_ID.propertyName());
 			
 			if (ottId instanceof String) {
@@ -53,17 +72,18 @@ public class NexsonOTU extends NexsonElement {
 			} else {
 				throw new NexsonParseException("Invalid value for " + OTVocabularyPredicate.OT_OTT_ID.propertyName() + ": " + ottId);
 			}
+			setProperty(OTVocabularyPredicate.OT_OTT_ID, ottId);
 		}
 
 		// set the label
-		if (hasProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName())) {
-			label = (String) getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME.propertyName());
+		if (hasProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME)) {
+			label = (String) getProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME);
 
-		} else if (hasProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName())) {
-			label = (String) getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL.propertyName());
+		} else if (hasProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL)) {
+			label = (String) getProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL);
 
 		} else {
-			label = (String) nexson.get("@label");
+			label = nexsonLabel;
 		}
 	}
 }
@@ -0,0 +1,260 @@
+package org.opentree.nexson.io;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * <p>Options controlling how NexSON is read into a NexsonSource. The default options produce the same result as the
+ * NexsonSource(Reader) constructor: every element of the study is parsed immediately.</p>
+ * <br/>
+ * <p>The projection options (annotations, included properties, OTU labels, branch lengths and trees) restrict what is
+ * kept from the NexSON. Anything that is not kept is passed over by the tokenizer without being materialized, so
+ * lookup-style jobs that need only part of each study (e.g. see topologyAndOttIds()) avoid allocating the rest. The
+ * properties that the parser itself depends on (see REQUIRED_PROPERTIES) are always kept. Projection applies to NexSON
+ * read through a tokenizer, including lazily parsed trees, but not to NexSON that has already been parsed into a
+ * JSONObject.</p>
+ * <br/>
+ * <p>By default, recoverable problems in the NexSON (e.g. tips without OTUs) are recorded in a NexsonDiagnostics
+ * collector and parsing continues. In strict mode they cause a NexsonParseException instead.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonParseOptions {
+
+	/**
+	 * The properties that are kept regardless of the included properties, because the parser uses them to identify the
+	 * study, the root, ingroup and tips of trees, and deprecated elements.
+	 */
+	public static final Set<String> REQUIRED_PROPERTIES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			OTVocabularyPredicate.OT_STUDY_ID.propertyName(),
+			OTVocabularyPredicate.OT_INGROUP_CLADE.propertyName(),
+			OTVocabularyPredicate.OT_SPECIFIED_ROOT.propertyName(),
+			OTVocabularyPredicate.OT_IS_LEAF.propertyName(),
+			OTVocabularyPredicate.OT_TAG.propertyName())));
+
+	private boolean lazyTrees = false;
+	private ForkJoinPool treeParsingPool = null;
+
+	private boolean includeAnnotations = true;
+	private boolean includeOTULabels = true;
+	private boolean includeBranchLengths = true;
+	private boolean includeTrees = true;
+	private Set<String> includedProperties = null;
+
+	private boolean strict = false;
+	private NexsonDiagnostics diagnostics = null;
+
+	private String studyId = null;
+
+	/**
+	 * Create a NexsonParseOptions object with the default settings.
+	 */
+	public NexsonParseOptions() { }
+
+	/**
+	 * Return options that keep only the topology of the trees and the ot:ottId property (of OTUs, and through them of the
+	 * tips), along with the REQUIRED_PROPERTIES. Annotations, other metadata, OTU labels and branch lengths are skipped.
+	 * @return
+	 */
+	public static NexsonParseOptions topologyAndOttIds() {
+		NexsonParseOptions options = new NexsonParseOptions();
+		options.setIncludeAnnotations(false);
+		options.setIncludeOTULabels(false);
+		options.setIncludeBranchLengths(false);
+		options.setIncludedProperties(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+		return options;
+	}
+
+	/**
+	 * Return a copy of these options.
+	 * @return
+	 */
+	public NexsonParseOptions copy() {
+		NexsonParseOptions copy = new NexsonParseOptions();
+		copy.lazyTrees = lazyTrees;
+		copy.treeParsingPool = treeParsingPool;
+		copy.includeAnnotations = includeAnnotations;
+		copy.includeOTULabels = includeOTULabels;
+		copy.includeBranchLengths = includeBranchLengths;
+		copy.includeTrees = includeTrees;
+		copy.includedProperties = includedProperties;
+		copy.strict = strict;
+		copy.diagnostics = diagnostics;
+		copy.studyId = studyId;
+		return copy;
+	}
+
+	// ### getters
+
+	/**
+	 * If true, only the study metadata and OTUs are parsed when the NexsonSource is created. The location of each tree
+	 * within the NexSON is recorded, and trees are parsed on demand when they are requested from the NexsonSource.
+	 * @return
+	 */
+	public boolean isLazyTrees() {
+		return lazyTrees;
+	}
+
+	/**
+	 * If not null, the trees of a study are parsed concurrently as tasks on this pool (ForkJoinPool.commonPool() is a
+	 * reasonable choice). The order of the trees in the resulting NexsonSource is the same as when parsing sequentially.
+	 * If trees are also being parsed lazily, the pool is used whenever all the remaining trees are requested at once.
+	 * @return
+	 */
+	public ForkJoinPool getTreeParsingPool() {
+		return treeParsingPool;
+	}
+
+	/**
+	 * If false, ot:annotation meta elements (and the NexsonAnnotations, AnnotationAuthors and AnnotationMessages they
+	 * would produce) are skipped. True by default.
+	 * @return
+	 */
+	public boolean isIncludeAnnotations() {
+		return includeAnnotations;
+	}
+
+	/**
+	 * If false, the @label attributes of OTUs are skipped, so OTUs without an ot:ottTaxonName or ot:originalLabel
+	 * property have a null label. True by default.
+	 * @return
+	 */
+	public boolean isIncludeOTULabels() {
+		return includeOTULabels;
+	}
+
+	/**
+	 * If false, the @length attributes of edges are skipped, and no node has a parent branch length. True by default.
+	 * @return
+	 */
+	public boolean isIncludeBranchLengths() {
+		return includeBranchLengths;
+	}
+
+	/**
+	 * If false, trees are skipped entirely, and the NexsonSource contains only the study metadata and OTUs. True by
+	 * default.
+	 * @return
+	 */
+	public boolean isIncludeTrees() {
+		return includeTrees;
+	}
+
+	/**
+	 * Return the names of the metadata properties that are kept, in addition to the REQUIRED_PROPERTIES, or null if all
+	 * properties are kept (the default).
+	 * @return
+	 */
+	public Set<String> getIncludedProperties() {
+		return includedProperties;
+	}
+
+	/**
+	 * Return true if the metadata property with the specified name should be kept.
+	 * @param propertyName
+	 * @return
+	 */
+	public boolean isPropertyIncluded(String propertyName) {
+		return includedProperties == null || includedProperties.contains(propertyName) || REQUIRED_PROPERTIES.contains(propertyName);
+	}
+
+	/**
+	 * If true, recoverable problems in the NexSON (tips without OTUs, unknown OTU references, a specified root that is not
+	 * the root of the tree) cause a NexsonParseException. If false (the default), they are recorded in the diagnostics of
+	 * the NexsonSource and parsing continues.
+	 * @return
+	 */
+	public boolean isStrict() {
+		return strict;
+	}
+
+	/**
+	 * Return the collector into which problems are recorded when parsing leniently, or null if each NexsonSource records
+	 * its own problems (the default; see NexsonSource.getDiagnostics()).
+	 * @return
+	 */
+	public NexsonDiagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * Return the id given to the study in place of its ot:studyId property, or null if the study is identified by its
+	 * ot:studyId property (the default), which must then be present.
+	 * @return
+	 */
+	public String getStudyId() {
+		return studyId;
+	}
+
+	// ### setters
+
+	public void setLazyTrees(boolean lazyTrees) {
+		this.lazyTrees = lazyTrees;
+	}
+
+	public void setTreeParsingPool(ForkJoinPool treeParsingPool) {
+		this.treeParsingPool = treeParsingPool;
+	}
+
+	public void setIncludeAnnotations(boolean includeAnnotations) {
+		this.includeAnnotations = includeAnnotations;
+	}
+
+	public void setIncludeOTULabels(boolean includeOTULabels) {
+		this.includeOTULabels = includeOTULabels;
+	}
+
+	public void setIncludeBranchLengths(boolean includeBranchLengths) {
+		this.includeBranchLengths = includeBranchLengths;
+	}
+
+	public void setIncludeTrees(boolean includeTrees) {
+		this.includeTrees = includeTrees;
+	}
+
+	public void setStrict(boolean strict) {
+		this.strict = strict;
+	}
+
+	/**
+	 * Record the problems found in every study parsed with these options in the specified collector, which may be reused
+	 * (see NexsonDiagnostics.clear()) to avoid allocating one per study.
+	 * @param diagnostics
+	 */
+	public void setDiagnostics(NexsonDiagnostics diagnostics) {
+		this.diagnostics = diagnostics;
+	}
+
+	/**
+	 * Give the study the specified id, rather than that of its ot:studyId property, which then need not be present. Used
+	 * where the id of a study is known a priori (e.g. see NexsonReader.readNexson()). Pass null to use ot:studyId.
+	 * @param studyId
+	 */
+	public void setStudyId(String studyId) {
+		this.studyId = studyId;
+	}
+
+	/**
+	 * Keep only the metadata properties with the specified names (and the REQUIRED_PROPERTIES). Pass null to keep all
+	 * properties.
+	 * @param propertyNames
+	 */
+	public void setIncludedProperties(Collection<String> propertyNames) {
+		includedProperties = propertyNames == null ? null : Collections.unmodifiableSet(new HashSet<String>(propertyNames));
+	}
+
+	/**
+	 * Keep only the metadata properties with the specified names (and the REQUIRED_PROPERTIES).
+	 * @param propertyNames
+	 */
+	public void setIncludedProperties(String... propertyNames) {
+		setIncludedProperties(Arrays.asList(propertyNames));
+	}
+}
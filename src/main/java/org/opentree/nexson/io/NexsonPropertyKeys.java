@@ -0,0 +1,93 @@
+package org.opentree.nexson.io;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * <p>A global dictionary assigning a small integer key to every property name used by a NexsonElement, so that elements
+ * can store their properties in compact arrays instead of each holding its own HashMap.</p>
+ * <br/>
+ * <p>The names of the OTVocabularyPredicate terms are registered first, so their keys are known in advance and can be
+ * looked up by predicate ordinal without hashing the name. Other names are registered as they are first used. Keys are
+ * never removed; the set of distinct property names in NexSON is small.</p>
+ * <br/>
+ * <p>All methods are thread safe, since elements are built concurrently when trees or studies are parsed in parallel.</p>
+ *
+ * @author cody
+ *
+ */
+final class NexsonPropertyKeys {
+
+	private static final ConcurrentHashMap<String, Integer> keysByName = new ConcurrentHashMap<String, Integer>(256);
+	private static volatile String[] names = new String[128];
+	private static int size = 0;
+
+	// the key for each OTVocabularyPredicate, indexed by ordinal
+	private static final int[] predicateKeys;
+
+	static {
+		OTVocabularyPredicate[] predicates = OTVocabularyPredicate.values();
+		predicateKeys = new int[predicates.length];
+		for (int i = 0; i < predicates.length; i++) {
+			predicateKeys[i] = keyFor(predicates[i].propertyName());
+		}
+	}
+
+	private NexsonPropertyKeys() { }
+
+	/**
+	 * Return the key for the specified property name, registering the name if it has not been seen before.
+	 * @param name
+	 * @return
+	 */
+	static int keyFor(String name) {
+		Integer key = keysByName.get(name);
+		if (key != null) {
+			return key;
+		}
+		synchronized (NexsonPropertyKeys.class) {
+			key = keysByName.get(name);
+			if (key == null) {
+				if (size == names.length) {
+					String[] grown = new String[size * 2];
+					System.arraycopy(names, 0, grown, 0, size);
+					names = grown;
+				}
+				key = size;
+				names[size++] = name;
+				keysByName.put(name, key); // published after the name, so nameOf() always finds it
+			}
+			return key;
+		}
+	}
+
+	/**
+	 * Return the key for the specified predicate.
+	 * @param predicate
+	 * @return
+	 */
+	static int keyFor(OTVocabularyPredicate predicate) {
+		return predicateKeys[predicate.ordinal()];
+	}
+
+	/**
+	 * Return the key for the specified property name, or -1 if no property with that name has ever been set. Unlike
+	 * keyFor, this never registers the name, so lookups of absent properties do not grow the dictionary.
+	 * @param name
+	 * @return
+	 */
+	static int lookup(String name) {
+		Integer key = keysByName.get(name);
+		return key != null ? key : -1;
+	}
+
+	/**
+	 * Return the property name for the specified key.
+	 * @param key
+	 * @return
+	 */
+	static String nameOf(int key) {
+		return names[key];
+	}
+}
@@ -15,7 +15,6 @@
 
 package org.opentree.nexson.io;
 
-import jade.tree.JadeNode;
 import jade.tree.JadeTree;
 import jade.tree.TreeNode;
 
@@ -27,8 +26,8 @@ import org.opentree.properties.OTVocabularyObject;
 import org.opentree.properties.OTVocabularyPredicate;
 
 import java.io.Reader;
-import java.io.FileReader;
-import java.io.BufferedReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.HashMap;
@@ -64,9 +63,9 @@ public class NexsonReader {
 				msgLogger.indentMessageStr(1, "annotation", "Reference", (String)tree.getProperty("ot:studyPublicationReference"));
 				msgLogger.indentMessageStr(1, "representation", "newick", tree.getRoot().getNewick(false));
 				int i = 0;
-				for (TreeNode node : tree.externalNodes()) {
-					Object o = ((JadeNode) node).getObject("ot:ottolid");
-					msgLogger.indentMessageStr(2, "node", "name", (String) ((TreeNode) node).getLabel());
+				for (TreeNode node : tree.asJadeTree().externalNodes()) {
+					Object o = ((NexsonJadeNode) node).getObject(OTVocabularyPredicate.OT_OTT_ID.propertyName());
+					msgLogger.indentMessageStr(2, "node", "name", (String) node.getLabel());
 					msgLogger.indentMessageStr(2, "node", "OTT ID", o.toString());
 					msgLogger.indentMessageStr(2, "node", "ID class", o.getClass().toString());
 					if (++i > 10) {
@@ -84,15 +83,60 @@ public class NexsonReader {
 	 */
 	@Deprecated
 	public static NexsonSource readNexson(String filename, String sourceId, Boolean verbose, MessageLogger msgLogger) throws java.io.IOException {
+		return readNexson(Paths.get(filename), sourceId, verbose, msgLogger);
+	}
 
-		Reader r = null;
-		NexsonSource source = null;
-		try {
-			r = new BufferedReader(new FileReader(filename));
-			source = readNexson(r, sourceId, verbose, msgLogger);
-		} finally {
-			r.close();
+	/**
+	 * Read Nexson study from a UTF-8 encoded file, which may be gzip-compressed, requires id to be supplied a priori.
+	 * The study is read by NexsonStreamReader, as for NexsonSource(Path), so no JSONObject is built for the document.
+	 * Uncompressed files are memory-mapped and tokenized directly from their bytes rather than being decoded through a
+	 * Reader. As with the Reader methods, the study is given the supplied id and need not have an ot:studyId property,
+	 * a deprecated study is returned without its OTUs and trees, and deprecated trees and trees that cannot be built are
+	 * left out.
+	 * 
+	 */
+	public static NexsonSource readNexson(Path file, String sourceId, Boolean verbose, MessageLogger msgLogger) throws java.io.IOException {
+
+		// trees are parsed lazily, so that each one can be parsed (or fail) on its own
+		NexsonParseOptions options = new NexsonParseOptions();
+		options.setLazyTrees(true);
+		options.setStudyId(sourceId);
+		NexsonSource source = new NexsonSource(file, options);
+
+		if (source.isDeprecated()) {
+			msgLogger.message("Study tagged as deprecated. Ignore.");
+			NexsonSource deprecated = new NexsonSource();
+			deprecated.setId(source.getId());
+			return deprecated;
+		}
+		msgLogger.messageInt("OTUs", "number", source.getOTUCount());
+		if (verbose) {
+			for (Entry<String, Object> property : source.getProperties().entrySet()) {
+				msgLogger.indentMessageStr(1, "property added", property.getKey(), String.valueOf(property.getValue()));
+			}
 		}
+
+		// Process each tree in turn, keeping the ones that can be built
+		List<NexsonTree> trees = new ArrayList<NexsonTree>(source.getTreeCount());
+		for (int i = 0; i < source.getTreeCount(); i++) {
+			String treeID = source.getTreeId(i);
+			msgLogger.messageStr("Processing tree", "@id", treeID);
+			NexsonTree tree;
+			try {
+				tree = source.getTree(i);
+			} catch (NexsonParseException ex) {
+				msgLogger.indentMessageStr(2, "Error. Tree could not be built", "message", ex.getMessage());
+				continue;
+			}
+			if (tree.isDeprecated()) {
+				msgLogger.messageStr("Tree tagged as deprecated. Ignoring.", "@id", treeID);
+			} else {
+				msgLogger.indentMessageInt(1, "tree info", "number nodes", tree.internalNodeCount() + tree.externalNodeCount());
+				trees.add(tree);
+			}
+		}
+		source.setParsedTrees(trees);
+
 		return source;
 	}
 
@@ -117,11 +161,15 @@ public class NexsonReader {
 	// TODO: tree(s) may be deprecated. Need to check this. May result in no trees to return.
 	public static NexsonSource readNexson(Reader r, String sourceId, Boolean verbose, MessageLogger msgLogger) throws java.io.IOException {
 
+		return importNexson((JSONObject) JSONValue.parse(r), sourceId, verbose, msgLogger);
+	}
+
+	/* Build a source from the parsed NexSON document */
+	private static NexsonSource importNexson(JSONObject all, String sourceId, Boolean verbose, MessageLogger msgLogger) {
+
 		NexsonSource source = new NexsonSource();
 		source.setId(sourceId);
 
-		JSONObject all = (JSONObject) JSONValue.parse(r);
-
 		/*
 		  The format of the file, roughly speaking (some noise omitted):
 		  {"nexml": {
@@ -134,9 +182,6 @@ public class NexsonReader {
 		  See http://www.nexml.org/manual for NexML documentation.
 		*/
 		
-		// the desired result: a list of valid trees
-		List<JadeTree> parsedTrees = new ArrayList<JadeTree>();
-		
 		// The XML root element
 		JSONObject root = (JSONObject)all.get("nexml");
 
@@ -157,12 +202,10 @@ public class NexsonReader {
 		JSONArray otuList = (JSONArray)otus.get("otu");
 		msgLogger.messageInt("OTUs", "number", otuList.size());
 
-		// Make an index by id of the OTUs. We'll need to be able to find them when we build the trees.
-		Map<String,JSONObject> otuMap = new HashMap<String,JSONObject>();
+		// Add the OTUs to the source. We'll need to be able to find them when we build the trees.
 		for (Object otu : otuList) {
-			JSONObject j = (JSONObject)otu;
-			// j = {"@label": "Platanus", "@id": "otu192"}   maybe other data too
-			otuMap.put((String)j.get("@id"), j);
+			// {"@label": "Platanus", "@id": "otu192"}   maybe other data too
+			source.addOTU(new NexsonOTU((JSONObject)otu));
 		}
 
 		// Get the trees. Each one has nodes and edges
@@ -179,7 +222,7 @@ public class NexsonReader {
 			associateMetadata(source, extractMetadataMap(studyMetaList, verbose ? msgLogger : null));
 		}
 		
-		// Process each tree in turn, yielding a JadeTree
+		// Process each tree in turn, yielding a NexsonTree
 		for (Object tree : treeList) {
 			JSONObject tree2 = (JSONObject)tree;
 			String treeID = (String)tree2.get("@id");
@@ -205,172 +248,19 @@ public class NexsonReader {
 				msgLogger.messageStr("Tree tagged as deprecated. Ignoring.", "@id", treeID);
 			} else {
 				// tree2 = {"node": [...], "edge": [...]}
-				parsedTrees.add(importTree(otuMap, 
-									  (JSONArray)tree2.get("node"),
-									  (JSONArray)tree2.get("edge"),
-//									  studyMetaList,
-									  treeMetaList,
-									  treeID,
-									  verbose,
-									  msgLogger));
+				msgLogger.indentMessageInt(1, "tree info", "number nodes", ((JSONArray)tree2.get("node")).size());
+				msgLogger.indentMessageInt(1, "tree info", "number edges", ((JSONArray)tree2.get("edge")).size());
+				try {
+					source.addTree(new NexsonTree(tree2, source));
+				} catch (NexsonParseException ex) {
+					msgLogger.indentMessageStr(2, "Error. Tree could not be built", "message", ex.getMessage());
+				}
 			}
 		}
-		for (JadeTree tree : parsedTrees) {
-
-			
-			source.addTree(new NexsonTree(tree));
-		
-		}
 		
 		return source;
 	}
 
-	/* Process a single tree (subroutine of above) */
-	private static JadeTree importTree(Map<String,JSONObject> otuMap,
-									   JSONArray nodeList,
-									   JSONArray edgeList,
-//									   List<Object> studyMetaList,
-									   List<Object> treeMetaList,
-									   String treeID,
-									   Boolean verbose,
-									   MessageLogger msgLogger) {
-		msgLogger.indentMessageInt(1, "tree info", "number nodes", nodeList.size());
-		msgLogger.indentMessageInt(1, "tree info", "number edges", edgeList.size());
-		Map<String, JadeNode> nodeMap = new HashMap<String, JadeNode>();
-		JadeNode root = null;
-		
-		// check if an ingroup is defined
-		String ingroup = null;
-		if (treeMetaList != null) {
-			for (Object meta : treeMetaList) {
-				JSONObject j = (JSONObject)meta;
-				if (((String)j.get("@property")).compareTo("ot:inGroupClade") == 0) {
-					if ((j.get("$")) != null) {
-						ingroup = (String)j.get("$");
-						msgLogger.indentMessageStr(1, "tree info", "ingroup", ingroup);
-					} else {
-						throw new RuntimeException("missing property value for name: " + j);
-					}
-				}
-			}
-		}
-		
-		// arbitraryNode is for finding the root later on (if not specified), see below
-		JadeNode arbitraryNode = null;
-
-		// For each node as specified in the Nexson file, create a JadeNode, and squirrel it away
-		for (Object node : nodeList) {
-			// {"@otu": "otu221", "@id": "node692"}
-			JSONObject j = (JSONObject)node;
-			// System.out.println(j);
-
-			JadeNode jn = new JadeNode();
-			String id = (String)j.get("@id");
-			nodeMap.put(id, jn);
-			arbitraryNode = jn;
-			jn.assocObject("nexson_id", id);
-			// Set the root node
-			if (ingroup != null && id.compareTo(ingroup) == 0) {
-				msgLogger.indentMessage(1, "Setting ingroup root node.");
-
-				/* changed: don't throw away the outgroup
-				root = jn;
-				root.assocObject("ingroup_start", "true"); */
-
-				jn.assocObject("ingroup_start", true);
-			}
-
-			// Some nodes have associated OTUs, others don't
-			String otuId = (String)j.get("@otu");
-			if (otuId != null) {
-				JSONObject otu = otuMap.get(otuId);
-				if (otu == null) {
-					msgLogger.indentMessageStr(2, "Error. Node with otuID of unknown OTU", "@otu", otuId);
-					return null;
-				}
-				String label = (String)otu.get("@label");
-				jn.setName(label);
-
-				// Get taxon id (usually present) and maybe other metadata (rarely present)
-				List<Object> metaList2 = getMetaList(otu);
-				if (metaList2 != null) {
-					for (Object meta : metaList2) {
-						JSONObject m = (JSONObject)meta;
-						String propname = (String)m.get("@property");
-						Object value = m.get("$");
-//						if (propname.equals("ot:ottolid")) {
-						if (propname.equals(OTVocabularyPredicate.OT_OTT_ID.propertyName())) {
-							// Kludge! For important special case
-							if (value instanceof String) {
-								value = Long.parseLong((String)value);
-							} else if (value instanceof Long) {
-								; // what is this about?
-							} else if (value instanceof Integer) {
-								value = new Long((((Integer)value).intValue()));
-							} else if (value == null) {
-								msgLogger.indentMessageStr(1, "Warning: dealing with null ot:ottId here.", "nexson_id", id);
-							} else {
-								System.err.println("Error with: " + m);
-								throw new RuntimeException("Invalid ottolid value: " + value);
-							}
-//						} else if(propname.equals("ot:originalLabel")){ // commented out. do not ignore original labels!
-							// ignoring originalLabel, but not emitting the unknown property warning
-						} else {
-							msgLogger.indentMessageStrStr(1, "Warning: dealing with unknown property. Don't know what to do...", "property name", propname, "nexson_id", id);
-						}
-						jn.assocObject(propname, value);
-					}
-				}
-			}
-		}
-
-		// For each specified edge, hook up the two corresponding JadeNodes
-		for (Object edge : edgeList) {
-			JSONObject j = (JSONObject)edge;
-			// {"@source": "node830", "@target": "node834", "@length": 0.000241603, "@id": "edge834"}
-			// source is parent, target is child
-			JadeNode source = nodeMap.get(j.get("@source"));
-			if (source == null) {
-				msgLogger.indentMessageStr(2, "Error. Edge with source property not found in map", "@source", (String)j.get("@source"));
-				return null;
-			}
-			JadeNode target = nodeMap.get(j.get("@target"));
-			if (target == null) {
-				msgLogger.indentMessageStr(2, "Error. Edge with target property not found in map", "@target", (String)j.get("@target"));
-				return null;
-			}
-			Double length = (Double)j.get("@length");
-			if (length != null) {
-				target.setBL(length);
-			}
-			source.addChild(target);
-		}
-		
-		// Find the root (the node without a parent) so we can return it.
-		// If the input file is malicious this might loop forever.
-		if (root == null) {
-			for (JadeNode jn = arbitraryNode; jn != null; jn = (JadeNode) jn.getParent()) {
-				root = jn;
-			}
-		} else { // a pruned tree. GraphImporter looks for root as node with no parents.
-			root.setParent(null);
-		}
-		
-		JadeTree tree = new JadeTree(root);
-		
-		/*
-		int nc = tree.getExternalNodeCount();
-		msgLogger.indentMessageInt(1, "Ingested tree", "number of external nodes", nc); */
-		
-		// Copy TREE-level metadata into the JadeTree
-		if (treeMetaList != null) {
-			associateMetadata(tree, extractMetadataMap(treeMetaList, verbose ? msgLogger : null));
-		}
-//		tree.assocObject("phylografter_id", treeID);
-		tree.setProperty("nexson_id", treeID);
-		return tree;
-	}
-	
 	// check through metadata information for ot:tag del*
 	// works for both study-wide and tree-specific metadata
 	private static Boolean checkDeprecated (List<Object> metaData) {
@@ -391,12 +281,6 @@ public class NexsonReader {
 		return deprecated;
 	}
 	
-	private static void associateMetadata(JadeTree tree, Map<String, Object> metaMap) {
-		for (Entry<String, Object> property : metaMap.entrySet()) {
-			tree.setProperty(property.getKey(), property.getValue());
-		}
-	}
-	
 	private static void associateMetadata(NexsonSource source, Map<String, Object> metaMap) {
 		for (Entry<String, Object> property : metaMap.entrySet()) {
 			source.setProperty(property.getKey(), property.getValue());
@@ -438,6 +322,7 @@ public class NexsonReader {
 		}
 	}
 	
+	@SuppressWarnings("unchecked")
 	private static List<Object> getMetaList(JSONObject obj) {
 		//System.out.println("looking up meta for: " + obj);
 		Object meta = obj.get("meta");
@@ -447,7 +332,7 @@ public class NexsonReader {
 		}
 		//System.out.println("meta != NULL: " + meta);
 		if (meta instanceof JSONObject) {
-			List l = new ArrayList(1);
+			List<Object> l = new ArrayList<Object>(1);
 			l.add(meta);
 			return l;
 		} else {
@@ -0,0 +1,618 @@
+package org.opentree.nexson.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.opentree.nexson.io.AnnotationAuthor.AuthorInvocation;
+
+/**
+ * <p>Reads and writes a compact, versioned binary snapshot of a parsed NexsonSource. Loading a snapshot is much faster
+ * than parsing the original NexSON, and produces an equivalent NexsonSource: the same study properties, OTUs (with
+ * normalized ott ids), trees, node flags, branch lengths and annotations.</p>
+ * <br/>
+ * <p>The layout of a snapshot is:<br/>
+ * <br/>
+ * magic ("NXSN"), format version<br/>
+ * string table: count, then each string as a length-prefixed UTF-8 byte sequence<br/>
+ * study element, OTU count, OTU elements, tree count, trees</p>
+ * <br/>
+ * <p>Every string (property keys, ids, labels, string values) is written once in the string table and referred to by its
+ * index everywhere else. The topology of each tree is written as primitive arrays over the nodes in preorder: parent
+ * indexes, flags, branch lengths and OTU indexes. Because the nodes are in preorder, the order of each node's children
+ * is implied by the parent array.</p>
+ * <br/>
+ * <p>Trees that are being parsed lazily are parsed when a snapshot of their source is written. The parse options of the
+ * original source (lazy trees, tree parsing pools) are not part of the snapshot.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonSnapshot {
+
+	/**
+	 * The version of the snapshot format written by this class. Snapshots with other versions are rejected when read.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int MAGIC = 0x4e58534e; // "NXSN"
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int NONE = -1;
+
+	// value type tags
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte LONG = 2;
+	private static final byte INTEGER = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte TRUE = 5;
+	private static final byte FALSE = 6;
+	private static final byte OBJECT = 7;
+	private static final byte ARRAY = 8;
+
+	// node flags
+	private static final byte LEAF = 1;
+	private static final byte TREE_ROOT = 2;
+	private static final byte INGROUP_ROOT = 4;
+	private static final byte HAS_BRANCH_LENGTH = 8;
+
+	private NexsonSnapshot() { }
+
+	// ### public interface
+
+	/**
+	 * Write a snapshot of the provided source to the output stream. The stream is flushed but not closed.
+	 * @param source
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(NexsonSource source, OutputStream out) throws IOException {
+		new SnapshotWriter().write(source, out);
+	}
+
+	/**
+	 * Write a snapshot of the provided source to the specified file, replacing the file if it exists.
+	 * @param source
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(NexsonSource source, Path file) throws IOException {
+		OutputStream out = Files.newOutputStream(file);
+		try {
+			write(source, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read a snapshot from the input stream and return the NexsonSource it contains.
+	 * @param in
+	 * @return
+	 * @throws IOException if the stream cannot be read, or does not contain a snapshot in a supported format version
+	 */
+	public static NexsonSource read(InputStream in) throws IOException {
+		return new SnapshotReader(in).readSource();
+	}
+
+	/**
+	 * Read a snapshot from the specified file and return the NexsonSource it contains.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file cannot be read, or does not contain a snapshot in a supported format version
+	 */
+	public static NexsonSource read(Path file) throws IOException {
+		InputStream in = Files.newInputStream(file);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	// ### writing
+
+	private static class SnapshotWriter {
+
+		private final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		private final List<String> strings = new ArrayList<String>();
+
+		// the body is written before the string table is complete, so it is buffered and copied out afterward
+		private final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(1 << 16);
+		private final DataOutputStream body = new DataOutputStream(bodyBytes);
+
+		void write(NexsonSource source, OutputStream out) throws IOException {
+
+			List<NexsonOTU> otus = source.getOTUList();
+			List<NexsonTree> trees = source.getTrees();
+
+			writeElement(source);
+
+			Map<NexsonOTU, Integer> otuIndexes = new IdentityHashMap<NexsonOTU, Integer>(otus.size() * 2);
+			body.writeInt(otus.size());
+			for (NexsonOTU otu : otus) {
+				otuIndexes.put(otu, otuIndexes.size());
+				writeElement(otu);
+				writeString(otu.getLabel());
+			}
+
+			body.writeInt(trees.size());
+			for (NexsonTree tree : trees) {
+				writeTree(tree, otuIndexes);
+			}
+			body.flush();
+
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeInt(strings.size());
+			for (String s : strings) {
+				byte[] bytes = s.getBytes(UTF8);
+				data.writeInt(bytes.length);
+				data.write(bytes);
+			}
+			bodyBytes.writeTo(data);
+			data.flush();
+		}
+
+		private void writeTree(NexsonTree tree, Map<NexsonOTU, Integer> otuIndexes) throws IOException {
+
+			writeElement(tree);
+
+			// collect the nodes in preorder, recording the index of each node's parent
+			List<NexsonNode> nodes = new ArrayList<NexsonNode>();
+			List<Integer> parents = new ArrayList<Integer>();
+			if (tree.getRoot() != null) {
+				List<NexsonNode> stack = new ArrayList<NexsonNode>();
+				List<Integer> stackParents = new ArrayList<Integer>();
+				stack.add(tree.getRoot());
+				stackParents.add(NONE);
+				while (! stack.isEmpty()) {
+					NexsonNode node = stack.remove(stack.size() - 1);
+					int parent = stackParents.remove(stackParents.size() - 1);
+					int index = nodes.size();
+					nodes.add(node);
+					parents.add(parent);
+					for (int i = node.getChildCount() - 1; i >= 0; i--) {
+						stack.add((NexsonNode) node.getChild(i));
+						stackParents.add(index);
+					}
+				}
+			}
+
+			int nodeCount = nodes.size();
+			body.writeInt(nodeCount);
+
+			// topology, as primitive arrays
+			for (int i = 0; i < nodeCount; i++) {
+				body.writeInt(parents.get(i));
+			}
+			for (NexsonNode node : nodes) {
+				int flags = 0;
+				if (node.isExternal()) {
+					flags |= LEAF;
+				}
+				if (node.isTreeRoot()) {
+					flags |= TREE_ROOT;
+				}
+				if (node.isIngroupRoot()) {
+					flags |= INGROUP_ROOT;
+				}
+				if (node.getParentBranchLength() != null) {
+					flags |= HAS_BRANCH_LENGTH;
+				}
+				body.writeByte(flags);
+			}
+			for (NexsonNode node : nodes) {
+				Double length = node.getParentBranchLength();
+				body.writeDouble(length != null ? length : 0);
+			}
+			for (NexsonNode node : nodes) {
+				Integer otuIndex = node.getOTU() != null ? otuIndexes.get(node.getOTU()) : null;
+				body.writeInt(otuIndex != null ? otuIndex : NONE);
+			}
+
+			// the ingroup node, if one has been specified
+			int ingroup = NONE;
+			if (tree.getSpecifiedIngroupNode() != null) {
+				for (int i = 0; i < nodeCount && ingroup == NONE; i++) {
+					if (nodes.get(i) == tree.getSpecifiedIngroupNode()) {
+						ingroup = i;
+					}
+				}
+			}
+			body.writeInt(ingroup);
+
+			// per-node ids, properties and annotations
+			for (NexsonNode node : nodes) {
+				writeElement(node);
+			}
+		}
+
+		private void writeElement(NexsonElement element) throws IOException {
+			writeString(element.getId());
+			body.writeBoolean(element.isDeprecated());
+			// read the fields directly, so that writing does not allocate a map or list for each element that has none
+			writeMap(element.properties != null ? element.properties : Collections.<String, Object>emptyMap());
+			// the count is written from the list that is iterated, so that the two always agree
+			List<NexsonAnnotation> annotations = element.getAnnotationCount() > 0 ? element.getAnnotations()
+					: Collections.<NexsonAnnotation>emptyList();
+			body.writeInt(annotations.size());
+			for (NexsonAnnotation annotation : annotations) {
+				writeAnnotation(annotation);
+			}
+		}
+
+		private void writeAnnotation(NexsonAnnotation annotation) throws IOException {
+			writeString(annotation.getId());
+			writeString(annotation.getDescription());
+			writeString(annotation.getDateCreated());
+			writeString(annotation.getDateModified());
+			body.writeBoolean(annotation.elementPassesValidation());
+			writeMap(annotation.getUserProperties());
+
+			AnnotationAuthor author = annotation.getAuthor();
+			body.writeBoolean(author != null);
+			if (author != null) {
+				writeString(author.getName());
+				writeString(author.getUrl());
+				writeString(author.getDescription());
+				writeString(author.getVersion());
+				writeStrings(author.checksPerformed);
+				writeMap(author.getProperties());
+
+				AuthorInvocation invocation = author.getInvocation();
+				body.writeBoolean(invocation != null);
+				if (invocation != null) {
+					writeStrings(invocation.getCommandLineArgs());
+					writeValue(invocation.getEnv());
+					writeString(invocation.getMethod());
+					writeValue(invocation.getParams());
+					writeStrings(invocation.getChecksPerformed());
+				}
+			}
+
+			body.writeInt(annotation.getMessages().size());
+			for (AnnotationMessage message : annotation.getMessages()) {
+				writeString(message.getSeverity() != null ? message.getSeverity().name() : null);
+				writeString(message.getCode() != null ? message.getCode().name() : null);
+				writeString(message.getHumanMessageType() != null ? message.getHumanMessageType().name() : null);
+				writeString(message.getHumanMessage());
+				writeString(message.getDataAnnotation());
+				writeValue(message.getData());
+				writeString(message.getRefersTo());
+				body.writeBoolean(message.getToBePreserved());
+				writeMap(message.properties);
+			}
+		}
+
+		private void writeStrings(Iterable<String> values) throws IOException {
+			List<String> list = new ArrayList<String>();
+			for (String value : values) {
+				list.add(value);
+			}
+			body.writeInt(list.size());
+			for (String value : list) {
+				writeString(value);
+			}
+		}
+
+		private void writeMap(Map<?, ?> map) throws IOException {
+			body.writeInt(map.size());
+			for (Entry<?, ?> entry : map.entrySet()) {
+				writeString(String.valueOf(entry.getKey()));
+				writeValue(entry.getValue());
+			}
+		}
+
+		private void writeValue(Object value) throws IOException {
+			if (value == null) {
+				body.writeByte(NULL);
+			} else if (value instanceof String) {
+				body.writeByte(STRING);
+				writeString((String) value);
+			} else if (value instanceof Long) {
+				body.writeByte(LONG);
+				body.writeLong((Long) value);
+			} else if (value instanceof Integer) {
+				body.writeByte(INTEGER);
+				body.writeInt((Integer) value);
+			} else if (value instanceof Double) {
+				body.writeByte(DOUBLE);
+				body.writeDouble((Double) value);
+			} else if (value instanceof Boolean) {
+				body.writeByte((Boolean) value ? TRUE : FALSE);
+			} else if (value instanceof Map) {
+				body.writeByte(OBJECT);
+				writeMap((Map<?, ?>) value);
+			} else if (value instanceof List) {
+				List<?> list = (List<?>) value;
+				body.writeByte(ARRAY);
+				body.writeInt(list.size());
+				for (Object item : list) {
+					writeValue(item);
+				}
+			} else {
+				throw new IllegalArgumentException("Cannot write a value of type " + value.getClass().getName() + " to a snapshot: " + value);
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			if (s == null) {
+				body.writeInt(NONE);
+				return;
+			}
+			Integer index = stringIndexes.get(s);
+			if (index == null) {
+				index = strings.size();
+				strings.add(s);
+				stringIndexes.put(s, index);
+			}
+			body.writeInt(index);
+		}
+	}
+
+	// ### reading
+
+	private static class SnapshotReader {
+
+		private final DataInputStream in;
+		private String[] strings;
+
+		SnapshotReader(InputStream in) {
+			this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		}
+
+		NexsonSource readSource() throws IOException {
+
+			if (in.readInt() != MAGIC) {
+				throw new IOException("The input is not a NexSON snapshot");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported NexSON snapshot version " + version + " (expected " + VERSION + ")");
+			}
+
+			strings = new String[in.readInt()];
+			byte[] bytes = new byte[256];
+			for (int i = 0; i < strings.length; i++) {
+				int length = in.readInt();
+				if (length > bytes.length) {
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				}
+				in.readFully(bytes, 0, length);
+				strings[i] = new String(bytes, 0, length, UTF8);
+			}
+
+			NexsonSource source = new NexsonSource();
+			readElement(source);
+
+			int otuCount = in.readInt();
+			NexsonOTU[] otus = new NexsonOTU[otuCount];
+			for (int i = 0; i < otuCount; i++) {
+				NexsonOTU otu = new NexsonOTU();
+				readElement(otu);
+				otu.setLabel(readString());
+				source.addOTU(otu);
+				otus[i] = otu;
+			}
+
+			int treeCount = in.readInt();
+			for (int i = 0; i < treeCount; i++) {
+				source.addTree(readTree(source, otus));
+			}
+			return source;
+		}
+
+		private NexsonTree readTree(NexsonSource source, NexsonOTU[] otus) throws IOException {
+
+			NexsonTree tree = new NexsonTree();
+			tree.setParentStudy(source);
+			readElement(tree);
+
+			int nodeCount = in.readInt();
+			int[] parents = new int[nodeCount];
+			for (int i = 0; i < nodeCount; i++) {
+				parents[i] = in.readInt();
+			}
+			byte[] flags = new byte[nodeCount];
+			in.readFully(flags);
+			double[] lengths = new double[nodeCount];
+			for (int i = 0; i < nodeCount; i++) {
+				lengths[i] = in.readDouble();
+			}
+			int[] otuIndexes = new int[nodeCount];
+			for (int i = 0; i < nodeCount; i++) {
+				otuIndexes[i] = in.readInt();
+			}
+			int ingroup = in.readInt();
+
+			NexsonNode[] nodes = new NexsonNode[nodeCount];
+			for (int i = 0; i < nodeCount; i++) {
+				NexsonNode node = new NexsonNode();
+				node.setParentTree(tree);
+				readElement(node);
+				node.setIsLeaf((flags[i] & LEAF) != 0);
+				node.setIsTreeRoot((flags[i] & TREE_ROOT) != 0);
+				node.setIsIngroupRoot((flags[i] & INGROUP_ROOT) != 0);
+				if ((flags[i] & HAS_BRANCH_LENGTH) != 0) {
+					node.setParentBranchLength(lengths[i]);
+				}
+				if (otuIndexes[i] != NONE) {
+					node.assignOTU(otus[otuIndexes[i]]);
+				}
+				// nodes are in preorder, so the parent has always been created already
+				if (parents[i] != NONE) {
+					nodes[parents[i]].addChild(node);
+					node.setParent(nodes[parents[i]]);
+				}
+				nodes[i] = node;
+			}
+
+			if (nodeCount > 0) {
+				tree.root = nodes[0];
+			}
+			if (ingroup != NONE) {
+				tree.specifyIngroup(nodes[ingroup]);
+			}
+			return tree;
+		}
+
+		private void readElement(NexsonElement element) throws IOException {
+			String id = readString();
+			if (id != null) {
+				element.setId(id);
+			}
+			element.setDeprecatedStatus(in.readBoolean());
+			int propertyCount = in.readInt();
+			for (int i = 0; i < propertyCount; i++) {
+				element.setProperty(readString(), readValue());
+			}
+			int annotationCount = in.readInt();
+			for (int i = 0; i < annotationCount; i++) {
+				element.addAnnotation(readAnnotation());
+			}
+		}
+
+		private NexsonAnnotation readAnnotation() throws IOException {
+			NexsonAnnotation annotation = new NexsonAnnotation();
+			annotation.setId(readString());
+			annotation.setDescription(readString());
+			annotation.setDateCreated(readString());
+			annotation.setDateModified(readString());
+			annotation.setPassesValidation(in.readBoolean());
+			int propertyCount = in.readInt();
+			for (int i = 0; i < propertyCount; i++) {
+				annotation.setUserProperty(readString(), readValue());
+			}
+
+			if (in.readBoolean()) {
+				AnnotationAuthor author = new AnnotationAuthor();
+				author.setName(readString());
+				author.setUrl(readString());
+				author.setDescription(readString());
+				author.setVersion(readString());
+				int checkCount = in.readInt();
+				for (int i = 0; i < checkCount; i++) {
+					author.checksPerformed.add(readString());
+				}
+				int authorPropertyCount = in.readInt();
+				for (int i = 0; i < authorPropertyCount; i++) {
+					author.addProperty(readString(), readValue());
+				}
+
+				if (in.readBoolean()) {
+					AuthorInvocation invocation = author.new AuthorInvocation();
+					int argCount = in.readInt();
+					for (int i = 0; i < argCount; i++) {
+						invocation.addCommandLineArg(readString());
+					}
+					invocation.setEnv(readValue());
+					invocation.setMethod(readString());
+					invocation.setParams(readValue());
+					int invocationCheckCount = in.readInt();
+					for (int i = 0; i < invocationCheckCount; i++) {
+						invocation.addCheckPerformed(readString());
+					}
+					author.setInvocation(invocation);
+				} else {
+					author.setInvocation(null);
+				}
+				annotation.setAuthor(author);
+			}
+
+			int messageCount = in.readInt();
+			for (int i = 0; i < messageCount; i++) {
+				AnnotationMessage message = new AnnotationMessage();
+				String severity = readString();
+				if (severity != null) {
+					message.setSeverity(AnnotationMessage.Severity.valueOf(severity));
+				}
+				String code = readString();
+				if (code != null) {
+					message.setCode(AnnotationMessage.MessageCode.valueOf(code));
+				}
+				String humanMessageType = readString();
+				if (humanMessageType != null) {
+					message.setHumanMessageType(AnnotationMessage.HumanMessageType.valueOf(humanMessageType));
+				}
+				message.setHumanDescription(readString());
+				message.setDataAnnotation(readString());
+				message.setData(readValue());
+				message.setRefersTo(readString());
+				message.setToBePreserved(in.readBoolean());
+				int messagePropertyCount = in.readInt();
+				for (int j = 0; j < messagePropertyCount; j++) {
+					message.addProperty(readString(), readValue());
+				}
+				annotation.addMessage(message);
+			}
+			return annotation;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Object readValue() throws IOException {
+			byte type = in.readByte();
+			switch (type) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString();
+			case LONG:
+				return in.readLong();
+			case INTEGER:
+				return in.readInt();
+			case DOUBLE:
+				return in.readDouble();
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case OBJECT:
+				int size = in.readInt();
+				JSONObject obj = new JSONObject();
+				for (int i = 0; i < size; i++) {
+					obj.put(readString(), readValue());
+				}
+				return obj;
+			case ARRAY:
+				int length = in.readInt();
+				JSONArray arr = new JSONArray();
+				for (int i = 0; i < length; i++) {
+					arr.add(readValue());
+				}
+				return arr;
+			default:
+				throw new IOException("Corrupt NexSON snapshot: unknown value type " + type);
+			}
+		}
+
+		private String readString() throws IOException {
+			int index = in.readInt();
+			if (index == NONE) {
+				return null;
+			}
+			if (index < 0 || index >= strings.length) {
+				throw new IOException("Corrupt NexSON snapshot: string index " + index + " is out of range");
+			}
+			return strings[index];
+		}
+	}
+}
@@ -1,17 +1,21 @@
 package org.opentree.nexson.io;
 
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
+import org.opentree.nexson.io.AnnotationMessage.MessageCode;
 import org.opentree.properties.OTVocabularyPredicate;
 
 /**
@@ -33,10 +37,36 @@ import org.opentree.properties.OTVocabularyPredicate;
  */
 public class NexsonSource extends NexsonElement {
 
+	// guarded by this, along with treeRanges, since lazily parsed trees are filled in and released while others read them
 	private List<NexsonTree> trees = new ArrayList<NexsonTree>();
 	private List<NexsonOTU> otus = new ArrayList<NexsonOTU>();
 	private Map <String, NexsonOTU> otusById = new HashMap<String, NexsonOTU>();
 	
+	// built when first requested and discarded when an OTU is added. building is idempotent, so concurrent callers may
+	// at worst each build their own copy
+	private volatile OttIdIndex<NexsonOTU> otuOttIdIndex = null;
+	
+	// for lazily parsed trees, the location of each tree's NexSON within treeSource. the entry for a tree is null if the
+	// tree was not parsed lazily, and the corresponding entry in trees is null if the tree has not been parsed yet.
+	private List<TreeRange> treeRanges = new ArrayList<TreeRange>();
+	// guarded by this. incremented whenever a tree is added, parsed lazily or released, so that size estimates made by
+	// NexsonSourceCache can tell when they are out of date
+	private int treeStateVersion = 0;
+	private JSONTokenizer treeSource = null;
+	
+	// if not null, trees are parsed concurrently on this pool
+	private ForkJoinPool treeParsingPool = null;
+	
+	// the options used to read lazily parsed trees, so they are projected in the same way as the rest of the study
+	private NexsonParseOptions treeOptions = new NexsonParseOptions();
+	
+	// problems found while parsing leniently. created when the first one is recorded unless the options supply a collector
+	private boolean strictParsing = false;
+	private NexsonDiagnostics diagnostics = null;
+	
+	// the file this study was read from, if any, to identify it in the diagnostics until its id is known
+	private String sourcePath = null;
+	
 	/**
 	 * Create a NexsonStudy object populated from a JSONObject containing the NexSON to be parsed.
 	 * @param nexson
@@ -46,10 +76,106 @@ public class NexsonSource extends NexsonElement {
 	}
 	
 	/**
-	 * Create a NexsonStudy object from a Reader object providing access to the NexSON to be parsed.
+	 * Create a NexsonStudy object populated from a JSONObject containing the NexSON to be parsed, using the specified
+	 * parse options. Of the available options, only the tree parsing pool applies to NexSON that has already been parsed
+	 * into a JSONObject; in particular the projection options do not. The pool is not used for the NexSON 1.2 by-id
+	 * layout, whose trees are read in order.
+	 * @param nexson
+	 * @param options
+	 */
+	public NexsonSource(JSONObject nexson, NexsonParseOptions options) {
+		treeParsingPool = options.getTreeParsingPool();
+		strictParsing = options.isStrict();
+		diagnostics = options.getDiagnostics();
+		parseNexson(nexson);
+	}
+	
+	/**
+	 * Create a NexsonStudy object from a Reader object providing access to the NexSON to be parsed. The NexSON is read
+	 * in a single streaming pass (see NexsonStreamReader), without building a JSONObject for the entire document.
 	 */
 	public NexsonSource (Reader reader) {
-		parseNexson((JSONObject) JSONValue.parse(reader));
+		new NexsonStreamReader(reader).readSource(this);
+	}
+	
+	/**
+	 * Create a NexsonStudy object from a Reader object providing access to the NexSON to be parsed, using the specified
+	 * parse options. If the options specify lazy trees, the contents of the reader are held in memory and each tree is
+	 * parsed only when it is first requested.
+	 */
+	public NexsonSource (Reader reader, NexsonParseOptions options) {
+		this(options.isLazyTrees() || options.getTreeParsingPool() != null
+				? CharJSONTokenizer.buffered(reader)
+				: new CharJSONTokenizer(reader), options);
+	}
+
+	/**
+	 * Create a NexsonStudy object from a UTF-8 encoded NexSON file, which may be gzip-compressed. Uncompressed files are
+	 * memory-mapped and tokenized directly from their bytes, so only the strings that are actually kept are ever decoded.
+	 * @param file
+	 * @throws IOException
+	 */
+	public NexsonSource (Path file) throws IOException {
+		this(file, new NexsonParseOptions());
+	}
+
+	/**
+	 * Create a NexsonStudy object from a UTF-8 encoded NexSON file, using the specified parse options. Uncompressed files
+	 * are memory-mapped, and if the options specify lazy trees, unparsed trees are read from the mapping when requested
+	 * rather than being copied onto the heap.
+	 * <p>Gzip-compressed files (recognized by their first bytes, not their names) are inflated on a separate thread ahead
+	 * of the parser (see PipelinedInputStream), so that decompression and parsing overlap. Lazy and parallel tree parsing
+	 * need the whole document, so in those cases it is inflated into memory before it is parsed.</p>
+	 * @param file
+	 * @param options
+	 * @throws IOException
+	 */
+	public NexsonSource (Path file, NexsonParseOptions options) throws IOException {
+		sourcePath = file.toString();
+		JSONTokenizer tokenizer = JSONTokenizer.open(file, options.isLazyTrees() || options.getTreeParsingPool() != null);
+		if (options.isLazyTrees()) {
+			read(tokenizer, options); // unparsed trees are read from the tokenizer later
+		} else {
+			try {
+				read(tokenizer, options);
+			} finally {
+				tokenizer.close();
+			}
+		}
+	}
+
+	/**
+	 * Create a NexsonStudy object by reading NexSON from the provided tokenizer, using the specified parse options. Lazy
+	 * and parallel tree parsing both require a tokenizer that supports slicing.
+	 * @param tokenizer
+	 * @param options
+	 */
+	public NexsonSource (JSONTokenizer tokenizer, NexsonParseOptions options) {
+		read(tokenizer, options);
+	}
+
+	private void read(JSONTokenizer tokenizer, NexsonParseOptions options) {
+		treeParsingPool = options.getTreeParsingPool();
+		treeOptions = options;
+		strictParsing = options.isStrict();
+		diagnostics = options.getDiagnostics();
+		if (options.isLazyTrees()) {
+			new NexsonStreamReader(tokenizer, options).readSource(this);
+
+		} else if (treeParsingPool != null) {
+			// record where the trees are, then parse them all at once in parallel
+			NexsonParseOptions skimOptions = options.copy();
+			skimOptions.setLazyTrees(true);
+			new NexsonStreamReader(tokenizer, skimOptions).readSource(this);
+			parseRemainingTrees();
+			treeSource = null;
+			for (int i = 0; i < treeRanges.size(); i++) {
+				treeRanges.set(i, null);
+			}
+
+		} else {
+			new NexsonStreamReader(tokenizer, options).readSource(this);
+		}
 	}
 	
 	/**
@@ -59,21 +185,236 @@ public class NexsonSource extends NexsonElement {
 
 	// ## trees
 	
+	/**
+	 * Return all the trees in this study. If trees are being parsed lazily, any trees that have not been parsed yet will
+	 * be parsed now. The returned list is the study's own list of trees, so if other threads may release lazily parsed
+	 * trees, use getTreeCount() and getTree(), which are thread safe, instead.
+	 * @return
+	 */
 	public List<NexsonTree> getTrees() {
+		parseRemainingTrees();
 		return trees;
 	}
 	
+	/**
+	 * Return the tree at the specified index. If trees are being parsed lazily and this tree has not been parsed yet, it
+	 * will be parsed now.
+	 * @param i
+	 * @return
+	 */
 	public NexsonTree getTree(int i) {
-		return trees.get(i);
+		NexsonTree tree;
+		synchronized (this) {
+			tree = trees.get(i);
+		}
+		if (tree == null) {
+			tree = parseLazyTree(i);
+		}
+		return tree;
+	}
+	
+	/**
+	 * Return the tree at the specified index without keeping it in this study. If trees are being parsed lazily and this
+	 * tree has not been parsed yet, it is parsed into a copy that this study does not retain, so the study is not
+	 * modified. Used by code that visits each tree once (e.g. NexsonWriter and NexsonDiff), so that it neither keeps
+	 * the trees of a large study in memory nor releases trees that others may be using.
+	 * @param i
+	 * @return
+	 */
+	public NexsonTree getTreeWithoutRetaining(int i) {
+		TreeRange range;
+		JSONTokenizer source;
+		synchronized (this) {
+			NexsonTree tree = trees.get(i);
+			if (tree != null) {
+				return tree;
+			}
+			range = treeRanges.get(i);
+			source = treeSource;
+		}
+		return readTreeRange(source, range);
+	}
+	
+	/**
+	 * Return the tree with the specified NexSON id, or null if there is no such tree. If trees are being parsed lazily,
+	 * only the requested tree will be parsed.
+	 * @param treeId
+	 * @return
+	 */
+	public NexsonTree getTreeById(String treeId) {
+		for (int i = 0; i < getTreeCount(); i++) {
+			if (treeId.equals(getTreeId(i))) {
+				return getTree(i);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Return the NexSON id of the tree at the specified index, without parsing the tree if it has not been parsed yet.
+	 * @param i
+	 * @return
+	 */
+	public synchronized String getTreeId(int i) {
+		TreeRange range = treeRanges.get(i);
+		return range != null ? range.treeId : trees.get(i).getId();
+	}
+
+	/**
+	 * Return true if the tree at the specified index has been parsed (which is always the case unless trees are being parsed
+	 * lazily).
+	 * @param i
+	 * @return
+	 */
+	public synchronized boolean isTreeParsed(int i) {
+		return trees.get(i) != null;
 	}
 	
-	public void addTree(NexsonTree tree) {
+	/**
+	 * Discard the parsed tree at the specified index, so that it can be garbage collected. The tree will be parsed again
+	 * if it is requested later. This only has an effect on trees that are being parsed lazily, for other trees it returns
+	 * false and does nothing.
+	 * @param i
+	 * @return true if the tree was released
+	 */
+	public synchronized boolean releaseTree(int i) {
+		if (treeRanges.get(i) == null) {
+			return false;
+		}
+		if (trees.set(i, null) != null) {
+			treeStateVersion++;
+		}
+		return true;
+	}
+	
+	public synchronized void addTree(NexsonTree tree) {
 		if (tree != null) {
 			trees.add(tree);
+			treeRanges.add(null);
+			treeStateVersion++;
 		} else {
 			throw new java.lang.IllegalArgumentException("attempt to add a null tree");
 		}
 	}	
+	
+	/**
+	 * Record the location of a tree to be parsed lazily. Used by NexsonStreamReader.
+	 * @param treeId
+	 * @param start the offset of the tree object within the tree source
+	 * @param end the offset immediately following the tree object within the tree source
+	 */
+	synchronized void addLazyTree(String treeId, long start, long end) {
+		trees.add(null);
+		treeRanges.add(new TreeRange(treeId, start, end));
+		treeStateVersion++;
+	}
+	
+	/**
+	 * Replace the trees of this study with the specified trees, which must all have been parsed, and drop the source of
+	 * lazily parsed trees. Used by NexsonReader, which leaves out trees that are deprecated or cannot be built.
+	 * @param parsedTrees
+	 */
+	synchronized void setParsedTrees(List<NexsonTree> parsedTrees) {
+		trees.clear();
+		treeRanges.clear();
+		for (NexsonTree tree : parsedTrees) {
+			trees.add(tree);
+			treeRanges.add(null);
+		}
+		treeSource = null;
+		treeStateVersion++;
+	}
+	
+	/**
+	 * Set the tokenizer from which the NexSON of lazily parsed trees will be sliced. Used by NexsonStreamReader.
+	 * @param treeSource
+	 */
+	void setTreeSource(JSONTokenizer treeSource) {
+		this.treeSource = treeSource;
+	}
+	
+	private NexsonTree parseLazyTree(int i) {
+		TreeRange range;
+		JSONTokenizer source;
+		synchronized (this) {
+			NexsonTree tree = trees.get(i);
+			if (tree != null) {
+				return tree;
+			}
+			range = treeRanges.get(i);
+			source = treeSource;
+		}
+		
+		// parse without holding the lock, so that other trees can be parsed and the study inspected in the meantime. if
+		// another thread parses the same tree at once, the first tree to be published is kept and returned by both
+		NexsonTree parsed = readTreeRange(source, range);
+		synchronized (this) {
+			if (i >= trees.size() || treeRanges.get(i) != range) {
+				return parsed; // the trees were replaced while this one was parsed
+			}
+			NexsonTree tree = trees.get(i);
+			if (tree == null) {
+				tree = parsed;
+				trees.set(i, tree);
+				treeStateVersion++;
+			}
+			return tree;
+		}
+	}
+	
+	private NexsonTree readTreeRange(JSONTokenizer source, TreeRange range) {
+		// only the first parse of a tree records its problems, so that releasing and parsing it again adds none
+		boolean problemsRecorded = ! range.problemsClaimed.compareAndSet(false, true);
+		JSONTokenizer tokenizer = source.slice(range.start, range.end);
+		return new NexsonStreamReader(tokenizer, treeOptions).readTreeElement(this, range.treeId, problemsRecorded);
+	}
+	
+	/**
+	 * Parse any lazily parsed trees that have not been parsed yet, concurrently if a tree parsing pool has been set.
+	 */
+	private void parseRemainingTrees() {
+		
+		if (treeParsingPool == null) {
+			for (int i = 0; i < getTreeCount(); i++) {
+				getTree(i);
+			}
+			return;
+		}
+
+		final List<Integer> unparsed = new ArrayList<Integer>();
+		final List<TreeRange> unparsedRanges = new ArrayList<TreeRange>();
+		final JSONTokenizer source;
+		synchronized (this) {
+			source = treeSource;
+			for (int i = 0; i < trees.size(); i++) {
+				if (trees.get(i) == null) {
+					unparsed.add(i);
+					unparsedRanges.add(treeRanges.get(i));
+				}
+			}
+		}
+		if (unparsed.isEmpty()) {
+			return;
+		}
+		
+		final NexsonTree[] parsed = new NexsonTree[unparsed.size()];
+		treeParsingPool.invoke(new TreeParseTask(new TreeParser() {
+			@Override
+			public NexsonTree parseTree(int i) {
+				return readTreeRange(source, unparsedRanges.get(i));
+			}
+		}, parsed, 0, parsed.length));
+		
+		synchronized (this) {
+			for (int i = 0; i < parsed.length; i++) {
+				int index = unparsed.get(i);
+				if (index < trees.size() && treeRanges.get(index) == unparsedRanges.get(i) && trees.get(index) == null) {
+					trees.set(index, parsed[i]);
+					treeStateVersion++;
+				}
+			}
+		}
+	}
 
 	public void addTrees(Collection<NexsonTree> treesToAdd) {
 		for (NexsonTree tree : treesToAdd) {
@@ -81,10 +422,66 @@ public class NexsonSource extends NexsonElement {
 		}
 	}
 
-	public int getTreeCount() {
+	/**
+	 * Return the problems recorded while this study was parsed leniently (see NexsonParseOptions.setStrict()). If the
+	 * parse options supplied a collector, that collector is returned, and may also hold the problems of other studies.
+	 * @return
+	 */
+	public synchronized NexsonDiagnostics getDiagnostics() {
+		if (diagnostics == null) {
+			diagnostics = new NexsonDiagnostics();
+		}
+		return diagnostics;
+	}
+	
+	/**
+	 * Record a problem found while parsing this study leniently, identifying the study by its ot:studyId, or by the path
+	 * of the file it was read from if the id has not been read yet.
+	 * @param code
+	 * @param elementId
+	 * @param offset
+	 */
+	void recordProblem(MessageCode code, String elementId, long offset) {
+		String studyId = getId();
+		if (studyId == null) {
+			Object property = getProperty(OTVocabularyPredicate.OT_STUDY_ID);
+			studyId = property != null ? property.toString() : sourcePath;
+		}
+		getDiagnostics().add(code, studyId, elementId, offset);
+	}
+	
+	/**
+	 * Return true if problems found in the NexSON should cause a NexsonParseException rather than being recorded.
+	 * @return
+	 */
+	boolean isStrictParsing() {
+		return strictParsing;
+	}
+	
+	public synchronized int getTreeCount() {
 		return trees.size();
 	}
 	
+	/**
+	 * Return a counter that changes whenever a tree of this study is added, parsed lazily or released. Used by
+	 * NexsonSourceCache to re-estimate the size of cached studies.
+	 * @return
+	 */
+	synchronized int getTreeStateVersion() {
+		return treeStateVersion;
+	}
+	
+	/**
+	 * Return the length of the NexSON of the tree at the specified index if it is being parsed lazily and has not been
+	 * parsed yet, or 0 otherwise. Used by NexsonSourceCache to estimate the size of the study.
+	 * @param i
+	 * @return
+	 */
+	synchronized long getUnparsedTreeLength(int i) {
+		TreeRange range = treeRanges.get(i);
+		return range != null && trees.get(i) == null ? range.end - range.start : 0;
+	}
+	
 	public int getOTUCount() {
 		return otus.size();
 	}
@@ -97,6 +494,30 @@ public class NexsonSource extends NexsonElement {
 		return otusById.get(otuId);
 	}
 	
+	/**
+	 * Return the OTUs whose ot:ottId property is the specified OTT id, in the order of the OTU list, or an empty list if
+	 * there are none.
+	 * @param ottId
+	 * @return
+	 */
+	public List<NexsonOTU> getOTUsByOttId(long ottId) {
+		return getOTUOttIdIndex().get(ottId);
+	}
+	
+	/**
+	 * Return the index of the OTUs of this study by their ot:ottId property. The index is built when it is first requested,
+	 * and rebuilt if OTUs have since been added. Changes to the ot:ottId properties of existing OTUs are not tracked.
+	 * @return
+	 */
+	public OttIdIndex<NexsonOTU> getOTUOttIdIndex() {
+		OttIdIndex<NexsonOTU> index = otuOttIdIndex;
+		if (index == null) {
+			index = OttIdIndex.forOTUs(otus);
+			otuOttIdIndex = index;
+		}
+		return index;
+	}
+	
 	/**
 	 * Add an OTU to the list of OTUs for this study. Performs basic error checking... Might need to be better.
 	 * @param otu
@@ -111,6 +532,7 @@ public class NexsonSource extends NexsonElement {
 		} else {
 			otus.add(otu);
 			otusById.put(otu.getId(), otu);
+			otuOttIdIndex = null;
 		}
 	}
 	
@@ -146,6 +568,8 @@ public class NexsonSource extends NexsonElement {
 	 * "trees": { "tree": [...] }}}
 	 * </p>
 	 * <br/>
+	 * <p>Studies in the NexSON 1.2 by-id layout (otusById, treesById) are serialized again and read by NexsonStreamReader.</p>
+	 * <br/>
 	 * 
 	 */
 	@Override
@@ -159,16 +583,29 @@ public class NexsonSource extends NexsonElement {
 			studyRootElement = (JSONObject)studyRootElement.get("nexml");	
 		}
 		
+		if (studyRootElement != null && (studyRootElement.containsKey("otusById") || studyRootElement.containsKey("treesById"))) {
+			// NexSON 1.2 by-id layout, which only NexsonStreamReader reads. the JSONObject is walked in place rather than
+			// serialized and parsed again. such a walk cannot be sliced, so the trees are read in order, without the pool
+			NexsonParseOptions options = new NexsonParseOptions();
+			options.setStrict(strictParsing);
+			options.setDiagnostics(diagnostics);
+			read(new JSONValueTokenizer(nexson), options);
+			return;
+		}
+		
 		// ===== study metadata
 		
 		processMetadata(studyRootElement);
 		
-		setId((String) getNonNullProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName()));
-		
-		if (!hasProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName())) {
-			throw new NexsonParseException("Attempt to parse NexSON study without ot:studyId property. " +
-					"NexSON begins with: \n\n" + studyRootElement.toJSONString().substring(0, 256) + "...");
+		if (getProperty(OTVocabularyPredicate.OT_STUDY_ID) == null) {
+			if (strictParsing) {
+				String json = studyRootElement.toJSONString();
+				throw new NexsonParseException("Attempt to parse NexSON study without ot:studyId property. " +
+						"NexSON begins with: \n\n" + json.substring(0, Math.min(256, json.length())) + "...");
+			}
+			throw new NexsonParseException("Attempt to parse NexSON study without ot:studyId property");
 		}
+		setId((String) getProperty(OTVocabularyPredicate.OT_STUDY_ID));
 
 		// ===== otus
 		
@@ -184,14 +621,87 @@ public class NexsonSource extends NexsonElement {
 		
 		JSONArray treeList = (JSONArray)((JSONObject) studyRootElement.get("trees")).get("tree");
 
-		// Process each tree in turn, yielding a JadeTree
-		for (Object treeObj : treeList) {
-			JSONObject treeJSON = (JSONObject)treeObj;
+		if (treeParsingPool != null) {
 			
-			NexsonTree tree = new NexsonTree(treeJSON, this);
-			addTree(tree);
+			// Process the trees concurrently, then add them in their original order
+			final JSONArray treeJSONs = treeList;
+			final NexsonTree[] parsed = new NexsonTree[treeList.size()];
+			treeParsingPool.invoke(new TreeParseTask(new TreeParser() {
+				@Override
+				public NexsonTree parseTree(int i) {
+					return new NexsonTree((JSONObject) treeJSONs.get(i), NexsonSource.this);
+				}
+			}, parsed, 0, parsed.length));
+			for (NexsonTree tree : parsed) {
+				addTree(tree);
+			}
 			
-		}		
+		} else {
+		
+			// Process each tree in turn, yielding a JadeTree
+			for (Object treeObj : treeList) {
+				JSONObject treeJSON = (JSONObject)treeObj;
+				
+				NexsonTree tree = new NexsonTree(treeJSON, this);
+				addTree(tree);
+				
+			}
+		}
+	}
+	
+	/**
+	 * Something that can produce the tree at a given index. Used by TreeParseTask.
+	 */
+	private interface TreeParser {
+		NexsonTree parseTree(int i);
+	}
+	
+	/**
+	 * Fork/join task that parses the trees with indexes from start (inclusive) to end (exclusive) into the corresponding
+	 * positions of the results array, by recursively splitting the range in half. Each tree only reads the (by now complete)
+	 * OTU map of the study, so trees can be built independently.
+	 */
+	private static class TreeParseTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final TreeParser parser;
+		private final NexsonTree[] results;
+		private final int start;
+		private final int end;
+		
+		TreeParseTask(TreeParser parser, NexsonTree[] results, int start, int end) {
+			this.parser = parser;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end - start == 1) {
+				results[start] = parser.parseTree(start);
+			} else if (end > start) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new TreeParseTask(parser, results, start, mid), new TreeParseTask(parser, results, mid, end));
+			}
+		}
+	}
+	
+	/**
+	 * The location of the NexSON for a lazily parsed tree.
+	 */
+	private static class TreeRange {
+		final String treeId;
+		final long start;
+		final long end;
+		final AtomicBoolean problemsClaimed = new AtomicBoolean(); // set by the first parse of the tree
+		
+		TreeRange(String treeId, long start, long end) {
+			this.treeId = treeId;
+			this.start = start;
+			this.end = end;
+		}
 	}
 	
 	/*
@@ -208,14 +718,7 @@ public class NexsonSource extends NexsonElement {
 	 * For testing
 	 * @param args
 	 */
-	public static void main(String[] args) {
-		Reader r = null;
-		try {
-			r = new FileReader(args[0]);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
-		
-		NexsonSource test = new NexsonSource(r);
+	public static void main(String[] args) throws IOException {
+		NexsonSource test = new NexsonSource(Paths.get(args[0]));
 	}
 }
@@ -0,0 +1,449 @@
+package org.opentree.nexson.io;
+
+import jade.tree.TreeNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>A thread-safe cache of parsed NexsonSource objects, so that a study that is requested repeatedly is only parsed
+ * once. Studies are identified by a key: either the hash of the contents of a NexSON file (get(Path)), or any string the
+ * caller chooses, such as a study id and git SHA (get(String, String, Loader)).</p>
+ * <br/>
+ * <p>The cache is bounded by the estimated memory used by the cached studies (see estimateSize()), and evicts the least
+ * recently used studies when the bound is exceeded. A study larger than the bound by itself is returned but not cached.
+ * The size of a study whose trees are parsed lazily changes as its trees are parsed and released, so it is estimated
+ * again whenever the study is requested from the cache after such a change. Studies are estimated without holding the
+ * cache's lock, so estimating a large study does not hold up requests for other studies.</p>
+ * <br/>
+ * <p>Loads are single-flight: if several threads request the same missing key at once, the study is parsed once, by the
+ * first of them, and the others wait for and share its result. If a load fails, all the waiting threads receive the
+ * exception, and nothing is cached.</p>
+ * <br/>
+ * <p>Cached NexsonSource objects are shared between all callers, and should not be modified.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonSourceCache {
+
+	// rough per-object costs used to estimate the memory used by a study, in bytes
+	private static final long ELEMENT_BYTES = 192;
+	private static final long PROPERTY_BYTES = 64;
+	private static final long ANNOTATION_BYTES = 512;
+	private static final long UNPARSED_TREE_BYTES = 64;
+
+	private final long maxBytes;
+	private volatile NexsonParseOptions parseOptions = new NexsonParseOptions();
+
+	// guarded by this
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long totalBytes = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long loadFailureCount = 0;
+	private long evictionCount = 0;
+
+	private final ConcurrentHashMap<String, FutureTask<NexsonSource>> loading = new ConcurrentHashMap<String, FutureTask<NexsonSource>>();
+
+	private static class Entry {
+		final NexsonSource source;
+		final long bytes;
+		final int treeStateVersion; // the version of the source's trees when its size was estimated
+
+		Entry(NexsonSource source, long bytes, int treeStateVersion) {
+			this.source = source;
+			this.bytes = bytes;
+			this.treeStateVersion = treeStateVersion;
+		}
+	}
+
+	/**
+	 * Loads a study that is missing from the cache.
+	 */
+	public interface Loader {
+
+		/**
+		 * Parse and return the study. Called at most once at a time for each key.
+		 * @return
+		 * @throws IOException
+		 */
+		NexsonSource load() throws IOException;
+	}
+
+	/**
+	 * Create a cache holding studies with a total estimated size of at most maxBytes.
+	 * @param maxBytes
+	 */
+	public NexsonSourceCache(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("The maximum size of the cache cannot be negative");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	// ### getters
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized long getEstimatedBytes() {
+		return totalBytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Return the number of requests that found their key missing from the cache, including requests that waited for
+	 * another thread's load of the same key.
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getLoadFailureCount() {
+		return loadFailureCount;
+	}
+
+	/**
+	 * Return the number of studies evicted from the cache to stay within its size bound (including studies too large to
+	 * be cached at all). Studies removed by invalidate() or clear() are not counted.
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	// ### setters
+
+	/**
+	 * Set the options used to parse files loaded by get(Path). The options are copied, so later changes to the provided
+	 * object have no effect. Studies parsed with different options are cached under different keys.
+	 * @param parseOptions
+	 */
+	public void setParseOptions(NexsonParseOptions parseOptions) {
+		this.parseOptions = parseOptions.copy();
+	}
+
+	// ### cache access
+
+	/**
+	 * Return the study contained in the NexSON file, parsing it only if a file with the same contents has not already
+	 * been cached with the current parse options. The file is identified by the SHA-256 hash of its contents, so the same
+	 * study is found under any path, and a file that has changed is parsed again.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public NexsonSource get(final Path file) throws IOException {
+		final NexsonParseOptions options = parseOptions;
+		return get(contentKey(file) + "/" + optionsKey(options), new Loader() {
+			@Override
+			public NexsonSource load() throws IOException {
+				return new NexsonSource(file, options);
+			}
+		});
+	}
+
+	/**
+	 * Return the study with the specified id at the specified git SHA, using the loader to parse it if it is not cached.
+	 * @param studyId
+	 * @param gitSha
+	 * @param loader
+	 * @return
+	 * @throws IOException
+	 */
+	public NexsonSource get(String studyId, String gitSha, Loader loader) throws IOException {
+		return get(studyId + "@" + gitSha, loader);
+	}
+
+	/**
+	 * Return the study cached under the key, using the loader to parse it if it is not cached.
+	 * @param key
+	 * @param loader
+	 * @return
+	 * @throws IOException if the loader throws an IOException
+	 */
+	public NexsonSource get(final String key, final Loader loader) throws IOException {
+
+		Entry hit;
+		synchronized (this) {
+			hit = entries.get(key);
+			if (hit != null) {
+				hitCount++;
+			} else {
+				missCount++;
+			}
+		}
+		if (hit != null) {
+			refresh(key, hit);
+			return hit.source;
+		}
+
+		FutureTask<NexsonSource> task = new FutureTask<NexsonSource>(new Callable<NexsonSource>() {
+			@Override
+			public NexsonSource call() throws IOException {
+				// another load of the same key may have finished between our miss and the start of this one
+				synchronized (NexsonSourceCache.this) {
+					Entry entry = entries.get(key);
+					if (entry != null) {
+						return entry.source;
+					}
+				}
+				NexsonSource source = loader.load();
+				put(key, source);
+				return source;
+			}
+		});
+		FutureTask<NexsonSource> running = loading.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the study " + key + " to load", ex);
+		} catch (ExecutionException ex) {
+			if (running == task) {
+				synchronized (this) {
+					loadFailureCount++;
+				}
+			}
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Return the study cached under the key, or null if there is none. The study is not loaded if it is missing.
+	 * @param key
+	 * @return
+	 */
+	public NexsonSource getIfPresent(String key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null) {
+				hitCount++;
+			} else {
+				missCount++;
+			}
+		}
+		if (entry == null) {
+			return null;
+		}
+		refresh(key, entry);
+		return entry.source;
+	}
+
+	/**
+	 * Remove the study cached under the key, if there is one.
+	 * @param key
+	 */
+	public synchronized void invalidate(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			totalBytes -= entry.bytes;
+		}
+	}
+
+	/**
+	 * Remove all the cached studies. The statistics are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	/**
+	 * Estimate the size of a cached study again if its trees have been parsed or released since it was last estimated.
+	 * The entry is only replaced if it is still the one cached under the key.
+	 */
+	private void refresh(String key, Entry entry) {
+		if (entry.source.getTreeStateVersion() != entry.treeStateVersion) {
+			store(key, entry, estimate(entry.source));
+		}
+	}
+
+	private void put(String key, NexsonSource source) {
+		store(key, null, estimate(source));
+	}
+
+	/**
+	 * Return a new entry for the study with its estimated size. Called without holding the cache's lock.
+	 */
+	private static Entry estimate(NexsonSource source) {
+		// read the version before estimating, so that trees parsed during the estimate cause another one later
+		int treeStateVersion = source.getTreeStateVersion();
+		return new Entry(source, estimateSize(source), treeStateVersion);
+	}
+
+	/**
+	 * Cache the entry under the key, evicting studies as necessary to stay within bounds. If expected is not null, the
+	 * entry replaces it, and nothing is done if another entry (or none) has been cached under the key in the meantime.
+	 */
+	private synchronized void store(String key, Entry expected, Entry entry) {
+
+		if (expected != null && entries.get(key) != expected) {
+			return;
+		}
+		long bytes = entry.bytes;
+		if (bytes > maxBytes) {
+			Entry previous = entries.remove(key);
+			if (previous != null) {
+				totalBytes -= previous.bytes;
+			}
+			evictionCount++;
+			return;
+		}
+
+		Entry previous = entries.put(key, entry);
+		if (previous != null) {
+			totalBytes -= previous.bytes;
+		}
+		totalBytes += bytes;
+
+		// evict the least recently used studies until we are within bounds. the new study is the most recently used, so
+		// it is reached last, and is never evicted since it fits by itself
+		Iterator<Entry> iter = entries.values().iterator();
+		while (totalBytes > maxBytes) {
+			Entry eldest = iter.next();
+			iter.remove();
+			totalBytes -= eldest.bytes;
+			evictionCount++;
+		}
+	}
+
+	// ### keys and sizes
+
+	/**
+	 * Return the cache key for the contents of the file: "sha256:" followed by the hex-encoded SHA-256 hash of its bytes.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static String contentKey(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex); // every java platform is required to support SHA-256
+		}
+
+		InputStream in = Files.newInputStream(file);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		byte[] hash = digest.digest();
+		StringBuilder key = new StringBuilder(7 + hash.length * 2).append("sha256:");
+		for (byte b : hash) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Return the part of the cache key for a file that identifies the options it was parsed with: the options that
+	 * determine which content is kept. The tree parsing pool and the diagnostics collector do not change the result,
+	 * and are left out.
+	 */
+	private static String optionsKey(NexsonParseOptions options) {
+		StringBuilder key = new StringBuilder();
+		key.append(options.isLazyTrees() ? 'L' : '-');
+		key.append(options.isIncludeAnnotations() ? 'A' : '-');
+		key.append(options.isIncludeOTULabels() ? 'O' : '-');
+		key.append(options.isIncludeBranchLengths() ? 'B' : '-');
+		key.append(options.isIncludeTrees() ? 'T' : '-');
+		key.append(options.isStrict() ? 'S' : '-');
+		if (options.getIncludedProperties() != null) {
+			key.append(new TreeSet<String>(options.getIncludedProperties()));
+		}
+		if (options.getStudyId() != null) {
+			key.append("#").append(options.getStudyId());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Return a rough estimate of the memory used by the study, in bytes, based on the number of elements, properties and
+	 * annotations it contains, and the length of the text held for annotations that have not been decoded yet. Trees that
+	 * are being parsed lazily and have not been parsed are not parsed by this method; they are counted at a small fixed
+	 * cost plus the length of their NexSON, which is kept until they are parsed.
+	 * @param source
+	 * @return
+	 */
+	public static long estimateSize(NexsonSource source) {
+		long bytes = estimateSize((NexsonElement) source);
+		for (NexsonOTU otu : source.getOTUList()) {
+			bytes += estimateSize(otu);
+		}
+		for (int i = 0; i < source.getTreeCount(); i++) {
+			if (! source.isTreeParsed(i)) {
+				bytes += UNPARSED_TREE_BYTES + source.getUnparsedTreeLength(i);
+				continue;
+			}
+			NexsonTree tree = source.getTree(i);
+			bytes += estimateSize(tree);
+			for (TreeNode node : new NodeTraversal(tree.getRoot(), NodeTraversal.Order.PREORDER, NodeTraversal.Filter.ALL)) {
+				bytes += estimateSize((NexsonElement) node);
+			}
+		}
+		return bytes;
+	}
+
+	private static long estimateSize(NexsonElement element) {
+		long bytes = ELEMENT_BYTES;
+		if (element.properties != null) {
+			bytes += element.properties.size() * PROPERTY_BYTES;
+		}
+		bytes += element.getAnnotationCount() * ANNOTATION_BYTES;
+		bytes += element.getUndecodedAnnotationBytes();
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "NexsonSourceCache [size=" + entries.size() + ", estimatedBytes=" + totalBytes + ", maxBytes=" + maxBytes
+				+ ", hits=" + hitCount + ", misses=" + missCount + ", loadFailures=" + loadFailureCount + ", evictions="
+				+ evictionCount + "]";
+	}
+}
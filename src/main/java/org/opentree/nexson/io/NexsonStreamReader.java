@@ -0,0 +1,911 @@
+package org.opentree.nexson.io;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.opentree.nexson.io.JSONTokenizer.Token;
+import org.opentree.properties.OTVocabularyObject;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * <p>Reads NexSON directly from a JSONTokenizer into NexsonSource, NexsonOTU, NexsonTree and NexsonNode objects in a single
+ * pass. Unlike parsing with JSONValue.parse and handing the result to NexsonSource(JSONObject), no json-simple document is
+ * built for the study, so the memory required is bounded by the size of the resulting NexsonSource rather than by the size
+ * of the JSON.</p>
+ * <br/>
+ * <p>ot:annotation meta elements, whose structure is open-ended, are not decoded while the study is read. If the tokenizer
+ * supports slicing they are skipped and only their location is kept, otherwise they are read into json-simple objects;
+ * either way they are only turned into NexsonAnnotations when an element's getAnnotations() is first called.</p>
+ * <br/>
+ * <p>Keys may appear in any order within NexSON objects. In particular edges may precede nodes, tree metadata may follow the
+ * nodes, and trees may precede otus, so nodes are only finished and linked once their enclosing tree has been read, and OTU
+ * references that cannot be resolved when a tree is finished are resolved at the end of the study.</p>
+ * <br/>
+ * <p>Anything excluded by the projection options of the NexsonParseOptions (annotations, properties, OTU labels, branch
+ * lengths, trees) is passed over with skipValue() as soon as it is recognized, so it is never materialized. Meta elements
+ * are recognized by their @property, so a "$" value that precedes the @property is still read.</p>
+ * <br/>
+ * <p>Recoverable problems (tips without OTUs, unknown OTU references) are recorded with the offset of the node in the
+ * NexsonSource's diagnostics, or cause a NexsonParseException if the options are strict.</p>
+ * <br/>
+ * <p>Both the NexSON 1.0 layout (elements in arrays, meta elements in "meta" arrays) and the NexSON 1.2 "by-id" layout
+ * (otusById, otuById, treesById, treeById, nodeById and edgeBySourceId objects keyed by element id, with meta properties
+ * as "^"-prefixed keys) are read, and produce the same objects. The layout is recognized from the keys as they are met,
+ * so no version needs to be specified. In the by-id layout each node id is given a dense index the first time it is seen,
+ * as a node or as an edge endpoint, so edges are resolved to indexes as they are read and no edge map is built.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonStreamReader {
+
+	private final JSONTokenizer tokenizer;
+	private final NexsonParseOptions options;
+
+	/** suffix of the by-id keys that give the order of elements whose containers are keyed by id */
+	private static final String ELEMENT_ORDER_SUFFIX = "ElementOrder";
+	private static final String TREE_ORDER_KEY = "^ot:treeElementOrder";
+
+	private boolean otusRead = false;
+	private boolean treeProblemsRecorded = false;
+	private List<NexsonNode> nodesAwaitingOTUs = new ArrayList<NexsonNode>();
+	private List<String> awaitedOTUIds = new ArrayList<String>();
+	private long[] awaitingNodeOffsets = new long[16];
+
+	/**
+	 * Create a NexsonStreamReader that will read NexSON from the provided Reader.
+	 * @param reader
+	 */
+	public NexsonStreamReader(Reader reader) {
+		this(new CharJSONTokenizer(reader));
+	}
+
+	/**
+	 * Create a NexsonStreamReader that will read NexSON from the provided tokenizer, which should be positioned at the
+	 * beginning of the document.
+	 * @param tokenizer
+	 */
+	public NexsonStreamReader(JSONTokenizer tokenizer) {
+		this(tokenizer, new NexsonParseOptions());
+	}
+
+	/**
+	 * Create a NexsonStreamReader that will read NexSON from the provided tokenizer using the specified options. If the
+	 * options specify lazy trees, the tokenizer must support slicing.
+	 * @param tokenizer
+	 * @param options
+	 */
+	public NexsonStreamReader(JSONTokenizer tokenizer, NexsonParseOptions options) {
+		if (options.isLazyTrees() && !tokenizer.supportsSlicing()) {
+			throw new IllegalArgumentException("Lazy tree parsing requires a tokenizer that supports slicing");
+		}
+		this.tokenizer = tokenizer;
+		this.options = options;
+	}
+
+	/**
+	 * Read the study from the NexSON document and return it.
+	 * @return
+	 */
+	public NexsonSource readSource() {
+		NexsonSource source = new NexsonSource();
+		readSource(source);
+		return source;
+	}
+
+	/**
+	 * Read the study from the NexSON document into the provided (empty) NexsonSource. The study root element may be either
+	 * the top level "nexml" element, or the "nexml" element within a top level "data" element.
+	 * @param source
+	 */
+	void readSource(NexsonSource source) {
+
+		if (options.isLazyTrees()) {
+			source.setTreeSource(tokenizer);
+		}
+
+		tokenizer.expect(Token.START_OBJECT);
+		boolean foundStudy = false;
+
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("nexml")) {
+				readStudy(source);
+				foundStudy = true;
+
+			} else if (key.equals("data")) {
+				tokenizer.checkCurrent(Token.START_OBJECT);
+				while (tokenizer.next() == Token.FIELD_NAME) {
+					String dataKey = tokenizer.getText();
+					tokenizer.next();
+					if (dataKey.equals("nexml")) {
+						readStudy(source);
+						foundStudy = true;
+					} else {
+						tokenizer.skipValue();
+					}
+				}
+
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+
+		if (!foundStudy) {
+			throw new NexsonParseException("Attempt to parse NexSON without a nexml element");
+		}
+	}
+
+	// ### study
+
+	private void readStudy(NexsonSource source) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		long studyOffset = tokenizer.getTokenOffset();
+		String id = null;
+
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("@id")) {
+				id = tokenizer.readString();
+			} else if (key.equals("meta")) {
+				readMetadata(source);
+			} else if (key.equals("otus")) {
+				readOTUs(source);
+			} else if (key.equals("trees") && options.isIncludeTrees()) {
+				readTrees(source);
+			} else if (key.equals("otusById")) {
+				readOTUsById(source);
+			} else if (key.equals("treesById") && options.isIncludeTrees()) {
+				readTreesById(source);
+			} else if (key.startsWith("^")) {
+				readByIdMeta(source, key);
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+
+		setElementId(source, id, studyOffset);
+		String studyId = options.getStudyId();
+		if (studyId == null) {
+			Object studyIdProperty = source.getProperty(OTVocabularyPredicate.OT_STUDY_ID.propertyName());
+			if (studyIdProperty == null) {
+				throw new NexsonParseException("Attempt to parse NexSON study without ot:studyId property at offset " + studyOffset);
+			}
+			studyId = String.valueOf(studyIdProperty);
+		}
+		source.setId(studyId);
+
+		// assign any otus that were referred to by trees preceding the otus element
+		for (int i = 0; i < nodesAwaitingOTUs.size(); i++) {
+			NexsonNode node = nodesAwaitingOTUs.get(i);
+			node.assignOTU(source.getOTUById(awaitedOTUIds.get(i)));
+			node.checkOTUReference(awaitedOTUIds.get(i), awaitingNodeOffsets[i]);
+		}
+		nodesAwaitingOTUs.clear();
+		awaitedOTUIds.clear();
+	}
+
+	// ### otus
+
+	private void readOTUs(NexsonSource source) {
+
+		if (tokenizer.current() == Token.START_ARRAY) { // more than one otus element
+			while (tokenizer.next() != Token.END_ARRAY) {
+				readOTUs(source);
+			}
+			return;
+		}
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("otu")) {
+				if (tokenizer.current() == Token.START_ARRAY) {
+					while (tokenizer.next() != Token.END_ARRAY) {
+						source.addOTU(readOTU(null));
+					}
+				} else {
+					source.addOTU(readOTU(null));
+				}
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+		otusRead = true;
+	}
+
+	/**
+	 * Read the otus elements of the by-id layout, e.g.<br/>
+	 * "otusById": {"otus1": {"otuById": {"otu1": {"@label": ..., "^ot:ottId": ...}, ...}}}
+	 * @param source
+	 */
+	private void readOTUsById(NexsonSource source) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		while (tokenizer.next() == Token.FIELD_NAME) { // the id of an otus element
+			tokenizer.next();
+			tokenizer.checkCurrent(Token.START_OBJECT);
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+
+				if (key.equals("otuById")) {
+					tokenizer.checkCurrent(Token.START_OBJECT);
+					while (tokenizer.next() == Token.FIELD_NAME) {
+						String id = tokenizer.getText();
+						tokenizer.next();
+						source.addOTU(readOTU(id));
+					}
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+		}
+		otusRead = true;
+	}
+
+	/**
+	 * Read an otu element.
+	 * @param id the id of the otu if it is known from its key (in the by-id layout), or null if it is given by its @id
+	 * @return
+	 */
+	private NexsonOTU readOTU(String id) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		long otuOffset = tokenizer.getTokenOffset();
+		NexsonOTU otu = new NexsonOTU();
+		String label = null;
+
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("@id")) {
+				id = tokenizer.readString();
+			} else if (key.equals("@label") && options.isIncludeOTULabels()) {
+				label = tokenizer.readString();
+			} else if (key.equals("meta")) {
+				readMetadata(otu);
+			} else if (key.startsWith("^")) {
+				readByIdMeta(otu, key);
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+
+		setElementId(otu, id, otuOffset);
+		otu.completeParse(label);
+		return otu;
+	}
+
+	// ### trees
+
+	private void readTrees(NexsonSource source) {
+
+		if (tokenizer.current() == Token.START_ARRAY) { // more than one trees element
+			while (tokenizer.next() != Token.END_ARRAY) {
+				readTrees(source);
+			}
+			return;
+		}
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("tree")) {
+				if (tokenizer.current() == Token.START_ARRAY) {
+					while (tokenizer.next() != Token.END_ARRAY) {
+						readOrSkimTree(source);
+					}
+				} else {
+					readOrSkimTree(source);
+				}
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+	}
+
+	/**
+	 * Read the trees elements of the by-id layout, e.g.<br/>
+	 * "treesById": {"trees1": {"@otus": "otus1", "^ot:treeElementOrder": ["tree1", ...], "treeById": {"tree1": {...}}}}<br/>
+	 * The trees of each trees element are added in the order given by its ^ot:treeElementOrder, if it has one, followed
+	 * by any trees it does not list, in the order they appear.
+	 * @param source
+	 */
+	private void readTreesById(NexsonSource source) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		while (tokenizer.next() == Token.FIELD_NAME) { // the id of a trees element
+			tokenizer.next();
+			tokenizer.checkCurrent(Token.START_OBJECT);
+
+			List<String> treeIds = new ArrayList<String>();
+			List<Object> trees = new ArrayList<Object>(); // NexsonTrees, or the ranges of lazy trees as long[2]
+			List<String> order = null;
+
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+
+				if (key.equals("treeById")) {
+					tokenizer.checkCurrent(Token.START_OBJECT);
+					while (tokenizer.next() == Token.FIELD_NAME) {
+						String id = tokenizer.getText();
+						tokenizer.next();
+						treeIds.add(id);
+						if (options.isLazyTrees()) {
+							// the id is the key, so there is no need to look inside the tree
+							tokenizer.checkCurrent(Token.START_OBJECT);
+							long treeOffset = tokenizer.getTokenOffset();
+							tokenizer.skipValue();
+							trees.add(new long[] {treeOffset, tokenizer.getOffset()});
+						} else {
+							trees.add(readTree(source, id));
+						}
+					}
+				} else if (key.equals(TREE_ORDER_KEY) && tokenizer.current() == Token.START_ARRAY) {
+					order = new ArrayList<String>();
+					while (tokenizer.next() != Token.END_ARRAY) {
+						order.add(tokenizer.readString());
+					}
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+
+			boolean[] added = new boolean[treeIds.size()];
+			if (order != null) {
+				HashMap<String, Integer> indexForId = new HashMap<String, Integer>(treeIds.size() * 2);
+				for (int i = 0; i < treeIds.size(); i++) {
+					indexForId.put(treeIds.get(i), i);
+				}
+				for (String id : order) {
+					Integer i = indexForId.get(id);
+					if (i != null && !added[i]) {
+						addTree(source, id, trees.get(i));
+						added[i] = true;
+					}
+				}
+			}
+			for (int i = 0; i < added.length; i++) {
+				if (!added[i]) {
+					addTree(source, treeIds.get(i), trees.get(i));
+				}
+			}
+		}
+	}
+
+	private static void addTree(NexsonSource source, String id, Object tree) {
+		if (tree instanceof NexsonTree) {
+			source.addTree((NexsonTree) tree);
+		} else {
+			long[] range = (long[]) tree;
+			source.addLazyTree(id, range[0], range[1]);
+		}
+	}
+
+	private void readOrSkimTree(NexsonSource source) {
+		if (options.isLazyTrees()) {
+			skimTree(source);
+		} else {
+			source.addTree(readTree(source, null));
+		}
+	}
+
+	/**
+	 * Read a single tree element, which should be the only value in the tokenizer's input, for the provided study. The
+	 * study's OTUs must already have been read. Used to parse lazily parsed trees.
+	 * @param source
+	 * @param id the id of the tree, which is used if the tree element does not give its @id (as in the by-id layout)
+	 * @param problemsRecorded true if the tree has been read before, and the problems in it have already been recorded
+	 * @return
+	 */
+	NexsonTree readTreeElement(NexsonSource source, String id, boolean problemsRecorded) {
+		otusRead = true;
+		treeProblemsRecorded = problemsRecorded;
+		tokenizer.expect(Token.START_OBJECT);
+		return readTree(source, id);
+	}
+
+	/**
+	 * Record the location and id of a tree without parsing it, so it can be parsed later if it is requested.
+	 * @param source
+	 */
+	private void skimTree(NexsonSource source) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		long treeOffset = tokenizer.getTokenOffset();
+		String id = null;
+
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("@id")) {
+				id = tokenizer.readString();
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+
+		if (id == null) {
+			throw new NexsonParseException("Attempt to add a null source id near offset " + treeOffset);
+		}
+		source.addLazyTree(id, treeOffset, tokenizer.getOffset());
+	}
+
+	/**
+	 * Read a tree element, in either layout.
+	 * @param source
+	 * @param id the id of the tree if it is known from its key (in the by-id layout), or null if it is given by its @id
+	 * @return
+	 */
+	private NexsonTree readTree(NexsonSource source, String id) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		long treeOffset = tokenizer.getTokenOffset();
+		NexsonTree tree = new NexsonTree();
+		tree.setParentStudy(source);
+		tree.setProblemsRecorded(treeProblemsRecorded);
+
+		List<NexsonNode> nodes = new ArrayList<NexsonNode>();
+		List<String> nodeOTUIds = new ArrayList<String>();
+		long[] nodeOffsets = new long[64]; // for diagnostics
+		List<String> edgeSources = new ArrayList<String>();
+		List<String> edgeTargets = new ArrayList<String>();
+		List<Number> edgeLengths = new ArrayList<Number>();
+		NodesById nodesById = null; // for the by-id layout
+
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("@id")) {
+				id = tokenizer.readString();
+			} else if (key.equals("meta")) {
+				readMetadata(tree);
+			} else if (key.equals("node")) {
+				tokenizer.checkCurrent(Token.START_ARRAY);
+				while (tokenizer.next() != Token.END_ARRAY) {
+					if (nodes.size() == nodeOffsets.length) {
+						nodeOffsets = Arrays.copyOf(nodeOffsets, nodeOffsets.length * 2);
+					}
+					nodeOffsets[nodes.size()] = tokenizer.getTokenOffset();
+					readNode(tree, null, nodes, nodeOTUIds, -1);
+				}
+			} else if (key.equals("edge")) {
+				tokenizer.checkCurrent(Token.START_ARRAY);
+				while (tokenizer.next() != Token.END_ARRAY) {
+					readEdge(edgeSources, edgeTargets, edgeLengths);
+				}
+			} else if (key.equals("nodeById")) {
+				if (nodesById == null) {
+					nodesById = new NodesById();
+				}
+				readNodesById(tree, nodesById);
+			} else if (key.equals("edgeBySourceId")) {
+				if (nodesById == null) {
+					nodesById = new NodesById();
+				}
+				readEdgesBySourceId(nodesById);
+			} else if (key.startsWith("^")) {
+				readByIdMeta(tree, key);
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+
+		setElementId(tree, id, treeOffset);
+
+		// the tree metadata is now complete, so we can finish the nodes
+		if (nodesById == null) {
+			completeNodes(nodes, nodeOTUIds, nodeOffsets);
+			tree.linkNodes(nodes, edgeSources, edgeTargets, edgeLengths);
+		} else {
+			TreeTopology topology = nodesById.topology(tree.getId());
+			completeNodes(nodesById.nodes, nodesById.otuIds, nodesById.offsets);
+			tree.linkNodes(nodesById.nodes, topology, nodesById.edgeLengths);
+		}
+		return tree;
+	}
+
+	/**
+	 * Finish the nodes of a tree, once the tree metadata is complete, and assign their OTUs (or arrange for them to be
+	 * assigned once the OTUs have been read).
+	 */
+	private void completeNodes(List<NexsonNode> nodes, List<String> nodeOTUIds, long[] nodeOffsets) {
+		for (int i = 0; i < nodes.size(); i++) {
+			NexsonNode node = nodes.get(i);
+			String otuId = nodeOTUIds.get(i);
+			node.completeParse(otuId, nodeOffsets[i]);
+			if (otuId != null && !otusRead) {
+				if (nodesAwaitingOTUs.size() == awaitingNodeOffsets.length) {
+					awaitingNodeOffsets = Arrays.copyOf(awaitingNodeOffsets, awaitingNodeOffsets.length * 2);
+				}
+				awaitingNodeOffsets[nodesAwaitingOTUs.size()] = nodeOffsets[i];
+				nodesAwaitingOTUs.add(node);
+				awaitedOTUIds.add(otuId);
+			} else {
+				node.checkOTUReference(otuId, nodeOffsets[i]);
+			}
+		}
+	}
+
+	/**
+	 * Read a node element, and add it and its OTU id to the lists, or put them at the specified index.
+	 * @param tree
+	 * @param id the id of the node if it is known from its key (in the by-id layout), or null if it is given by its @id
+	 * @param nodes
+	 * @param nodeOTUIds
+	 * @param index the index of the node in the lists, or -1 to append it
+	 */
+	private void readNode(NexsonTree tree, String id, List<NexsonNode> nodes, List<String> nodeOTUIds, int index) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		long nodeOffset = tokenizer.getTokenOffset();
+		NexsonNode node = new NexsonNode();
+		node.setParentTree(tree);
+		String otuId = null;
+
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("@id")) {
+				id = tokenizer.readString();
+			} else if (key.equals("@otu")) {
+				otuId = tokenizer.readString();
+			} else if (key.equals("meta")) {
+				readMetadata(node);
+			} else if (key.startsWith("^")) {
+				readByIdMeta(node, key);
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+
+		setElementId(node, id, nodeOffset);
+		if (index < 0) {
+			nodes.add(node);
+			nodeOTUIds.add(otuId);
+		} else {
+			nodes.set(index, node);
+			nodeOTUIds.set(index, otuId);
+		}
+	}
+
+	private void readEdge(List<String> edgeSources, List<String> edgeTargets, List<Number> edgeLengths) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		String source = null;
+		String target = null;
+		Number length = null;
+
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("@source")) {
+				source = tokenizer.readString();
+			} else if (key.equals("@target")) {
+				target = tokenizer.readString();
+			} else if (key.equals("@length") && tokenizer.current() == Token.NUMBER && options.isIncludeBranchLengths()) {
+				length = tokenizer.getNumber();
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+
+		edgeSources.add(source);
+		edgeTargets.add(target);
+		edgeLengths.add(length);
+	}
+
+	/**
+	 * Read the nodes of a tree in the by-id layout, e.g.<br/>
+	 * "nodeById": {"node1": {"@root": true}, "node2": {"@otu": "otu1"}, ...}
+	 */
+	private void readNodesById(NexsonTree tree, NodesById nodesById) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String id = tokenizer.getText();
+			tokenizer.next();
+			int index = nodesById.indexOf(id);
+			if (nodesById.nodes.get(index) != null) {
+				throw new NexsonParseException("Tree " + tree.getId() + " contains more than one node with the id " + id);
+			}
+			nodesById.offsets[index] = tokenizer.getTokenOffset();
+			readNode(tree, id, nodesById.nodes, nodesById.otuIds, index);
+		}
+	}
+
+	/**
+	 * Read the edges of a tree in the by-id layout, in which they are grouped by the id of their source node, e.g.<br/>
+	 * "edgeBySourceId": {"node1": {"edge1": {"@source": "node1", "@target": "node2", "@length": 0.1}, ...}, ...}<br/>
+	 * The source of each group is resolved once, and the target of each edge directly, to a node index.
+	 */
+	private void readEdgesBySourceId(NodesById nodesById) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			int source = nodesById.indexOf(tokenizer.getText());
+			tokenizer.next();
+			tokenizer.checkCurrent(Token.START_OBJECT);
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String edgeId = tokenizer.getText();
+				tokenizer.next();
+				tokenizer.checkCurrent(Token.START_OBJECT);
+				int target = -1;
+				Number length = null;
+
+				while (tokenizer.next() == Token.FIELD_NAME) {
+					String key = tokenizer.getText();
+					tokenizer.next();
+
+					if (key.equals("@target")) {
+						target = nodesById.indexOf(tokenizer.readString());
+					} else if (key.equals("@length") && tokenizer.current() == Token.NUMBER && options.isIncludeBranchLengths()) {
+						length = tokenizer.getNumber();
+					} else {
+						tokenizer.skipValue(); // including the @source, which is given by the key of the group
+					}
+				}
+
+				if (target < 0) {
+					throw new NexsonParseException("Edge " + edgeId + " has no target");
+				}
+				nodesById.addEdge(source, target, length);
+			}
+		}
+	}
+
+	// ### metadata
+
+	/**
+	 * Read the value of a meta key (either a single meta element or an array of them) into the provided element.
+	 * @param element
+	 */
+	private void readMetadata(NexsonElement element) {
+		if (tokenizer.current() == Token.START_ARRAY) {
+			while (tokenizer.next() != Token.END_ARRAY) {
+				readMeta(element);
+			}
+		} else {
+			readMeta(element);
+		}
+	}
+
+	/**
+	 * Read a single meta element. An example NexSON metadata entry could be:<br/>
+	 * {"@property": "ot:curatorName", "@xsi:type": "nex:LiteralMeta", "$": "Rick Ree"}
+	 * @param element
+	 */
+	@SuppressWarnings("unchecked")
+	private void readMeta(NexsonElement element) {
+
+		tokenizer.checkCurrent(Token.START_OBJECT);
+		long metaOffset = tokenizer.getTokenOffset();
+		String annotationProperty = OTVocabularyObject.OT_ANNOTATION.propertyName();
+
+		String propertyName = null;
+		String rel = null;
+		Object value = null;
+		boolean hasValue = false;
+		Object href = null;
+		JSONObject otherFields = null; // only retained for annotations
+
+		while (tokenizer.next() == Token.FIELD_NAME) {
+			String key = tokenizer.getText();
+			tokenizer.next();
+
+			if (key.equals("@property")) {
+				propertyName = tokenizer.readString();
+				if (propertyName.equals(annotationProperty) && tokenizer.supportsSlicing() && isIncluded(propertyName)) {
+					// keep the annotation undecoded: a copy of its text is read again if it is ever requested
+					while (tokenizer.next() == Token.FIELD_NAME) {
+						tokenizer.next();
+						tokenizer.skipValue();
+					}
+					element.addRawAnnotation(new NexsonElement.RawAnnotation(tokenizer, metaOffset, tokenizer.getOffset()));
+					return;
+				}
+			} else if (key.equals("@rel")) {
+				rel = tokenizer.readString();
+			} else if (propertyName != null && !isIncluded(propertyName)) {
+				tokenizer.skipValue(); // this element is excluded by the options, so we won't need any of it
+			} else if (key.equals("$")) {
+				value = tokenizer.readValue();
+				hasValue = true;
+			} else if (key.equals("@href")) {
+				href = tokenizer.readValue();
+			} else if (propertyName != null && !propertyName.equals(annotationProperty)) {
+				tokenizer.skipValue(); // we already know this is not an annotation, so we won't need it
+			} else {
+				if (otherFields == null) {
+					otherFields = new JSONObject();
+				}
+				otherFields.put(key, tokenizer.readValue());
+			}
+		}
+
+		// in case this is using nonstandard nexson (legacy?)
+		if (propertyName == null) {
+			propertyName = rel;
+		}
+
+		if (propertyName == null) {
+			throw new NexsonParseException("missing property name for meta element at offset " + metaOffset);
+
+		} else if (!isIncluded(propertyName)) {
+			return;
+
+		} else if (propertyName.equals(annotationProperty)) {
+			JSONObject annotation = otherFields != null ? otherFields : new JSONObject();
+			if (hasValue) {
+				annotation.put("$", value);
+			}
+			if (href != null) {
+				annotation.put("@href", href);
+			}
+			annotation.put("@property", propertyName);
+			element.addRawAnnotation(new NexsonElement.RawAnnotation(annotation));
+
+		} else {
+			// looking for either "$" or "@href" (former is more frequent)
+			element.addMetadataProperty(propertyName, value != null ? value : href);
+		}
+	}
+
+	/**
+	 * Read a meta property of the by-id layout, given as a "^"-prefixed key of the element, e.g.<br/>
+	 * "^ot:curatorName": "Rick Ree", "^ot:tag": ["a", "b"], "^ot:dataDeposit": {"@href": "http:\/\/..."}<br/>
+	 * An array value is read as a repeated meta element, as it is the by-id form of one. Keys that give the order of
+	 * elements (e.g. ^ot:otusElementOrder) are not properties, and are skipped.
+	 * @param element
+	 * @param key the key, including the "^"
+	 */
+	private void readByIdMeta(NexsonElement element, String key) {
+		String propertyName = key.substring(1);
+		if (!isIncluded(propertyName) || propertyName.endsWith(ELEMENT_ORDER_SUFFIX)) {
+			tokenizer.skipValue();
+		} else if (tokenizer.current() == Token.START_ARRAY) {
+			while (tokenizer.next() != Token.END_ARRAY) {
+				readByIdMetaValue(element, propertyName);
+			}
+		} else {
+			readByIdMetaValue(element, propertyName);
+		}
+	}
+
+	private void readByIdMetaValue(NexsonElement element, String propertyName) {
+
+		if (propertyName.equals(OTVocabularyObject.OT_ANNOTATION.propertyName())) {
+			if (tokenizer.current() == Token.START_OBJECT && tokenizer.supportsSlicing()) {
+				long annotationOffset = tokenizer.getTokenOffset();
+				tokenizer.skipValue();
+				element.addRawAnnotation(new NexsonElement.RawAnnotation(tokenizer, annotationOffset, tokenizer.getOffset()));
+			} else {
+				Object annotation = tokenizer.readValue();
+				if (annotation instanceof JSONObject) {
+					element.addRawAnnotation(new NexsonElement.RawAnnotation((JSONObject) annotation));
+				}
+			}
+
+		} else if (tokenizer.current() == Token.START_OBJECT) {
+			// a resource meta, {"@href": ...}, or a literal meta with attributes, {"$": ...}
+			Object value = null;
+			Object href = null;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("$")) {
+					value = tokenizer.readValue();
+				} else if (key.equals("@href")) {
+					href = tokenizer.readValue();
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			element.addMetadataProperty(propertyName, value != null ? value : href);
+
+		} else {
+			element.addMetadataProperty(propertyName, tokenizer.readValue());
+		}
+	}
+
+	/**
+	 * Return true if meta elements with the specified property should be kept according to the options.
+	 * @param propertyName
+	 * @return
+	 */
+	private boolean isIncluded(String propertyName) {
+		if (propertyName.equals(OTVocabularyObject.OT_ANNOTATION.propertyName())) {
+			return options.isIncludeAnnotations();
+		}
+		return options.isPropertyIncluded(propertyName);
+	}
+
+	// ### utility
+
+	/**
+	 * The nodes and edges of a tree in the by-id layout, in which edges are keyed by the ids of their source nodes and may
+	 * precede the nodes. Each node id is given a dense index the first time it is seen, and the node read for it later is
+	 * put at that index, so edges are resolved to indexes as they are read and checked by a TreeTopology at the end.
+	 */
+	private static final class NodesById {
+
+		final HashMap<String, Integer> indexForId = new HashMap<String, Integer>();
+		final List<String> ids = new ArrayList<String>();
+		final List<NexsonNode> nodes = new ArrayList<NexsonNode>(); // null until the node with that id is read
+		final List<String> otuIds = new ArrayList<String>();
+		long[] offsets = new long[64]; // for diagnostics
+
+		int edgeCount = 0;
+		int[] edgeSource = new int[64];
+		int[] edgeTarget = new int[64];
+		final List<Number> edgeLengths = new ArrayList<Number>();
+
+		/**
+		 * Return the index of the node with the specified id, giving it the next index if it has not been seen before.
+		 */
+		int indexOf(String id) {
+			Integer index = indexForId.get(id);
+			if (index == null) {
+				index = ids.size();
+				indexForId.put(id, index);
+				ids.add(id);
+				nodes.add(null);
+				otuIds.add(null);
+				if (index == offsets.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				}
+			}
+			return index;
+		}
+
+		void addEdge(int source, int target, Number length) {
+			if (edgeCount == edgeSource.length) {
+				edgeSource = Arrays.copyOf(edgeSource, edgeCount * 2);
+				edgeTarget = Arrays.copyOf(edgeTarget, edgeCount * 2);
+			}
+			edgeSource[edgeCount] = source;
+			edgeTarget[edgeCount] = target;
+			edgeCount++;
+			edgeLengths.add(length);
+		}
+
+		/**
+		 * Check that every id referred to by an edge is that of a node, and resolve the shape of the tree.
+		 */
+		TreeTopology topology(String treeId) {
+			for (int i = 0; i < ids.size(); i++) {
+				if (nodes.get(i) == null) {
+					throw new NexsonParseException("Edge with source or target property " + ids.get(i) + " not corresponding to any known nodes");
+				}
+			}
+			return new TreeTopology(treeId, ids, Arrays.copyOf(edgeSource, edgeCount), Arrays.copyOf(edgeTarget, edgeCount));
+		}
+	}
+
+	private static void setElementId(NexsonElement element, String id, long offset) {
+		if (id == null) {
+			throw new NexsonParseException("Attempt to add a null source id near offset " + offset);
+		}
+		element.setId(id);
+	}
+}
@@ -0,0 +1,721 @@
+package org.opentree.nexson.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentree.nexson.io.JSONTokenizer.Token;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * <p>A catalog of the study-level metadata of a corpus of NexSON files, for answering questions such as "which studies
+ * are deprecated / from year X / by curator Y / with focal clade Z" without parsing the studies.</p>
+ * <br/>
+ * <p>The catalog is built by scanning only the header of each file: the study-level meta elements of the nexml element,
+ * from which the study id, tags, year, focal clade and curator name are kept. The scan stops as soon as the otus or trees
+ * of the study are reached, so the rest of the file is never read (if the meta element follows them, they are skipped
+ * over instead). In the NexSON 1.2 by-id layout each property is a "^"-prefixed key of the nexml element, and the scan
+ * stops at otusById or treesById once the study id has been seen. Files whose headers cannot be read are kept in the
+ * catalog with the error that occurred.</p>
+ * <br/>
+ * <p>The catalog is stored by column, as one array per field, with one row per file in the order the files were given.
+ * The select methods scan a single column and return the matching rows as a BitSet, which can be combined with the other
+ * selections (and(), andNot(), or()) and passed to getPaths(), e.g. to give a NexsonCorpusLoader only the current studies.
+ * Catalogs can be written to and read from a compact versioned binary file, and refresh() rescans only the files whose
+ * size or modification time has changed.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonStudyCatalog {
+
+	/**
+	 * The version of the catalog file format written by this class. Files with other versions are rejected when read.
+	 */
+	public static final int VERSION = 1;
+
+	/** the value of the year column for studies without an ot:studyYear */
+	public static final int NO_YEAR = Integer.MIN_VALUE;
+
+	/** the value of the focal clade column for studies without an ot:focalCladeOTTId (or legacy ot:focalClade) */
+	public static final long NO_FOCAL_CLADE = Long.MIN_VALUE;
+
+	private static final int MAGIC = 0x4e585343; // "NXSC"
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String[] NO_TAGS = new String[0];
+
+	private static final String STUDY_ID = OTVocabularyPredicate.OT_STUDY_ID.propertyName();
+	private static final String TAG = OTVocabularyPredicate.OT_TAG.propertyName();
+	private static final String YEAR = OTVocabularyPredicate.OT_YEAR.propertyName();
+	private static final String FOCAL_CLADE = OTVocabularyPredicate.OT_FOCAL_CLADE_OTT_TAXON_ID.propertyName();
+	// read from studies that predate ot:focalCladeOTTId, which takes precedence when both are present
+	@SuppressWarnings("deprecation")
+	private static final String LEGACY_FOCAL_CLADE = OTVocabularyPredicate.OT_FOCAL_CLADE.propertyName();
+	private static final String CURATOR_NAME = OTVocabularyPredicate.OT_CURATOR_NAME.propertyName();
+
+	// ### columns
+
+	private final int size;
+	private final String[] paths;
+	private final long[] fileSizes;
+	private final long[] lastModified;
+	private final String[] studyIds;
+	private final String[][] tags;
+	private final int[] years;
+	private final long[] focalClades;
+	private final String[] curatorNames;
+	private final String[] errors;
+	private final BitSet deprecated;
+
+	private NexsonStudyCatalog(int size) {
+		this.size = size;
+		paths = new String[size];
+		fileSizes = new long[size];
+		lastModified = new long[size];
+		studyIds = new String[size];
+		tags = new String[size][];
+		years = new int[size];
+		focalClades = new long[size];
+		curatorNames = new String[size];
+		errors = new String[size];
+		deprecated = new BitSet(size);
+	}
+
+	// ### building
+
+	/**
+	 * Build a catalog of all the .json and .json.gz files in the specified directory and its subdirectories.
+	 * @param directory
+	 * @return
+	 * @throws IOException if the directory cannot be listed
+	 */
+	public static NexsonStudyCatalog build(Path directory) throws IOException {
+		return build(NexsonCorpusLoader.findStudyFiles(directory));
+	}
+
+	/**
+	 * Build a catalog of the specified files, with one row for each file in the order given.
+	 * @param files
+	 * @return
+	 */
+	public static NexsonStudyCatalog build(Collection<Path> files) {
+		return refresh(null, files);
+	}
+
+	/**
+	 * Build a catalog of the specified files, reusing the rows of this catalog for files whose size and modification time
+	 * have not changed since it was built, and scanning the rest.
+	 * @param files
+	 * @return
+	 */
+	public NexsonStudyCatalog refresh(Collection<Path> files) {
+		return refresh(this, files);
+	}
+
+	private static NexsonStudyCatalog refresh(NexsonStudyCatalog previous, Collection<Path> files) {
+
+		Map<String, Integer> previousRows = new HashMap<String, Integer>();
+		if (previous != null) {
+			for (int row = 0; row < previous.size; row++) {
+				previousRows.put(previous.paths[row], row);
+			}
+		}
+
+		NexsonStudyCatalog catalog = new NexsonStudyCatalog(files.size());
+		int row = 0;
+		for (Path file : files) {
+			String path = file.toString();
+			long fileSize = -1;
+			long modified = -1;
+			try {
+				fileSize = Files.size(file);
+				modified = Files.getLastModifiedTime(file).toMillis();
+			} catch (IOException ex) {
+				// reported when the file is scanned
+			}
+
+			Integer previousRow = previousRows.get(path);
+			if (previousRow != null && previous.fileSizes[previousRow] == fileSize && previous.lastModified[previousRow] == modified
+					&& fileSize >= 0 && previous.errors[previousRow] == null) {
+				catalog.copyRow(row, previous, previousRow);
+			} else {
+				catalog.paths[row] = path;
+				catalog.fileSizes[row] = fileSize;
+				catalog.lastModified[row] = modified;
+				catalog.scanRow(row, file);
+			}
+			row++;
+		}
+		return catalog;
+	}
+
+	private void copyRow(int row, NexsonStudyCatalog from, int fromRow) {
+		paths[row] = from.paths[fromRow];
+		fileSizes[row] = from.fileSizes[fromRow];
+		lastModified[row] = from.lastModified[fromRow];
+		studyIds[row] = from.studyIds[fromRow];
+		tags[row] = from.tags[fromRow];
+		years[row] = from.years[fromRow];
+		focalClades[row] = from.focalClades[fromRow];
+		curatorNames[row] = from.curatorNames[fromRow];
+		errors[row] = from.errors[fromRow];
+		deprecated.set(row, from.deprecated.get(fromRow));
+	}
+
+	private void scanRow(int row, Path file) {
+		tags[row] = NO_TAGS;
+		years[row] = NO_YEAR;
+		focalClades[row] = NO_FOCAL_CLADE;
+		try {
+			JSONTokenizer tokenizer = JSONTokenizer.open(file, false);
+			try {
+				new HeaderScanner(tokenizer, this, row).scan();
+			} finally {
+				tokenizer.close(); // stops inflating a compressed file once its header has been read
+			}
+		} catch (IOException ex) {
+			errors[row] = String.valueOf(ex);
+		} catch (RuntimeException ex) {
+			errors[row] = String.valueOf(ex);
+		}
+	}
+
+	/**
+	 * Reads the study-level meta elements of a NexSON document into a row of the catalog.
+	 */
+	private static class HeaderScanner {
+
+		private final JSONTokenizer tokenizer;
+		private final NexsonStudyCatalog catalog;
+		private final int row;
+		private final List<String> tags = new ArrayList<String>();
+		private boolean focalCladeRecorded = false; // whether the focal clade came from ot:focalCladeOTTId
+
+		HeaderScanner(JSONTokenizer tokenizer, NexsonStudyCatalog catalog, int row) {
+			this.tokenizer = tokenizer;
+			this.catalog = catalog;
+			this.row = row;
+		}
+
+		void scan() {
+			tokenizer.expect(Token.START_OBJECT);
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("nexml")) {
+					scanStudy();
+					return;
+				} else if (key.equals("data")) {
+					tokenizer.checkCurrent(Token.START_OBJECT);
+					while (tokenizer.next() == Token.FIELD_NAME) {
+						String dataKey = tokenizer.getText();
+						tokenizer.next();
+						if (dataKey.equals("nexml")) {
+							scanStudy();
+							return;
+						}
+						tokenizer.skipValue();
+					}
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			throw new NexsonParseException("Attempt to parse NexSON without a nexml element");
+		}
+
+		private void scanStudy() {
+			tokenizer.checkCurrent(Token.START_OBJECT);
+			boolean metaRead = false;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("meta")) {
+					if (tokenizer.current() == Token.START_ARRAY) {
+						while (tokenizer.next() != Token.END_ARRAY) {
+							scanMeta();
+						}
+					} else {
+						scanMeta();
+					}
+					metaRead = true;
+				} else if (metaRead && (key.equals("otus") || key.equals("trees"))) {
+					break; // the header is complete, so we don't need the rest of the file
+				} else if (key.startsWith("^") && isCataloged(key.substring(1))) {
+					scanByIdMeta(key.substring(1)); // the by-id layout, which has a key for each meta property
+				} else if (catalog.studyIds[row] != null && (key.equals("otusById") || key.equals("treesById"))) {
+					break; // by-id properties are written before the otus and trees, so the header is complete
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			finish();
+		}
+
+		private void scanMeta() {
+			tokenizer.checkCurrent(Token.START_OBJECT);
+			String propertyName = null;
+			Object value = null;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("@property")) {
+					propertyName = tokenizer.readString();
+				} else if (key.equals("$") && (propertyName == null || isCataloged(propertyName)) && isScalar(tokenizer.current())) {
+					value = tokenizer.readValue();
+				} else {
+					tokenizer.skipValue(); // annotations and other properties are not cataloged
+				}
+			}
+			if (propertyName != null && value != null) {
+				record(propertyName, value);
+			}
+		}
+
+		private void scanByIdMeta(String propertyName) {
+			if (tokenizer.current() == Token.START_ARRAY) {
+				while (tokenizer.next() != Token.END_ARRAY) {
+					scanByIdMeta(propertyName);
+				}
+			} else if (isScalar(tokenizer.current())) {
+				record(propertyName, tokenizer.readValue());
+			} else {
+				tokenizer.skipValue();
+			}
+		}
+
+		private void record(String propertyName, Object value) {
+			if (propertyName.equals(STUDY_ID)) {
+				catalog.studyIds[row] = String.valueOf(value);
+			} else if (propertyName.equals(TAG)) {
+				tags.add(String.valueOf(value));
+			} else if (propertyName.equals(YEAR)) {
+				Long year = toLong(value);
+				if (year != null) {
+					catalog.years[row] = year.intValue();
+				}
+			} else if (propertyName.equals(FOCAL_CLADE)) {
+				Long ottId = toLong(value);
+				if (ottId != null) {
+					catalog.focalClades[row] = ottId;
+					focalCladeRecorded = true;
+				}
+			} else if (propertyName.equals(LEGACY_FOCAL_CLADE)) {
+				Long ottId = toLong(value);
+				if (ottId != null && ! focalCladeRecorded) {
+					catalog.focalClades[row] = ottId;
+				}
+			} else if (propertyName.equals(CURATOR_NAME)) {
+				catalog.curatorNames[row] = String.valueOf(value);
+			}
+		}
+
+		private void finish() {
+			if (catalog.studyIds[row] == null) {
+				throw new NexsonParseException("The study has no " + STUDY_ID + " property");
+			}
+			catalog.tags[row] = tags.isEmpty() ? NO_TAGS : tags.toArray(new String[tags.size()]);
+			for (String tag : tags) {
+				// consistent with NexsonElement.addMetadataProperty
+				if (tag.startsWith("del")) {
+					catalog.deprecated.set(row);
+				}
+			}
+		}
+
+		private static boolean isCataloged(String propertyName) {
+			return propertyName.equals(STUDY_ID) || propertyName.equals(TAG) || propertyName.equals(YEAR)
+					|| propertyName.equals(FOCAL_CLADE) || propertyName.equals(LEGACY_FOCAL_CLADE)
+					|| propertyName.equals(CURATOR_NAME);
+		}
+
+		private static boolean isScalar(Token token) {
+			return token == Token.STRING || token == Token.NUMBER || token == Token.TRUE || token == Token.FALSE;
+		}
+
+		private static Long toLong(Object value) {
+			if (value instanceof Number) {
+				return ((Number) value).longValue();
+			}
+			try {
+				return Long.parseLong(String.valueOf(value).trim());
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+	}
+
+	// ### getters
+
+	/**
+	 * Return the number of rows (files) in the catalog.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	public Path getPath(int row) {
+		return Paths.get(paths[row]);
+	}
+
+	/**
+	 * Return the ot:studyId of the study in the row, or null if its header could not be read.
+	 * @param row
+	 * @return
+	 */
+	public String getStudyId(int row) {
+		return studyIds[row];
+	}
+
+	/**
+	 * Return the values of the ot:tag properties of the study in the row. The returned array should not be modified.
+	 * @param row
+	 * @return
+	 */
+	public String[] getTags(int row) {
+		return tags[row];
+	}
+
+	/**
+	 * Return the ot:studyYear of the study in the row, or NO_YEAR if it has none.
+	 * @param row
+	 * @return
+	 */
+	public int getStudyYear(int row) {
+		return years[row];
+	}
+
+	/**
+	 * Return the ot:focalCladeOTTId of the study in the row (or its legacy ot:focalClade if it has no ot:focalCladeOTTId),
+	 * or NO_FOCAL_CLADE if it has neither.
+	 * @param row
+	 * @return
+	 */
+	public long getFocalClade(int row) {
+		return focalClades[row];
+	}
+
+	public String getCuratorName(int row) {
+		return curatorNames[row];
+	}
+
+	/**
+	 * Return true if the study in the row has an ot:tag beginning with "del".
+	 * @param row
+	 * @return
+	 */
+	public boolean isDeprecated(int row) {
+		return deprecated.get(row);
+	}
+
+	/**
+	 * Return a description of the error that prevented the header of the file in the row from being read, or null if it
+	 * was read successfully.
+	 * @param row
+	 * @return
+	 */
+	public String getError(int row) {
+		return errors[row];
+	}
+
+	/**
+	 * Return the row of the study with the specified ot:studyId, or -1 if there is none.
+	 * @param studyId
+	 * @return
+	 */
+	public int findStudy(String studyId) {
+		for (int row = 0; row < size; row++) {
+			if (studyId.equals(studyIds[row])) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the paths of the files in the selected rows, in row order.
+	 * @param rows
+	 * @return
+	 */
+	public List<Path> getPaths(BitSet rows) {
+		List<Path> selected = new ArrayList<Path>(rows.cardinality());
+		for (int row = rows.nextSetBit(0); row >= 0 && row < size; row = rows.nextSetBit(row + 1)) {
+			selected.add(getPath(row));
+		}
+		return selected;
+	}
+
+	// ### selections
+
+	/**
+	 * Return all the rows.
+	 * @return
+	 */
+	public BitSet selectAll() {
+		BitSet rows = new BitSet(size);
+		rows.set(0, size);
+		return rows;
+	}
+
+	public BitSet selectDeprecated() {
+		return (BitSet) deprecated.clone();
+	}
+
+	/**
+	 * Return the rows of the studies that were read successfully and are not deprecated.
+	 * @return
+	 */
+	public BitSet selectCurrent() {
+		BitSet rows = selectAll();
+		rows.andNot(deprecated);
+		rows.andNot(selectFailed());
+		return rows;
+	}
+
+	/**
+	 * Return the rows of the files whose headers could not be read.
+	 * @return
+	 */
+	public BitSet selectFailed() {
+		BitSet rows = new BitSet(size);
+		for (int row = 0; row < size; row++) {
+			if (errors[row] != null) {
+				rows.set(row);
+			}
+		}
+		return rows;
+	}
+
+	public BitSet selectYear(int year) {
+		return selectYears(year, year);
+	}
+
+	/**
+	 * Return the rows of the studies with an ot:studyYear from firstYear to lastYear inclusive.
+	 * @param firstYear
+	 * @param lastYear
+	 * @return
+	 */
+	public BitSet selectYears(int firstYear, int lastYear) {
+		BitSet rows = new BitSet(size);
+		for (int row = 0; row < size; row++) {
+			int year = years[row];
+			if (year != NO_YEAR && year >= firstYear && year <= lastYear) {
+				rows.set(row);
+			}
+		}
+		return rows;
+	}
+
+	public BitSet selectFocalClade(long ottId) {
+		BitSet rows = new BitSet(size);
+		for (int row = 0; row < size; row++) {
+			if (focalClades[row] == ottId) {
+				rows.set(row);
+			}
+		}
+		return rows;
+	}
+
+	public BitSet selectCurator(String curatorName) {
+		return selectEqual(curatorNames, curatorName);
+	}
+
+	public BitSet selectStudyId(String studyId) {
+		return selectEqual(studyIds, studyId);
+	}
+
+	/**
+	 * Return the rows of the studies with an ot:tag equal to the specified tag.
+	 * @param tag
+	 * @return
+	 */
+	public BitSet selectTag(String tag) {
+		BitSet rows = new BitSet(size);
+		for (int row = 0; row < size; row++) {
+			for (String t : tags[row]) {
+				if (t.equals(tag)) {
+					rows.set(row);
+					break;
+				}
+			}
+		}
+		return rows;
+	}
+
+	private BitSet selectEqual(String[] column, String value) {
+		BitSet rows = new BitSet(size);
+		for (int row = 0; row < size; row++) {
+			if (value.equals(column[row])) {
+				rows.set(row);
+			}
+		}
+		return rows;
+	}
+
+	// ### persistence
+
+	/**
+	 * Write the catalog to the output stream, column by column. The stream is flushed but not closed.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(size);
+		writeStrings(data, paths);
+		for (long s : fileSizes) {
+			data.writeLong(s);
+		}
+		for (long m : lastModified) {
+			data.writeLong(m);
+		}
+		writeStrings(data, studyIds);
+		for (String[] t : tags) {
+			data.writeInt(t.length);
+			writeStrings(data, t);
+		}
+		for (int y : years) {
+			data.writeInt(y);
+		}
+		for (long c : focalClades) {
+			data.writeLong(c);
+		}
+		writeStrings(data, curatorNames);
+		writeStrings(data, errors);
+		for (int row = 0; row < size; row++) {
+			data.writeBoolean(deprecated.get(row));
+		}
+		data.flush();
+	}
+
+	/**
+	 * Write the catalog to the specified file, replacing the file if it exists.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(Path file) throws IOException {
+		OutputStream out = Files.newOutputStream(file);
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read a catalog from the input stream.
+	 * @param in
+	 * @return
+	 * @throws IOException if the stream cannot be read, or does not contain a catalog in a supported format version
+	 */
+	public static NexsonStudyCatalog read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a NexSON study catalog");
+		}
+		int version = data.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported study catalog version " + version + " (expected " + VERSION + ")");
+		}
+		NexsonStudyCatalog catalog = new NexsonStudyCatalog(data.readInt());
+		int size = catalog.size;
+		readStrings(data, catalog.paths);
+		for (int row = 0; row < size; row++) {
+			catalog.fileSizes[row] = data.readLong();
+		}
+		for (int row = 0; row < size; row++) {
+			catalog.lastModified[row] = data.readLong();
+		}
+		readStrings(data, catalog.studyIds);
+		for (int row = 0; row < size; row++) {
+			int count = data.readInt();
+			catalog.tags[row] = count == 0 ? NO_TAGS : new String[count];
+			readStrings(data, catalog.tags[row]);
+		}
+		for (int row = 0; row < size; row++) {
+			catalog.years[row] = data.readInt();
+		}
+		for (int row = 0; row < size; row++) {
+			catalog.focalClades[row] = data.readLong();
+		}
+		readStrings(data, catalog.curatorNames);
+		readStrings(data, catalog.errors);
+		for (int row = 0; row < size; row++) {
+			catalog.deprecated.set(row, data.readBoolean());
+		}
+		return catalog;
+	}
+
+	/**
+	 * Read a catalog from the specified file.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file cannot be read, or does not contain a catalog in a supported format version
+	 */
+	public static NexsonStudyCatalog read(Path file) throws IOException {
+		InputStream in = Files.newInputStream(file);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeStrings(DataOutputStream data, String[] column) throws IOException {
+		for (String s : column) {
+			if (s == null) {
+				data.writeInt(-1);
+			} else {
+				byte[] bytes = s.getBytes(UTF8);
+				data.writeInt(bytes.length);
+				data.write(bytes);
+			}
+		}
+	}
+
+	private static void readStrings(DataInputStream data, String[] column) throws IOException {
+		for (int i = 0; i < column.length; i++) {
+			int length = data.readInt();
+			if (length >= 0) {
+				byte[] bytes = new byte[length];
+				data.readFully(bytes);
+				column[i] = new String(bytes, UTF8);
+			}
+		}
+	}
+
+	/**
+	 * Build a catalog of the directory given as the first argument, write it to the file given as the second argument if
+	 * there is one, and report the current and deprecated studies.
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		long start = System.nanoTime();
+		NexsonStudyCatalog catalog = build(Paths.get(args[0]));
+		long elapsed = System.nanoTime() - start;
+		if (args.length > 1) {
+			catalog.write(Paths.get(args[1]));
+		}
+		System.out.println(catalog.size() + " studies cataloged in " + elapsed / 1000000 + " ms: "
+				+ catalog.selectCurrent().cardinality() + " current, " + catalog.selectDeprecated().cardinality() + " deprecated, "
+				+ catalog.selectFailed().cardinality() + " failed");
+	}
+}
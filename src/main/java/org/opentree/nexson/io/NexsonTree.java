@@ -8,12 +8,11 @@ import jade.tree.TreeBipartition;
 import jade.tree.TreeNode;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.opentree.nexson.io.AnnotationMessage.MessageCode;
 import org.opentree.properties.OTVocabularyPredicate;
 
 /**
@@ -38,33 +37,141 @@ public class NexsonTree extends NexsonElement implements Tree {
 	// TODO: new methods
 	NexsonNode root = null;
 	
+	// tip and internal node counts, computed when first requested. -1 until then.
+	private int externalCount = -1;
+	private int internalCount = -1;
+	
+	// computed when bipartitions are first requested
+	private BipartitionSet bipartitionSet = null;
+	
+	// computed when the tips are first looked up by ott id. building is idempotent, so concurrent callers may at worst each
+	// build their own copy
+	private volatile OttIdIndex<NexsonNode> tipOttIdIndex = null;
+	
+	// created when first requested
+	private NexsonJadeTree jadeTreeView = null;
+	
+	/**
+	 * Return the bipartition of the tips of this tree induced by the specified node.
+	 * @see BipartitionSet#getBipartition(TreeNode)
+	 */
 	public TreeBipartition getBipartition(TreeNode node) {
-		return null;
+		return getBipartitionSet().getBipartition(node);
 	}
 	
+	/**
+	 * Return the bipartitions induced by the internal nodes of this tree other than the root.
+	 * @see BipartitionSet#bipartitions()
+	 */
 	@Override
-	public Iterable<TreeNode> internalNodes(NodeOrder order) {
-		return null;
+	public Iterable<TreeBipartition> bipartitions() {
+		return getBipartitionSet().bipartitions();
+	}
+	
+	/**
+	 * Return the bitset representation of the bipartitions of this tree, for fast clade tests. This is computed the first
+	 * time it is requested and then cached.
+	 * @return
+	 */
+	public BipartitionSet getBipartitionSet() {
+		if (bipartitionSet == null) {
+			bipartitionSet = new BipartitionSet(this);
+		}
+		return bipartitionSet;
+	}
+
+	/**
+	 * Return a view of this tree offering the JadeTree and JadeNode accessors (getProperty(), getObject(), assocObject(),
+	 * etc.), for code ported from JadeTree. The view presents the nodes of this tree without copying them; see
+	 * NexsonJadeTree. The same view is returned each time.
+	 * @return
+	 */
+	public synchronized NexsonJadeTree asJadeTree() {
+		if (jadeTreeView == null) {
+			jadeTreeView = new NexsonJadeTree(this);
+		}
+		return jadeTreeView;
+	}
+	
+	/**
+	 * Return the tips of this tree whose OTUs have the specified OTT id, in preorder, or an empty list if there are none.
+	 * @param ottId
+	 * @return
+	 */
+	public List<NexsonNode> getTipsByOttId(long ottId) {
+		return getTipOttIdIndex().get(ottId);
 	}
 	
+	/**
+	 * Return the OTT ids that are mapped to more than one tip of this tree (the MULTIPLE_TIPS_MAPPED_TO_OTT_ID case).
+	 * @return
+	 */
+	public long[] getOttIdsMappedToMultipleTips() {
+		return getTipOttIdIndex().getDuplicatedOttIds();
+	}
+	
+	/**
+	 * Return the index of the tips of this tree by the ot:ottId property of their OTUs. This is computed the first time it
+	 * is requested and then cached.
+	 * @return
+	 */
+	public OttIdIndex<NexsonNode> getTipOttIdIndex() {
+		OttIdIndex<NexsonNode> index = tipOttIdIndex;
+		if (index == null) {
+			index = OttIdIndex.forTips(this);
+			tipOttIdIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Return the nodes of the tree in the specified order. Nodes are yielded lazily from an explicit stack, so this is
+	 * safe on arbitrarily deep trees.
+	 */
 	@Override
-	public int internalNodeCount() {
-		return 0;
+	public Iterable<TreeNode> nodes(NodeOrder order) {
+		return new NodeTraversal(root, order, NodeTraversal.Filter.ALL);
 	}
 	
 	@Override
-	public int externalNodeCount() {
-		return 0;
+	public Iterable<TreeNode> internalNodes(NodeOrder order) {
+		return new NodeTraversal(root, order, NodeTraversal.Filter.INTERNAL);
 	}
-
+	
+	/**
+	 * Return the nodes of the tree in level order (breadth first).
+	 * @return
+	 */
+	public Iterable<TreeNode> levelOrderNodes() {
+		return new NodeTraversal(root, NodeTraversal.Order.LEVELORDER, NodeTraversal.Filter.ALL);
+	}
+	
 	@Override
-	public Iterable<TreeBipartition> bipartitions() {
-		return null;
+	public int internalNodeCount() {
+		countNodes();
+		return internalCount;
 	}
 	
 	@Override
-	public Iterable<TreeNode> nodes(NodeOrder order) {
-		return null;
+	public int externalNodeCount() {
+		countNodes();
+		return externalCount;
+	}
+	
+	private void countNodes() {
+		if (externalCount < 0) {
+			int external = 0;
+			int internal = 0;
+			for (TreeNode node : nodes(NodeOrder.PREORDER)) {
+				if (node.isExternal()) {
+					external++;
+				} else {
+					internal++;
+				}
+			}
+			externalCount = external;
+			internalCount = internal;
+		}
 	}
 
 	// end TODO
@@ -73,6 +180,10 @@ public class NexsonTree extends NexsonElement implements Tree {
 	private NexsonSource parentStudy = null;
 	private NexsonNode ingroupNode = null;
 	
+	// set on a lazily parsed tree that is parsed again after being released, since its problems were recorded in the
+	// diagnostics of the parent study when it was first parsed
+	private boolean problemsRecorded = false;
+	
 	/**
 	 * Create a NexsonTree object using the provided NexSON. Requires a study element to be specified containing any OTUs
 	 * to be associated with the tips of the NexsonTree.
@@ -92,8 +203,10 @@ public class NexsonTree extends NexsonElement implements Tree {
 	 * 
 	 * FOR NOW THIS IS JUST A KLUDGE SO NexsonReader will work... This is a case that may not be supported in the future.
 	 * 
-	 * 
+	 * @deprecated NexsonReader now builds NexsonTrees directly. Code that needs a JadeTree should use asJadeTree() on a
+	 * parsed NexsonTree instead of building a separate JadeTree.
 	 */
+	@Deprecated
 	public NexsonTree(JadeTree jt)  {
 		tree = jt;
 	}
@@ -135,7 +248,10 @@ public class NexsonTree extends NexsonElement implements Tree {
 	 */
 	@Override
 	public Iterable<TreeNode> externalNodes() {
-		return tree.externalNodes(); // should use nexsontree instead of jadetree
+		if (root == null && tree != null) {
+			return tree.externalNodes(); // for trees wrapping a JadeTree
+		}
+		return new NodeTraversal(root, NodeOrder.PREORDER, NodeTraversal.Filter.EXTERNAL);
 	}
 	
 	
@@ -149,6 +265,28 @@ public class NexsonTree extends NexsonElement implements Tree {
 		this.parentStudy = study;
 	}
 	
+	/**
+	 * Specify that the problems in this tree have already been recorded in the diagnostics of the parent study, so that
+	 * they are not recorded again as the tree is built. Used by NexsonStreamReader.
+	 * @param problemsRecorded
+	 */
+	void setProblemsRecorded(boolean problemsRecorded) {
+		this.problemsRecorded = problemsRecorded;
+	}
+	
+	/**
+	 * Record a problem found while building this tree in the diagnostics of the parent study, unless the problems in
+	 * this tree have already been recorded.
+	 * @param code
+	 * @param elementId
+	 * @param offset
+	 */
+	void recordProblem(MessageCode code, String elementId, long offset) {
+		if (! problemsRecorded && parentStudy != null) {
+			parentStudy.recordProblem(code, elementId, offset);
+		}
+	}
+	
 	/**
 	 * Designate the provided node as the ingroup of the tree. This node must be a child of the root node (or the root node itself) of this
 	 * tree or an IllegalArgumentException will be thrown.
@@ -184,85 +322,109 @@ public class NexsonTree extends NexsonElement implements Tree {
 		] */
 		processMetadata(nexson);
 		
-		// arbitraryNode is used a starting point for finding the root later on (if not specified), see below
-		NexsonNode arbitraryNode = null;
-//		JadeNode arbitraryJadeNode = null;
-		
-		// if we have a specified root node, record it, we will use this to validate the nexson structure
-		NexsonNode specifiedRoot = null;
-		
 		// nodes and edges will be used to build the tree
 		JSONArray nexsonNodeArr = (JSONArray) nexson.get("node");
 		JSONArray edgeList = (JSONArray) nexson.get("edge");
-		Map<String, NexsonNode> nodeForId = new HashMap<String, NexsonNode>();
 		
 		// For each node as specified in the Nexson file
 		// e.g. {"@otu": "otu221", "@id": "node692"}
+		List<NexsonNode> nodes = new ArrayList<NexsonNode>(nexsonNodeArr.size());
 		for (Object node : nexsonNodeArr) {
+			nodes.add(new NexsonNode((JSONObject)node, this));
+		}
+		
+		// For each specified edge, record the two nodes it connects
+		// {"@source": "node830", "@target": "node834", "@length": 0.000241603, "@id": "edge834"}
+		List<String> edgeSources = new ArrayList<String>(edgeList.size());
+		List<String> edgeTargets = new ArrayList<String>(edgeList.size());
+		List<Number> edgeLengths = new ArrayList<Number>(edgeList.size());
+		for (Object edge : edgeList) {
+			JSONObject j = (JSONObject)edge;
+			edgeSources.add((String) j.get("@source"));
+			edgeTargets.add((String) j.get("@target"));
+			edgeLengths.add((Number) j.get("@length"));
+		}
+		
+		linkNodes(nodes, edgeSources, edgeTargets, edgeLengths);
+	}
 
-			// create a nexson node from the incoming JSON source and squirrel it away its associated JadeNode
-			NexsonNode nexsonNode = new NexsonNode((JSONObject)node, this);
-			nodeForId.put(nexsonNode.getId(), nexsonNode);
-			
-			arbitraryNode = nexsonNode; //.getJadeNode();
-			
+	/**
+	 * Hook up the provided nodes using the provided edges (given as parallel lists of source node ids, target node ids and
+	 * branch lengths, which may be null), and find the root of the resulting tree. Used by parseNexson and by the streaming
+	 * NexsonStreamReader.
+	 * 
+	 * @param nodes
+	 * @param edgeSources
+	 * @param edgeTargets
+	 * @param edgeLengths
+	 */
+	void linkNodes(List<NexsonNode> nodes, List<String> edgeSources, List<String> edgeTargets, List<Number> edgeLengths) {
+
+		List<String> nodeIds = new ArrayList<String>(nodes.size());
+		for (NexsonNode nexsonNode : nodes) {
+			nodeIds.add(nexsonNode.getId());
+		}
+		
+		// resolve the edges to node indexes and find the observed root (the node without a parent) so we can assess
+		// whether it matches the specifiedRoot. this throws if the edges are inconsistent, before any node is linked
+		linkNodes(nodes, new TreeTopology(getId(), nodeIds, edgeSources, edgeTargets), edgeLengths);
+	}
+
+	/**
+	 * Hook up the provided nodes using edges that have already been resolved to the indexes of the nodes in the list, and
+	 * checked, by the topology. The branch lengths (which may be null) are given in the order of the topology's edges.
+	 * Used by NexsonStreamReader for the by-id NexSON layout, in which edges are resolved as they are read.
+	 * 
+	 * @param nodes
+	 * @param topology
+	 * @param edgeLengths
+	 */
+	void linkNodes(List<NexsonNode> nodes, TreeTopology topology, List<Number> edgeLengths) {
+
+		// if we have a specified root node, record it, we will use this to validate the nexson structure
+		NexsonNode specifiedRoot = null;
+		for (NexsonNode nexsonNode : nodes) {
 			if (nexsonNode.isTheRoot()) {
 				specifiedRoot = nexsonNode;
 			}
 		}
 		
 		// Currently, we do not remember NexSON edges. We record them as links between NexsonNodes
-		
-		// For each specified edge, hook up the two corresponding nodes
-		for (Object edge : edgeList) {
-			JSONObject j = (JSONObject)edge;
-			// {"@source": "node830", "@target": "node834", "@length": 0.000241603, "@id": "edge834"}
+		for (int i = 0; i < topology.edgeSource.length; i++) {
 
 			// source is parent, target is child
-			NexsonNode parent = nodeForId.get(j.get("@source"));
-			if (parent == null) {
-				throw new NexsonParseException("Edge with source property " + (String)j.get("@source") + " not corresponding to any known nodes");
-			}
+			NexsonNode parent = nodes.get(topology.edgeSource[i]);
+			NexsonNode child = nodes.get(topology.edgeTarget[i]);
 			
-			NexsonNode child = nodeForId.get(j.get("@target"));
-			if (child == null) {
-				throw new NexsonParseException("Edge with target property " + (String)j.get("@target") + " not corresponding to any known nodes");
-			}
-			
-			Number length = (Number) j.get("@length");
+			Number length = edgeLengths.get(i);
 			if (length != null) {
 				child.setParentBranchLength(length.doubleValue());
 			}
 			
 			parent.addChild(child);
+			child.setParent(parent);
 		}
 		
-		// Find the observed root (the node without a parent) so we can assess whether
-		// it matches the specifiedRoot. If the input file is malicious this might loop forever.
-		NexsonNode observedRoot = null;
-		for (NexsonNode jn = arbitraryNode; jn != null; jn = (NexsonNode) jn.getParent()) {
-			observedRoot = jn;
-		}
+		NexsonNode observedRoot = nodes.get(topology.root);
 
 		// Validation, assumes nexson edge polarity matches tree edge polarity (it should).
-		if (specifiedRoot != null && !specifiedRoot.equals(observedRoot)) {
-            NexsonParseException e =
-                new NexsonParseException("The specified root node " + specifiedRoot.getId() +
-                                         " is different from the observed root of the tree in the NexSON object hierarchy. This is nonsensical.");
-            if (false)
-                throw e;
-            else {
-                System.err.println(e); // should show study id as well  this.parentStudy
-            }
+		if (specifiedRoot != null && !specifiedRoot.equals(observedRoot) && parentStudy != null) {
+			if (parentStudy.isStrictParsing()) {
+				throw new NexsonParseException("The specified root node " + specifiedRoot.getId() + " of tree " + getId() +
+						" is different from the observed root of the tree in the NexSON object hierarchy. This is nonsensical.");
+			}
+			recordProblem(MessageCode.INCORRECT_ROOT_NODE_LABEL, specifiedRoot.getId(), NexsonDiagnostics.NO_OFFSET);
 		}
 		
 		// GraphImporter looks for root as node with no parents, so we set this here. This seems unnecessary...
 		observedRoot.setParent(null);
 		root = observedRoot;
+		externalCount = -1;
+		internalCount = -1;
+		bipartitionSet = null;
+		tipOttIdIndex = null;
 		
 		// TODO: Think we just need to reroot the tree here...
 //		tree = new NexsonTree(observedRoot.getJadeNode());		
 	}
-
-
 }
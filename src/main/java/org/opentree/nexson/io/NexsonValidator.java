@@ -0,0 +1,874 @@
+package org.opentree.nexson.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.opentree.nexson.io.AnnotationMessage.MessageCode;
+import org.opentree.nexson.io.AnnotationMessage.Severity;
+import org.opentree.nexson.io.JSONTokenizer.Token;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * <p>Checks the structure of NexSON studies, and reports the problems it finds as AnnotationMessages in a
+ * NexsonAnnotation, rather than by throwing exceptions or printing them.</p>
+ * <br/>
+ * <p>The NexSON is read directly from a JSONTokenizer in a single pass, recording only the ids and references of each
+ * element (not a NexsonSource, whose construction fails or silently repairs many of the problems reported here). Each tree
+ * is then checked in a single linear pass over its nodes and edges, and the trees are checked concurrently on a
+ * ForkJoinPool. The messages are in document order: study-level messages first, then the messages for each tree.</p>
+ * <br/>
+ * <p>Both the NexSON 1.0 layout and the by-id (NexSON 1.2) layout are checked. In the latter, each element's id is its
+ * key in the enclosing otuById, treeById, nodeById or edgeBySourceId object, and meta properties are "^"-prefixed keys.</p>
+ * <br/>
+ * <p>The checks performed are listed in CHECKS_PERFORMED. The annotation's elementPassesValidation() is false if any
+ * message has severity ERROR. Malformed JSON cannot be validated, and causes a NexsonParseException.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonValidator {
+
+	/**
+	 * The message codes that may be emitted by the validator.
+	 */
+	public static final MessageCode[] CHECKS_PERFORMED = {
+		MessageCode.MISSING_MANDATORY_KEY,
+		MessageCode.MISSING_LIST_EXPECTED,
+		MessageCode.REPEATED_ID,
+		MessageCode.REFERENCED_ID_NOT_FOUND,
+		MessageCode.INVALID_PROPERTY_VALUE,
+		MessageCode.MULTIPLE_EDGES_FOR_NODES,
+		MessageCode.MULTIPLE_ROOT_NODES,
+		MessageCode.NO_ROOT_NODE,
+		MessageCode.INCORRECT_ROOT_NODE_LABEL,
+		MessageCode.CYCLE_DETECTED,
+		MessageCode.DISCONNECTED_GRAPH_DETECTED,
+		MessageCode.TIP_WITHOUT_OTU,
+		MessageCode.TIP_WITHOUT_OTT_ID,
+		MessageCode.MULTIPLE_TIPS_MAPPED_TO_OTT_ID,
+		MessageCode.MULTIPLE_TREES,
+		MessageCode.NO_TREES
+	};
+
+	public static final String AUTHOR_NAME = "NexsonValidator";
+
+	private static final String OTT_ID = OTVocabularyPredicate.OT_OTT_ID.propertyName();
+	private static final String INGROUP_CLADE = OTVocabularyPredicate.OT_INGROUP_CLADE.propertyName();
+	private static final String SPECIFIED_ROOT = OTVocabularyPredicate.OT_SPECIFIED_ROOT.propertyName();
+	private static final String CANDIDATE_TREE = OTVocabularyPredicate.OT_CANDIDATE_TREE_FOR_SYNTHESIS.propertyName();
+
+	// if null, trees are validated sequentially on the calling thread
+	private ForkJoinPool treeValidationPool = ForkJoinPool.commonPool();
+
+	/**
+	 * Create a validator that checks trees concurrently on ForkJoinPool.commonPool().
+	 */
+	public NexsonValidator() { }
+
+	// ### getters
+
+	public ForkJoinPool getTreeValidationPool() {
+		return treeValidationPool;
+	}
+
+	// ### setters
+
+	/**
+	 * Set the pool on which trees are checked concurrently. If null, trees are checked sequentially.
+	 * @param treeValidationPool
+	 */
+	public void setTreeValidationPool(ForkJoinPool treeValidationPool) {
+		this.treeValidationPool = treeValidationPool;
+	}
+
+	// ### validation
+
+	/**
+	 * Validate the NexSON file, which may be gzip-compressed (see JSONTokenizer.open()).
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public NexsonAnnotation validate(Path file) throws IOException {
+		JSONTokenizer tokenizer = JSONTokenizer.open(file, false);
+		try {
+			return validate(tokenizer);
+		} finally {
+			tokenizer.close();
+		}
+	}
+
+	/**
+	 * Validate the NexSON read from the Reader.
+	 * @param reader
+	 * @return
+	 */
+	public NexsonAnnotation validate(Reader reader) {
+		return validate(new CharJSONTokenizer(reader));
+	}
+
+	/**
+	 * Validate the NexSON read from the tokenizer, which should be positioned at the beginning of the document.
+	 * @param tokenizer
+	 * @return
+	 */
+	public NexsonAnnotation validate(JSONTokenizer tokenizer) {
+
+		StudyScan scan = new StudyScan(tokenizer);
+		scan.readDocument();
+
+		List<AnnotationMessage> messages = new ArrayList<AnnotationMessage>(scan.messages);
+		if (scan.trees.isEmpty()) {
+			messages.add(message(Severity.WARNING, MessageCode.NO_TREES, new JSONObject(), "trees"));
+		} else if (scan.trees.size() > 1 && ! scan.hasCandidateTree) {
+			messages.add(message(Severity.WARNING, MessageCode.MULTIPLE_TREES, new JSONObject(), "trees"));
+		}
+
+		for (List<AnnotationMessage> treeMessages : checkTrees(scan.trees, scan.ottIds)) {
+			messages.addAll(treeMessages);
+		}
+
+		NexsonAnnotation annotation = new NexsonAnnotation();
+		annotation.setDescription("NexSON validation");
+		AnnotationAuthor author = new AnnotationAuthor();
+		author.setName(AUTHOR_NAME);
+		author.setDescription("validator of NexSON tree structure and references");
+		for (MessageCode code : CHECKS_PERFORMED) {
+			author.getInvocation().addCheckPerformed(code.name());
+		}
+		annotation.setAuthor(author);
+
+		boolean passes = true;
+		for (AnnotationMessage message : messages) {
+			annotation.addMessage(message);
+			passes &= message.getSeverity() != Severity.ERROR;
+		}
+		annotation.setPassesValidation(passes);
+		return annotation;
+	}
+
+	private List<List<AnnotationMessage>> checkTrees(List<RawTree> trees, final Map<String, Long> ottIds) {
+
+		List<List<AnnotationMessage>> results = new ArrayList<List<AnnotationMessage>>(trees.size());
+		if (treeValidationPool == null || trees.size() < 2) {
+			for (RawTree tree : trees) {
+				results.add(tree.check(ottIds));
+			}
+			return results;
+		}
+
+		List<Future<List<AnnotationMessage>>> futures = new ArrayList<Future<List<AnnotationMessage>>>(trees.size());
+		for (final RawTree tree : trees) {
+			futures.add(treeValidationPool.submit(new Callable<List<AnnotationMessage>>() {
+				@Override
+				public List<AnnotationMessage> call() {
+					return tree.check(ottIds);
+				}
+			}));
+		}
+		try {
+			for (Future<List<AnnotationMessage>> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while validating trees", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+		return results;
+	}
+
+	// ### reading
+
+	/**
+	 * A single pass over the NexSON document, recording the OTUs (with their ott ids) and the raw contents of each tree,
+	 * and emitting messages for repeated ids and for elements whose structure is not as expected.
+	 */
+	private static class StudyScan {
+
+		private final JSONTokenizer tokenizer;
+		final List<AnnotationMessage> messages = new ArrayList<AnnotationMessage>();
+		final Map<String, Long> ottIds = new HashMap<String, Long>(); // otu id -> ott id (null if the otu has none)
+		final List<RawTree> trees = new ArrayList<RawTree>();
+		final Set<String> ids = new HashSet<String>();
+		boolean hasCandidateTree = false;
+
+		StudyScan(JSONTokenizer tokenizer) {
+			this.tokenizer = tokenizer;
+		}
+
+		void readDocument() {
+			tokenizer.expect(Token.START_OBJECT);
+			boolean foundStudy = false;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("nexml")) {
+					readStudy();
+					foundStudy = true;
+				} else if (key.equals("data") && tokenizer.current() == Token.START_OBJECT) {
+					while (tokenizer.next() == Token.FIELD_NAME) {
+						String dataKey = tokenizer.getText();
+						tokenizer.next();
+						if (dataKey.equals("nexml")) {
+							readStudy();
+							foundStudy = true;
+						} else {
+							tokenizer.skipValue();
+						}
+					}
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			if (! foundStudy) {
+				messages.add(message(Severity.ERROR, MessageCode.MISSING_MANDATORY_KEY, "nexml", "study"));
+			}
+		}
+
+		private void readStudy() {
+			if (! isObject("study")) {
+				return;
+			}
+			String id = null;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("@id")) {
+					id = readId("nexml");
+				} else if (key.equals("meta")) {
+					Map<String, Object> meta = readMeta(CANDIDATE_TREE);
+					hasCandidateTree = meta.get(CANDIDATE_TREE) != null;
+				} else if (key.equals("otus")) {
+					readContainer("otus", "otu", "otus");
+				} else if (key.equals("trees")) {
+					readContainer("trees", "tree", "trees");
+				} else if (key.equals("otusById")) {
+					readContainersById("otus", "otu", "otusById");
+				} else if (key.equals("treesById")) {
+					readContainersById("trees", "tree", "treesById");
+				} else if (key.equals("^" + CANDIDATE_TREE)) {
+					hasCandidateTree = readByIdMeta() != null;
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			if (id == null) {
+				messages.add(message(Severity.ERROR, MessageCode.MISSING_MANDATORY_KEY, "@id", "study"));
+			}
+		}
+
+		/**
+		 * Read an otus or trees element (or an array of them), and the otu or tree elements within it.
+		 */
+		private void readContainer(String containerKey, String elementKey, String path) {
+
+			if (tokenizer.current() == Token.START_ARRAY) { // more than one container element
+				while (tokenizer.next() != Token.END_ARRAY) {
+					readContainer(containerKey, elementKey, path);
+				}
+				return;
+			}
+			if (! isObject(path)) {
+				return;
+			}
+
+			String id = null;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("@id")) {
+					id = readId(containerKey);
+				} else if (key.equals(elementKey)) {
+					if (tokenizer.current() == Token.START_ARRAY) {
+						while (tokenizer.next() != Token.END_ARRAY) {
+							readElement(elementKey, path);
+						}
+					} else {
+						messages.add(message(Severity.ERROR, MessageCode.MISSING_LIST_EXPECTED, elementKey, path));
+						readElement(elementKey, path);
+					}
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			if (id == null) {
+				messages.add(message(Severity.ERROR, MessageCode.MISSING_MANDATORY_KEY, "@id", path));
+			}
+		}
+
+		/**
+		 * Read an otusById or treesById object of the by-id (NexSON 1.2) layout, whose values are the otus or trees
+		 * elements keyed by their ids, each holding its otu or tree elements keyed by id in an otuById or treeById object.
+		 */
+		private void readContainersById(String containerKey, String elementKey, String path) {
+			if (! isObject(path)) {
+				return;
+			}
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String id = recordId(containerKey, tokenizer.getText(), messages);
+				tokenizer.next();
+				if (! isObject(elementPath(containerKey, id))) {
+					continue;
+				}
+				while (tokenizer.next() == Token.FIELD_NAME) {
+					String key = tokenizer.getText();
+					tokenizer.next();
+					if (key.equals(elementKey + "ById") && isObject(path + "/" + key)) {
+						while (tokenizer.next() == Token.FIELD_NAME) {
+							String elementId = tokenizer.getText();
+							tokenizer.next();
+							readElement(elementKey, path, elementId);
+						}
+					} else {
+						tokenizer.skipValue();
+					}
+				}
+			}
+		}
+
+		private void readElement(String elementKey, String path) {
+			readElement(elementKey, path, null);
+		}
+
+		private void readElement(String elementKey, String path, String keyId) {
+			if (elementKey.equals("otu")) {
+				readOTU(path, keyId);
+			} else {
+				readTree(path, keyId);
+			}
+		}
+
+		/**
+		 * Read an otu element. keyId is the key of the element in the by-id layout, and null otherwise.
+		 */
+		private void readOTU(String containerPath, String keyId) {
+			String id = keyId != null ? recordId("otu", keyId, messages) : null;
+			if (! isObject(containerPath + "/otu")) {
+				return;
+			}
+			Object ottId = null;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("@id") && keyId == null) {
+					id = readId("otu");
+				} else if (key.equals("meta")) {
+					ottId = readMeta(OTT_ID).get(OTT_ID);
+				} else if (key.equals("^" + OTT_ID)) {
+					ottId = readByIdMeta();
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+
+			String path = elementPath("otu", id);
+			if (id == null) {
+				messages.add(message(Severity.ERROR, MessageCode.MISSING_MANDATORY_KEY, "@id", path));
+				return;
+			}
+			Long ott = null;
+			if (ottId instanceof Number) {
+				ott = ((Number) ottId).longValue();
+			} else if (ottId != null) {
+				try {
+					ott = Long.parseLong(String.valueOf(ottId));
+				} catch (NumberFormatException ex) {
+					messages.add(message(Severity.ERROR, MessageCode.INVALID_PROPERTY_VALUE, keyValue(OTT_ID, ottId), path));
+				}
+			}
+			ottIds.put(id, ott);
+		}
+
+		/**
+		 * Read a tree element. keyId is the key of the element in the by-id layout, and null otherwise.
+		 */
+		private void readTree(String containerPath, String keyId) {
+			RawTree tree = new RawTree();
+			tree.id = keyId != null ? recordId("tree", keyId, messages) : null;
+			if (! isObject(containerPath + "/tree")) {
+				return;
+			}
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("@id") && keyId == null) {
+					tree.id = readId("tree");
+				} else if (key.equals("meta")) {
+					Map<String, Object> meta = readMeta(INGROUP_CLADE, SPECIFIED_ROOT);
+					tree.ingroup = stringOrNull(meta.get(INGROUP_CLADE));
+					tree.specifiedRoot = stringOrNull(meta.get(SPECIFIED_ROOT));
+				} else if (key.equals("^" + INGROUP_CLADE)) {
+					tree.ingroup = stringOrNull(readByIdMeta());
+				} else if (key.equals("^" + SPECIFIED_ROOT)) {
+					tree.specifiedRoot = stringOrNull(readByIdMeta());
+				} else if (key.equals("node")) {
+					readList("node", tree);
+				} else if (key.equals("edge")) {
+					readList("edge", tree);
+				} else if (key.equals("nodeById")) {
+					readNodesById(tree);
+				} else if (key.equals("edgeBySourceId")) {
+					readEdgesBySourceId(tree);
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			tree.path = elementPath("tree", tree.id);
+			if (tree.id == null) {
+				messages.add(message(Severity.ERROR, MessageCode.MISSING_MANDATORY_KEY, "@id", tree.path));
+			}
+			trees.add(tree);
+		}
+
+		private void readList(String key, RawTree tree) {
+			if (tokenizer.current() == Token.START_ARRAY) {
+				while (tokenizer.next() != Token.END_ARRAY) {
+					readListElement(key, tree);
+				}
+			} else {
+				tree.structureMessages.add(message(Severity.ERROR, MessageCode.MISSING_LIST_EXPECTED, key, null));
+				readListElement(key, tree);
+			}
+		}
+
+		private void readListElement(String key, RawTree tree) {
+			if (key.equals("node")) {
+				readNode(tree, null);
+			} else {
+				readEdge(tree, null, null);
+			}
+		}
+
+		/**
+		 * Read the nodeById object of a tree in the by-id layout, whose values are the node elements keyed by their ids.
+		 */
+		private void readNodesById(RawTree tree) {
+			if (! isObject("tree/nodeById")) {
+				return;
+			}
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String id = tokenizer.getText();
+				tokenizer.next();
+				readNode(tree, id);
+			}
+		}
+
+		/**
+		 * Read the edgeBySourceId object of a tree in the by-id layout, whose values are objects holding the edge elements
+		 * from each source node, keyed by edge id.
+		 */
+		private void readEdgesBySourceId(RawTree tree) {
+			if (! isObject("tree/edgeBySourceId")) {
+				return;
+			}
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String source = tokenizer.getText();
+				tokenizer.next();
+				if (! isObject("tree/edgeBySourceId/" + source)) {
+					continue;
+				}
+				while (tokenizer.next() == Token.FIELD_NAME) {
+					String id = tokenizer.getText();
+					tokenizer.next();
+					readEdge(tree, id, source);
+				}
+			}
+		}
+
+		/**
+		 * Read a node element. keyId is the key of the element in the by-id layout, and null otherwise.
+		 */
+		private void readNode(RawTree tree, String keyId) {
+			String id = keyId != null ? recordId("node", keyId, tree.structureMessages) : null;
+			if (! isObject("tree/node")) {
+				return;
+			}
+			String otu = null;
+			boolean isRoot = false;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String field = tokenizer.getText();
+				tokenizer.next();
+				if (field.equals("@id") && keyId == null) {
+					id = readId("node", tree.structureMessages);
+				} else if (field.equals("@otu")) {
+					otu = tokenizer.readString();
+				} else if (field.equals("@root")) {
+					isRoot = "true".equals(tokenizer.readString());
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			if (id == null) {
+				tree.structureMessages.add(message(Severity.ERROR, MessageCode.MISSING_MANDATORY_KEY, "@id", "node"));
+				return;
+			}
+			if (isRoot) {
+				tree.flaggedRoots.set(tree.nodeIds.size());
+			}
+			tree.nodeIds.add(id);
+			tree.nodeOTUs.add(otu);
+		}
+
+		/**
+		 * Read an edge element. In the by-id layout, keyId is the key of the element and keySource the key of the object
+		 * holding it, which is used if the element has no @source; otherwise both are null.
+		 */
+		private void readEdge(RawTree tree, String keyId, String keySource) {
+			String id = keyId != null ? recordId("edge", keyId, tree.structureMessages) : null;
+			if (! isObject("tree/edge")) {
+				return;
+			}
+			String source = keySource;
+			String target = null;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String field = tokenizer.getText();
+				tokenizer.next();
+				if (field.equals("@id") && keyId == null) {
+					id = readId("edge", tree.structureMessages);
+				} else if (field.equals("@source")) {
+					source = tokenizer.readString();
+				} else if (field.equals("@target")) {
+					target = tokenizer.readString();
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			tree.edgeIds.add(id);
+			tree.edgeSources.add(source);
+			tree.edgeTargets.add(target);
+		}
+
+		/**
+		 * Read the meta value (a single meta element or an array of them), returning the values of the specified
+		 * properties that are present.
+		 */
+		private Map<String, Object> readMeta(String... properties) {
+			Map<String, Object> values = new HashMap<String, Object>(4);
+			if (tokenizer.current() == Token.START_ARRAY) {
+				while (tokenizer.next() != Token.END_ARRAY) {
+					readMetaElement(properties, values);
+				}
+			} else {
+				readMetaElement(properties, values);
+			}
+			return values;
+		}
+
+		private void readMetaElement(String[] properties, Map<String, Object> values) {
+			if (tokenizer.current() != Token.START_OBJECT) {
+				tokenizer.skipValue();
+				return;
+			}
+			String property = null;
+			Object value = null;
+			Object href = null;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("@property") || (key.equals("@rel") && property == null)) {
+					property = tokenizer.readString();
+				} else if (key.equals("$") && tokenizer.current() != Token.START_OBJECT && tokenizer.current() != Token.START_ARRAY) {
+					value = tokenizer.readValue();
+				} else if (key.equals("@href") && tokenizer.current() == Token.STRING) {
+					href = tokenizer.getText();
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			for (String wanted : properties) {
+				if (wanted.equals(property)) {
+					values.put(property, value != null ? value : href);
+				}
+			}
+		}
+
+		/**
+		 * Read the value of a "^"-prefixed meta key of the by-id layout: a literal value, or an object with a "$" or
+		 * "@href" value. Arrays of values are skipped, and null is returned for them.
+		 */
+		private Object readByIdMeta() {
+			if (tokenizer.current() == Token.START_ARRAY) {
+				tokenizer.skipValue();
+				return null;
+			} else if (tokenizer.current() != Token.START_OBJECT) {
+				return tokenizer.readValue();
+			}
+			Object value = null;
+			Object href = null;
+			while (tokenizer.next() == Token.FIELD_NAME) {
+				String key = tokenizer.getText();
+				tokenizer.next();
+				if (key.equals("$") && tokenizer.current() != Token.START_OBJECT && tokenizer.current() != Token.START_ARRAY) {
+					value = tokenizer.readValue();
+				} else if (key.equals("@href") && tokenizer.current() == Token.STRING) {
+					href = tokenizer.getText();
+				} else {
+					tokenizer.skipValue();
+				}
+			}
+			return value != null ? value : href;
+		}
+
+		/**
+		 * Read the value of an @id attribute of an element of the specified type and record it, emitting REPEATED_ID (to
+		 * the target list, for elements within trees) if it has been seen before.
+		 */
+		private String readId(String type) {
+			return readId(type, messages);
+		}
+
+		private String readId(String type, List<AnnotationMessage> target) {
+			return recordId(type, tokenizer.readString(), target);
+		}
+
+		/**
+		 * Record the id of an element, which in the by-id layout is its key, emitting REPEATED_ID as readId() does.
+		 */
+		private String recordId(String type, String id, List<AnnotationMessage> target) {
+			if (id != null && ! ids.add(id)) {
+				target.add(message(Severity.ERROR, MessageCode.REPEATED_ID, id, elementPath(type, id)));
+			}
+			return id;
+		}
+
+		/**
+		 * If the current token does not start an object, skip it, emit MISSING_MANDATORY_KEY (the element has none of its
+		 * attributes) and return false.
+		 */
+		private boolean isObject(String path) {
+			if (tokenizer.current() == Token.START_OBJECT) {
+				return true;
+			}
+			messages.add(message(Severity.ERROR, MessageCode.MISSING_MANDATORY_KEY, "@id", path));
+			tokenizer.skipValue();
+			return false;
+		}
+	}
+
+	/**
+	 * The ids and references of a tree's nodes and edges, as they appear in the NexSON.
+	 */
+	private static class RawTree {
+
+		String id;
+		String path;
+		String ingroup;
+		String specifiedRoot;
+		final List<String> nodeIds = new ArrayList<String>();
+		final List<String> nodeOTUs = new ArrayList<String>();
+		final BitSet flaggedRoots = new BitSet();
+		final List<String> edgeIds = new ArrayList<String>();
+		final List<String> edgeSources = new ArrayList<String>();
+		final List<String> edgeTargets = new ArrayList<String>();
+		final List<AnnotationMessage> structureMessages = new ArrayList<AnnotationMessage>(0);
+
+		/**
+		 * Check the tree in a single linear pass over its nodes and edges, and return the resulting messages.
+		 */
+		@SuppressWarnings("unchecked")
+		List<AnnotationMessage> check(Map<String, Long> ottIds) {
+
+			List<AnnotationMessage> messages = new ArrayList<AnnotationMessage>();
+			for (AnnotationMessage message : structureMessages) {
+				message.setRefersTo(message.getRefersTo() != null ? path + "/" + message.getRefersTo() : path);
+				messages.add(message);
+			}
+
+			// assign each node a dense index. repeated ids have already been reported; the first occurrence is used
+			int n = nodeIds.size();
+			Map<String, Integer> index = new HashMap<String, Integer>(n * 2);
+			for (int i = 0; i < n; i++) {
+				if (! index.containsKey(nodeIds.get(i))) {
+					index.put(nodeIds.get(i), i);
+				}
+			}
+
+			// link the nodes through the edges
+			int[] parent = new int[n];
+			int[] childCount = new int[n];
+			Arrays.fill(parent, -1);
+			for (int e = 0; e < edgeSources.size(); e++) {
+				String edgePath = path + "/" + elementPath("edge", edgeIds.get(e));
+				Integer source = resolve("@source", edgeSources.get(e), index, edgePath, messages);
+				Integer target = resolve("@target", edgeTargets.get(e), index, edgePath, messages);
+				if (source == null || target == null) {
+					continue;
+				}
+				if (parent[target] != -1) {
+					messages.add(message(Severity.ERROR, MessageCode.MULTIPLE_EDGES_FOR_NODES, nodeData(target), nodePath(target)));
+					continue;
+				}
+				parent[target] = source;
+				childCount[source]++;
+			}
+
+			// roots flagged in the nexson
+			JSONArray flagged = new JSONArray();
+			for (int i = flaggedRoots.nextSetBit(0); i >= 0; i = flaggedRoots.nextSetBit(i + 1)) {
+				flagged.add(nodeIds.get(i));
+				if (parent[i] != -1) {
+					messages.add(message(Severity.ERROR, MessageCode.INCORRECT_ROOT_NODE_LABEL, new JSONObject(), nodePath(i)));
+				}
+			}
+			if (flagged.size() > 1) {
+				messages.add(message(Severity.ERROR, MessageCode.MULTIPLE_ROOT_NODES, listData("nodes", flagged), path));
+			} else if (flagged.isEmpty() && n > 0) {
+				messages.add(message(Severity.WARNING, MessageCode.NO_ROOT_NODE, new JSONObject(), path));
+			}
+
+			// cycles: follow the parent links up from each node, marking the nodes on the current path (1) and the nodes
+			// known to lead to a root (2). reaching a node on the current path means the path contains a cycle. each node
+			// is marked at most twice, so this is linear in the number of nodes.
+			byte[] state = new byte[n];
+			int[] pathNodes = new int[Math.max(n, 1)];
+			JSONArray observedRoots = new JSONArray();
+			for (int i = 0; i < n; i++) {
+				int length = 0;
+				int j = i;
+				while (j != -1 && state[j] == 0) {
+					state[j] = 1;
+					pathNodes[length++] = j;
+					j = parent[j];
+				}
+				if (j != -1 && state[j] == 1) {
+					messages.add(message(Severity.ERROR, MessageCode.CYCLE_DETECTED, nodeData(j), path));
+				}
+				for (int k = 0; k < length; k++) {
+					state[pathNodes[k]] = 2;
+				}
+				if (parent[i] == -1) {
+					observedRoots.add(nodeIds.get(i));
+				}
+			}
+			if (observedRoots.size() > 1) {
+				messages.add(message(Severity.ERROR, MessageCode.DISCONNECTED_GRAPH_DETECTED, listData("roots", observedRoots), path));
+			}
+
+			// references from the tree metadata
+			if (ingroup != null && ! index.containsKey(ingroup)) {
+				messages.add(message(Severity.ERROR, MessageCode.REFERENCED_ID_NOT_FOUND, keyValue(INGROUP_CLADE, ingroup), path));
+			}
+			if (specifiedRoot != null && ! index.containsKey(specifiedRoot)) {
+				messages.add(message(Severity.ERROR, MessageCode.REFERENCED_ID_NOT_FOUND, keyValue(SPECIFIED_ROOT, specifiedRoot), path));
+			}
+
+			// otu references and tip mappings
+			Map<Long, Integer> firstTipForOttId = new HashMap<Long, Integer>();
+			Map<Long, JSONArray> repeatedOttIds = new LinkedHashMap<Long, JSONArray>();
+			for (int i = 0; i < n; i++) {
+				String otu = nodeOTUs.get(i);
+				if (otu != null && ! ottIds.containsKey(otu)) {
+					messages.add(message(Severity.ERROR, MessageCode.REFERENCED_ID_NOT_FOUND, keyValue("@otu", otu), nodePath(i)));
+					continue;
+				}
+				if (childCount[i] > 0) {
+					continue;
+				}
+				if (otu == null) {
+					messages.add(message(Severity.ERROR, MessageCode.TIP_WITHOUT_OTU, new JSONObject(), nodePath(i)));
+					continue;
+				}
+				Long ottId = ottIds.get(otu);
+				if (ottId == null) {
+					messages.add(message(Severity.WARNING, MessageCode.TIP_WITHOUT_OTT_ID, new JSONObject(), nodePath(i)));
+					continue;
+				}
+				Integer first = firstTipForOttId.get(ottId);
+				if (first == null) {
+					firstTipForOttId.put(ottId, i);
+				} else {
+					JSONArray tips = repeatedOttIds.get(ottId);
+					if (tips == null) {
+						tips = new JSONArray();
+						tips.add(nodeIds.get(first));
+						repeatedOttIds.put(ottId, tips);
+					}
+					tips.add(nodeIds.get(i));
+				}
+			}
+			for (JSONArray tips : repeatedOttIds.values()) {
+				messages.add(message(Severity.WARNING, MessageCode.MULTIPLE_TIPS_MAPPED_TO_OTT_ID, listData("nodes", tips), path));
+			}
+
+			return messages;
+		}
+
+		private Integer resolve(String key, String nodeId, Map<String, Integer> index, String edgePath, List<AnnotationMessage> messages) {
+			if (nodeId == null) {
+				messages.add(message(Severity.ERROR, MessageCode.MISSING_MANDATORY_KEY, key, edgePath));
+				return null;
+			}
+			Integer i = index.get(nodeId);
+			if (i == null) {
+				messages.add(message(Severity.ERROR, MessageCode.REFERENCED_ID_NOT_FOUND, keyValue(key, nodeId), edgePath));
+			}
+			return i;
+		}
+
+		private String nodePath(int i) {
+			return path + "/" + elementPath("node", nodeIds.get(i));
+		}
+
+		@SuppressWarnings("unchecked")
+		private JSONObject nodeData(int i) {
+			JSONObject data = new JSONObject();
+			data.put("node", nodeIds.get(i));
+			return data;
+		}
+	}
+
+	// ### messages
+
+	private static AnnotationMessage message(Severity severity, MessageCode code, Object data, String refersTo) {
+		AnnotationMessage message = new AnnotationMessage();
+		message.setSeverity(severity);
+		message.setCode(code);
+		message.setData(data);
+		message.setRefersTo(refersTo);
+		return message;
+	}
+
+	private static String elementPath(String type, String id) {
+		return id != null ? type + "(id=" + id + ")" : type;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject keyValue(String key, Object value) {
+		JSONObject data = new JSONObject();
+		data.put("key", key);
+		data.put("value", value);
+		return data;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject listData(String key, JSONArray values) {
+		JSONObject data = new JSONObject();
+		data.put(key, values);
+		return data;
+	}
+
+	private static String stringOrNull(Object value) {
+		return value != null ? String.valueOf(value) : null;
+	}
+}
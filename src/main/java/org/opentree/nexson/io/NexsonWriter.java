@@ -0,0 +1,553 @@
+package org.opentree.nexson.io;
+
+import jade.tree.TreeNode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.opentree.nexson.io.AnnotationAuthor.AuthorInvocation;
+import org.opentree.properties.OTVocabularyObject;
+import org.opentree.properties.OTVocabularyPredicate;
+
+/**
+ * <p>Writes a NexsonSource as NexSON, streaming the JSON text directly to a Writer or OutputStream without building a
+ * JSON object tree first.</p>
+ * <br/>
+ * <p>The output is deterministic: the keys of every JSON object are written in sorted order, the meta elements of each
+ * NexSON element are written with the simple properties first (sorted by property name) followed by the annotations,
+ * OTUs and trees are written in the order of the source, and the nodes of each tree are written in preorder. Writing
+ * the same study twice, or two copies of a study parsed from differently ordered NexSON, produces identical bytes.</p>
+ * <br/>
+ * <p>The output can be read by NexsonSource and NexsonReader. Since the parsed model does not retain NexSON edges or the
+ * ids of the otus and trees container elements, edges are written with ids derived from the ids of their target nodes,
+ * and the containers are given the ids "otus" and "trees". Trees that are being parsed lazily and have not been parsed
+ * yet are parsed into copies as they are written (see NexsonSource.getTreeWithoutRetaining()), so the source is not
+ * modified.</p>
+ *
+ * @author cody
+ *
+ */
+public class NexsonWriter {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String LITERAL_META = "nex:LiteralMeta";
+	private static final String RESOURCE_META = "nex:ResourceMeta";
+	private static final String OTUS_ID = "otus";
+	private static final String TREES_ID = "trees";
+	private static final String EDGE_ID_PREFIX = "edge_";
+
+	private boolean prettyPrint = false;
+	private String indent = "  ";
+
+	// the state of the JSON text being written
+	private Appendable out;
+	private int depth;
+	private boolean[] hasMembers = new boolean[32]; // whether the container at each depth has had a member written yet
+	private boolean afterName; // whether an object key has just been written
+
+	/**
+	 * Create a NexsonWriter that writes compact output, without whitespace.
+	 */
+	public NexsonWriter() { }
+
+	/**
+	 * Create a NexsonWriter that writes compact output or pretty-printed output, as specified.
+	 * @param prettyPrint
+	 */
+	public NexsonWriter(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	// ### getters
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	public String getIndent() {
+		return indent;
+	}
+
+	// ### setters
+
+	public void setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	/**
+	 * Set the string written once for each level of nesting when pretty-printing. The default is two spaces.
+	 * @param indent
+	 */
+	public void setIndent(String indent) {
+		this.indent = indent;
+	}
+
+	// ### writing
+
+	/**
+	 * Write the study as NexSON to the provided Appendable.
+	 * @param source
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(NexsonSource source, Appendable out) throws IOException {
+		this.out = out;
+		this.depth = 0;
+		this.afterName = false;
+		try {
+			beginObject();
+			name("nexml");
+			writeStudy(source);
+			endObject();
+			if (prettyPrint) {
+				out.append('\n');
+			}
+		} finally {
+			this.out = null;
+		}
+	}
+
+	/**
+	 * Write the study as NexSON to the provided OutputStream, encoded as UTF-8. The stream is flushed but not closed.
+	 * @param source
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(NexsonSource source, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF8), 1 << 16);
+		write(source, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Write the study as NexSON to the specified file, replacing the file if it exists.
+	 * @param source
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(NexsonSource source, Path file) throws IOException {
+		OutputStream stream = Files.newOutputStream(file);
+		try {
+			write(source, stream);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Return the NexSON for the study as a string.
+	 * @param source
+	 * @return
+	 */
+	public String toNexson(NexsonSource source) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			write(source, sb);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); // StringBuilder does not throw IOException
+		}
+		return sb.toString();
+	}
+
+	// ### nexson elements
+
+	private void writeStudy(NexsonSource source) throws IOException {
+
+		// keys in sorted order: @id, meta, otus, trees
+		beginObject();
+		name("@id");
+		value(source.getId());
+		writeMetadata(source, null);
+
+		name("otus");
+		beginObject();
+		name("@id");
+		value(OTUS_ID);
+		name("otu");
+		beginArray();
+		for (NexsonOTU otu : source.getOTUList()) {
+			writeOTU(otu);
+		}
+		endArray();
+		endObject();
+
+		name("trees");
+		beginObject();
+		name("@id");
+		value(TREES_ID);
+		name("@otus");
+		value(OTUS_ID);
+		name("tree");
+		beginArray();
+		for (int i = 0; i < source.getTreeCount(); i++) {
+			writeTree(source.getTreeWithoutRetaining(i));
+		}
+		endArray();
+		endObject();
+
+		endObject();
+	}
+
+	private void writeOTU(NexsonOTU otu) throws IOException {
+
+		// keys in sorted order: @id, @label, meta
+		beginObject();
+		name("@id");
+		value(otu.getId());
+
+		// the label only came from the NexSON @label if there was no taxon name or original label to take it from
+		if (otu.getLabel() != null && ! otu.hasProperty(OTVocabularyPredicate.OT_OTT_TAXON_NAME)
+				&& ! otu.hasProperty(OTVocabularyPredicate.OT_ORIGINAL_LABEL)) {
+			name("@label");
+			value(otu.getLabel());
+		}
+		writeMetadata(otu, null);
+		endObject();
+	}
+
+	private void writeTree(NexsonTree tree) throws IOException {
+
+		List<NexsonNode> nodes = new ArrayList<NexsonNode>();
+		if (tree.getRoot() != null) {
+			for (TreeNode node : new NodeTraversal(tree.getRoot(), NodeTraversal.Order.PREORDER, NodeTraversal.Filter.ALL)) {
+				nodes.add((NexsonNode) node);
+			}
+		}
+
+		// an ingroup specified through the api overrides the one recorded in the tree metadata
+		Map<String, Object> overrides = null;
+		if (tree.getSpecifiedIngroupNode() != null) {
+			overrides = Collections.<String, Object>singletonMap(OTVocabularyPredicate.OT_INGROUP_CLADE.propertyName(),
+					tree.getSpecifiedIngroupNode().getId());
+		}
+
+		// keys in sorted order: @id, edge, meta, node
+		beginObject();
+		name("@id");
+		value(tree.getId());
+
+		name("edge");
+		beginArray();
+		for (NexsonNode node : nodes) {
+			NexsonNode parent = (NexsonNode) node.getParent();
+			if (parent != null) {
+				// keys in sorted order: @id, @length, @source, @target
+				beginObject();
+				name("@id");
+				value(EDGE_ID_PREFIX + node.getId());
+				if (node.getParentBranchLength() != null) {
+					name("@length");
+					value(node.getParentBranchLength());
+				}
+				name("@source");
+				value(parent.getId());
+				name("@target");
+				value(node.getId());
+				endObject();
+			}
+		}
+		endArray();
+
+		writeMetadata(tree, overrides);
+
+		name("node");
+		beginArray();
+		for (NexsonNode node : nodes) {
+			// keys in sorted order: @id, @otu, meta
+			beginObject();
+			name("@id");
+			value(node.getId());
+			if (node.getOTU() != null) {
+				name("@otu");
+				value(node.getOTU().getId());
+			}
+			writeMetadata(node, null);
+			endObject();
+		}
+		endArray();
+
+		endObject();
+	}
+
+	/**
+	 * Write the meta key of the element, if it has any properties or annotations: first the simple properties (with any
+	 * overriding values) in order of property name, then the annotations.
+	 */
+	private void writeMetadata(NexsonElement element, Map<String, Object> overrides) throws IOException {
+
+		Map<String, Object> properties = element.properties != null ? element.properties : Collections.<String, Object>emptyMap();
+		List<NexsonAnnotation> annotations = element.getAnnotationCount() > 0 ? element.getAnnotations() : Collections.<NexsonAnnotation>emptyList();
+		if (properties.isEmpty() && annotations.isEmpty() && overrides == null) {
+			return;
+		}
+
+		TreeMap<String, Object> sorted = new TreeMap<String, Object>(properties);
+		if (overrides != null) {
+			sorted.putAll(overrides);
+		}
+
+		name("meta");
+		beginArray();
+		for (Entry<String, Object> property : sorted.entrySet()) {
+			// keys in sorted order: $, @property, @xsi:type
+			beginObject();
+			name("$");
+			value(property.getValue());
+			name("@property");
+			value(property.getKey());
+			name("@xsi:type");
+			value(LITERAL_META);
+			endObject();
+		}
+		for (NexsonAnnotation annotation : annotations) {
+			value(annotationToMap(annotation));
+		}
+		endArray();
+	}
+
+	// ### annotations
+
+	/**
+	 * Return a map containing the NexSON fields of the annotation. Fields set on the annotation object take precedence over
+	 * user properties with the same names, except for the messages: a messages array retained from the parsed NexSON (as
+	 * a user property) is written as is, since AnnotationMessage does not retain every field of the original messages.
+	 */
+	private static Map<String, Object> annotationToMap(NexsonAnnotation annotation) {
+
+		Map<String, Object> map = new TreeMap<String, Object>(annotation.getUserProperties());
+		map.put("@property", OTVocabularyObject.OT_ANNOTATION.propertyName());
+		map.put("@xsi:type", RESOURCE_META);
+		putIfNotNull(map, "$", annotation.getDescription());
+		putIfNotNull(map, "id", annotation.getId());
+		putIfNotNull(map, "dateCreated", annotation.getDateCreated());
+		putIfNotNull(map, "dateModified", annotation.getDateModified());
+		map.put("isValid", annotation.elementPassesValidation());
+
+		AnnotationAuthor author = annotation.getAuthor();
+		if (author != null) {
+			Map<String, Object> authorMap = new TreeMap<String, Object>(author.getProperties());
+			putIfNotNull(authorMap, "name", author.getName());
+			putIfNotNull(authorMap, "url", author.getUrl());
+			putIfNotNull(authorMap, "description", author.getDescription());
+			putIfNotNull(authorMap, "version", author.getVersion());
+			if (! author.checksPerformed.isEmpty()) {
+				authorMap.put("checksPerformed", sortedList(author.checksPerformed));
+			}
+			AuthorInvocation invocation = author.getInvocation();
+			if (invocation != null) {
+				Map<String, Object> invocationMap = new TreeMap<String, Object>();
+				if (! invocation.getCommandLineArgs().isEmpty()) {
+					invocationMap.put("commandLine", invocation.getCommandLineArgs());
+				}
+				putIfNotNull(invocationMap, "env", invocation.getEnv());
+				putIfNotNull(invocationMap, "method", invocation.getMethod());
+				putIfNotNull(invocationMap, "params", invocation.getParams());
+				if (! invocation.getChecksPerformed().isEmpty()) {
+					invocationMap.put("checksPerformed", sortedList(invocation.getChecksPerformed()));
+				}
+				authorMap.put("invocation", invocationMap);
+			}
+			map.put("author", authorMap);
+		}
+
+		if (! annotation.getMessages().isEmpty() && ! map.containsKey("messages")) {
+			List<Object> messages = new ArrayList<Object>(annotation.getMessages().size());
+			for (AnnotationMessage message : annotation.getMessages()) {
+				Map<String, Object> messageMap = new TreeMap<String, Object>(message.properties);
+				putIfNotNull(messageMap, "severity", message.getSeverity());
+				putIfNotNull(messageMap, "code", message.getCode());
+				putIfNotNull(messageMap, "humanReadableMessageType", message.getHumanMessageType());
+				putIfNotNull(messageMap, "humanReadableMessage", message.getHumanMessage());
+				putIfNotNull(messageMap, "dataAnnotation", message.getDataAnnotation());
+				putIfNotNull(messageMap, "data", message.getData());
+				putIfNotNull(messageMap, "refersTo", message.getRefersTo());
+				messageMap.put("preserve", message.getToBePreserved());
+				messages.add(messageMap);
+			}
+			map.put("messages", messages);
+		}
+
+		return map;
+	}
+
+	private static void putIfNotNull(Map<String, Object> map, String key, Object value) {
+		if (value instanceof Enum) {
+			value = ((Enum<?>) value).name();
+		}
+		if (value != null) {
+			map.put(key, value);
+		}
+	}
+
+	private static List<String> sortedList(Collection<String> values) {
+		List<String> list = new ArrayList<String>(values);
+		Collections.sort(list);
+		return list;
+	}
+
+	// ### json values
+
+	/**
+	 * Write an arbitrary value: null, a String, Number or Boolean, or a Map (written as an object with sorted keys) or
+	 * Collection (written as an array) of such values.
+	 */
+	private void value(Object value) throws IOException {
+		if (value == null) {
+			beginValue();
+			out.append("null");
+		} else if (value instanceof String) {
+			beginValue();
+			appendString((String) value);
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				throw new IllegalArgumentException("Cannot write the non-finite number " + value + " as JSON");
+			}
+			beginValue();
+			out.append(value.toString());
+		} else if (value instanceof Number || value instanceof Boolean) {
+			beginValue();
+			out.append(value.toString());
+		} else if (value instanceof Map) {
+			TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+			for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+			beginObject();
+			for (Entry<String, Object> entry : sorted.entrySet()) {
+				name(entry.getKey());
+				value(entry.getValue());
+			}
+			endObject();
+		} else if (value instanceof Collection) {
+			beginArray();
+			for (Object item : (Collection<?>) value) {
+				value(item);
+			}
+			endArray();
+		} else {
+			throw new IllegalArgumentException("Cannot write a value of type " + value.getClass().getName() + " as JSON: " + value);
+		}
+	}
+
+	private void beginObject() throws IOException {
+		beginValue();
+		out.append('{');
+		push();
+	}
+
+	private void endObject() throws IOException {
+		pop();
+		out.append('}');
+	}
+
+	private void beginArray() throws IOException {
+		beginValue();
+		out.append('[');
+		push();
+	}
+
+	private void endArray() throws IOException {
+		pop();
+		out.append(']');
+	}
+
+	private void name(String name) throws IOException {
+		separate();
+		appendString(name);
+		out.append(prettyPrint ? ": " : ":");
+		afterName = true;
+	}
+
+	/**
+	 * Prepare to write a value: if it is an object member, its key has already been written; otherwise it is an array
+	 * element (or the top level value) and needs a separator.
+	 */
+	private void beginValue() throws IOException {
+		if (afterName) {
+			afterName = false;
+		} else if (depth > 0) {
+			separate();
+		}
+	}
+
+	private void separate() throws IOException {
+		if (hasMembers[depth - 1]) {
+			out.append(',');
+		}
+		hasMembers[depth - 1] = true;
+		newline(depth);
+	}
+
+	private void push() {
+		if (depth == hasMembers.length) {
+			boolean[] grown = new boolean[depth * 2];
+			System.arraycopy(hasMembers, 0, grown, 0, depth);
+			hasMembers = grown;
+		}
+		hasMembers[depth++] = false;
+	}
+
+	private void pop() throws IOException {
+		depth--;
+		if (hasMembers[depth]) {
+			newline(depth);
+		}
+	}
+
+	private void newline(int level) throws IOException {
+		if (prettyPrint) {
+			out.append('\n');
+			for (int i = 0; i < level; i++) {
+				out.append(indent);
+			}
+		}
+	}
+
+	private void appendString(String s) throws IOException {
+		out.append('"');
+		int from = 0;
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			String escape;
+			if (c == '"') {
+				escape = "\\\"";
+			} else if (c == '\\') {
+				escape = "\\\\";
+			} else if (c >= 0x20) {
+				continue;
+			} else if (c == '\n') {
+				escape = "\\n";
+			} else if (c == '\r') {
+				escape = "\\r";
+			} else if (c == '\t') {
+				escape = "\\t";
+			} else if (c == '\b') {
+				escape = "\\b";
+			} else if (c == '\f') {
+				escape = "\\f";
+			} else {
+				escape = String.format("\\u%04x", (int) c);
+			}
+			out.append(s, from, i).append(escape);
+			from = i + 1;
+		}
+		out.append(s, from, length);
+		out.append('"');
+	}
+}
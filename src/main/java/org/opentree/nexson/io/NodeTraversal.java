@@ -0,0 +1,209 @@
+package org.opentree.nexson.io;
+
+import jade.tree.NodeOrder;
+import jade.tree.TreeNode;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Lazy, non-recursive traversals over a subtree of TreeNodes. Each traversal yields the nodes one at a time as it
+ * walks the tree, keeping its position in an explicit stack (or queue, for level order) rather than on the call stack,
+ * so arbitrarily deep trees (e.g. caterpillars with hundreds of thousands of nodes) can be traversed safely, and no
+ * list of the nodes is ever built.</p>
+ * <br/>
+ * <p>Traversals include the start node itself, and can be restricted to internal or external nodes. The tree should not
+ * be modified while a traversal is in progress.</p>
+ *
+ * @author cody
+ *
+ */
+final class NodeTraversal implements Iterable<TreeNode> {
+
+	/**
+	 * The order in which nodes are visited. PREORDER and POSTORDER correspond to the jade NodeOrder constants.
+	 */
+	enum Order {
+		PREORDER,
+		POSTORDER,
+		LEVELORDER
+	}
+
+	/**
+	 * Which nodes are yielded.
+	 */
+	enum Filter {
+		ALL,
+		INTERNAL,
+		EXTERNAL
+	}
+
+	private final TreeNode start;
+	private final Order order;
+	private final Filter filter;
+
+	NodeTraversal(TreeNode start, Order order, Filter filter) {
+		this.start = start;
+		this.order = order;
+		this.filter = filter;
+	}
+
+	NodeTraversal(TreeNode start, NodeOrder order, Filter filter) {
+		this(start, order == NodeOrder.POSTORDER ? Order.POSTORDER : Order.PREORDER, filter);
+	}
+
+	@Override
+	public Iterator<TreeNode> iterator() {
+		switch (order) {
+		case POSTORDER:
+			return new PostorderIterator();
+		case LEVELORDER:
+			return new LevelOrderIterator();
+		default:
+			return new PreorderIterator();
+		}
+	}
+
+	private boolean accepts(TreeNode node) {
+		switch (filter) {
+		case INTERNAL:
+			return node.isInternal();
+		case EXTERNAL:
+			return node.isExternal();
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Base for the iterators: subclasses produce every node in order through advance(), and this class skips the nodes
+	 * rejected by the filter, looking one node ahead.
+	 */
+	private abstract class FilteringIterator implements Iterator<TreeNode> {
+
+		private TreeNode next = null;
+		private boolean ready = false;
+
+		/**
+		 * Return the next node in traversal order, or null if the traversal is complete.
+		 */
+		protected abstract TreeNode advance();
+
+		@Override
+		public boolean hasNext() {
+			if (! ready) {
+				do {
+					next = advance();
+				} while (next != null && ! accepts(next));
+				ready = true;
+			}
+			return next != null;
+		}
+
+		@Override
+		public TreeNode next() {
+			if (! hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private class PreorderIterator extends FilteringIterator {
+
+		private final ArrayDeque<TreeNode> stack = new ArrayDeque<TreeNode>();
+
+		PreorderIterator() {
+			if (start != null) {
+				stack.push(start);
+			}
+		}
+
+		@Override
+		protected TreeNode advance() {
+			TreeNode node = stack.poll();
+			if (node != null) {
+				// push children in reverse so the first child is visited next
+				for (int i = node.getChildCount() - 1; i >= 0; i--) {
+					stack.push(node.getChild(i));
+				}
+			}
+			return node;
+		}
+	}
+
+	private class PostorderIterator extends FilteringIterator {
+
+		// the path from the start node to the current node, and the index of the next child to visit at each level
+		private TreeNode[] path = new TreeNode[64];
+		private int[] nextChild = new int[64];
+		private int depth = 0;
+
+		PostorderIterator() {
+			if (start != null) {
+				path[0] = start;
+				depth = 1;
+			}
+		}
+
+		@Override
+		protected TreeNode advance() {
+			while (depth > 0) {
+				TreeNode top = path[depth - 1];
+				int c = nextChild[depth - 1];
+				if (c < top.getChildCount()) {
+					nextChild[depth - 1] = c + 1;
+					push(top.getChild(c));
+				} else {
+					depth--;
+					path[depth] = null;
+					return top;
+				}
+			}
+			return null;
+		}
+
+		private void push(TreeNode node) {
+			if (depth == path.length) {
+				TreeNode[] grownPath = new TreeNode[depth * 2];
+				int[] grownNext = new int[depth * 2];
+				System.arraycopy(path, 0, grownPath, 0, depth);
+				System.arraycopy(nextChild, 0, grownNext, 0, depth);
+				path = grownPath;
+				nextChild = grownNext;
+			}
+			path[depth] = node;
+			nextChild[depth] = 0;
+			depth++;
+		}
+	}
+
+	private class LevelOrderIterator extends FilteringIterator {
+
+		private final ArrayDeque<TreeNode> queue = new ArrayDeque<TreeNode>();
+
+		LevelOrderIterator() {
+			if (start != null) {
+				queue.add(start);
+			}
+		}
+
+		@Override
+		protected TreeNode advance() {
+			TreeNode node = queue.poll();
+			if (node != null) {
+				for (int i = 0; i < node.getChildCount(); i++) {
+					queue.add(node.getChild(i));
+				}
+			}
+			return node;
+		}
+	}
+}
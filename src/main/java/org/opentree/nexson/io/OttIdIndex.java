@@ -0,0 +1,241 @@
+package org.opentree.nexson.io;
+
+import jade.tree.TreeNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>An immutable index from OTT ids to the elements (OTUs, or tip nodes) mapped to them. The ids are held in a
+ * primitive open-addressing hash table, and the elements mapped to each id are held as a run of int indexes in a single
+ * array, so a lookup neither boxes the id nor unboxes the ot:ottId property of every element.</p>
+ * <br/>
+ * <p>The elements mapped to an id are returned in the order in which they were provided to the index. Ids that more than
+ * one element is mapped to (e.g. the MULTIPLE_TIPS_MAPPED_TO_OTT_ID case for the tips of a tree) are recorded when the
+ * index is built, and are available from getDuplicatedOttIds().</p>
+ * <br/>
+ * <p>Indexes are built by NexsonSource.getOTUOttIdIndex() and NexsonTree.getTipOttIdIndex().</p>
+ *
+ * @author cody
+ *
+ * @param <T> the type of the indexed elements
+ */
+public final class OttIdIndex<T> {
+
+	private static final int[] NO_INDEXES = new int[0];
+
+	private final T[] elements;
+
+	// open-addressing table of distinct ids. a slot is empty if its count is 0
+	private final long[] keys;
+	private final int[] counts;
+	private final int[] starts;
+	private final int mask;
+
+	// the element indexes mapped to the id in each occupied slot, stored contiguously from starts[slot]
+	private final int[] values;
+
+	private final int idCount;
+	private final long[] duplicatedOttIds;
+
+	/**
+	 * Index the elements. The element at position i is mapped to ottIds[i] if hasOttId[i] is true, and is not indexed
+	 * otherwise.
+	 * @param elements
+	 * @param ottIds
+	 * @param hasOttId
+	 */
+	OttIdIndex(T[] elements, long[] ottIds, boolean[] hasOttId) {
+
+		this.elements = elements;
+
+		int mapped = 0;
+		for (boolean h : hasOttId) {
+			if (h) {
+				mapped++;
+			}
+		}
+
+		// keep the table at most half full
+		int capacity = Integer.highestOneBit(Math.max(mapped, 1) * 2 - 1) << 1;
+		keys = new long[capacity];
+		counts = new int[capacity];
+		starts = new int[capacity];
+		mask = capacity - 1;
+
+		// count the elements mapped to each id, remembering each element's slot
+		int[] slotOf = new int[elements.length];
+		int distinct = 0;
+		for (int i = 0; i < elements.length; i++) {
+			if (! hasOttId[i]) {
+				continue;
+			}
+			int slot = slotFor(ottIds[i]);
+			if (counts[slot] == 0) {
+				keys[slot] = ottIds[i];
+				distinct++;
+			}
+			counts[slot]++;
+			slotOf[i] = slot;
+		}
+		idCount = distinct;
+
+		// lay out the runs of element indexes, then fill them in element order
+		int offset = 0;
+		for (int slot = 0; slot < capacity; slot++) {
+			starts[slot] = offset;
+			offset += counts[slot];
+		}
+		values = new int[mapped];
+		int[] fill = new int[capacity];
+		int duplicated = 0;
+		for (int i = 0; i < elements.length; i++) {
+			if (hasOttId[i]) {
+				int slot = slotOf[i];
+				if (fill[slot] == 1) {
+					duplicated++;
+				}
+				values[starts[slot] + fill[slot]++] = i;
+			}
+		}
+
+		// report duplicated ids in the order of their first elements
+		duplicatedOttIds = new long[duplicated];
+		int d = 0;
+		for (int i = 0; i < elements.length && d < duplicated; i++) {
+			if (hasOttId[i]) {
+				int slot = slotOf[i];
+				if (counts[slot] > 1 && values[starts[slot]] == i) {
+					duplicatedOttIds[d++] = keys[slot];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Index the OTUs by their ot:ottId property.
+	 * @param otus
+	 * @return
+	 */
+	static OttIdIndex<NexsonOTU> forOTUs(List<NexsonOTU> otus) {
+		NexsonOTU[] elements = otus.toArray(new NexsonOTU[otus.size()]);
+		long[] ottIds = new long[elements.length];
+		boolean[] hasOttId = new boolean[elements.length];
+		for (int i = 0; i < elements.length; i++) {
+			Long ottId = elements[i].getOttId();
+			if (ottId != null) {
+				ottIds[i] = ottId;
+				hasOttId[i] = true;
+			}
+		}
+		return new OttIdIndex<NexsonOTU>(elements, ottIds, hasOttId);
+	}
+
+	/**
+	 * Index the tips of the tree by the ot:ottId property of their OTUs. Tips are indexed in preorder.
+	 * @param tree
+	 * @return
+	 */
+	static OttIdIndex<NexsonNode> forTips(NexsonTree tree) {
+		List<NexsonNode> tips = new ArrayList<NexsonNode>();
+		if (tree.getRoot() != null) {
+			for (TreeNode tip : new NodeTraversal(tree.getRoot(), NodeTraversal.Order.PREORDER, NodeTraversal.Filter.EXTERNAL)) {
+				tips.add((NexsonNode) tip);
+			}
+		}
+		NexsonNode[] elements = tips.toArray(new NexsonNode[tips.size()]);
+		long[] ottIds = new long[elements.length];
+		boolean[] hasOttId = new boolean[elements.length];
+		for (int i = 0; i < elements.length; i++) {
+			NexsonOTU otu = elements[i].getOTU();
+			Long ottId = otu == null ? null : otu.getOttId();
+			if (ottId != null) {
+				ottIds[i] = ottId;
+				hasOttId[i] = true;
+			}
+		}
+		return new OttIdIndex<NexsonNode>(elements, ottIds, hasOttId);
+	}
+
+	/**
+	 * Return the slot holding the id, or the empty slot where it would be inserted.
+	 */
+	private int slotFor(long ottId) {
+		long h = ottId * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while (counts[slot] != 0 && keys[slot] != ottId) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	// ### getters
+
+	/**
+	 * Return the positions (within the list the index was built from) of the elements mapped to the OTT id, in ascending
+	 * order. The returned array is a copy, and is empty if no elements are mapped to the id.
+	 * @param ottId
+	 * @return
+	 */
+	public int[] getIndexes(long ottId) {
+		int slot = slotFor(ottId);
+		if (counts[slot] == 0) {
+			return NO_INDEXES;
+		}
+		return Arrays.copyOfRange(values, starts[slot], starts[slot] + counts[slot]);
+	}
+
+	/**
+	 * Return the elements mapped to the OTT id, or an empty list if there are none.
+	 * @param ottId
+	 * @return
+	 */
+	public List<T> get(long ottId) {
+		int slot = slotFor(ottId);
+		int count = counts[slot];
+		if (count == 0) {
+			return Collections.emptyList();
+		}
+		List<T> result = new ArrayList<T>(count);
+		for (int i = starts[slot]; i < starts[slot] + count; i++) {
+			result.add(elements[values[i]]);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Return the number of elements mapped to the OTT id.
+	 * @param ottId
+	 * @return
+	 */
+	public int getCount(long ottId) {
+		return counts[slotFor(ottId)];
+	}
+
+	public boolean contains(long ottId) {
+		return counts[slotFor(ottId)] != 0;
+	}
+
+	/**
+	 * Return the number of distinct OTT ids in the index.
+	 * @return
+	 */
+	public int getOttIdCount() {
+		return idCount;
+	}
+
+	/**
+	 * Return the OTT ids that more than one element is mapped to, in the order in which the first element mapped to each
+	 * was provided. The returned array is a copy.
+	 * @return
+	 */
+	public long[] getDuplicatedOttIds() {
+		return duplicatedOttIds.clone();
+	}
+
+	public boolean hasDuplicatedOttIds() {
+		return duplicatedOttIds.length > 0;
+	}
+}
@@ -0,0 +1,305 @@
+package org.opentree.nexson.io;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>An InputStream that reads another stream ahead of its consumer on a separate thread. The reading thread fills
+ * fixed size chunks from the source stream and passes them to the consumer through a bounded queue; chunks are returned
+ * to the reader once they have been consumed, so no more than queueCapacity + 1 chunks are ever allocated. This lets
+ * expensive work done by the source stream (typically inflating compressed input) overlap with the parsing of the data
+ * it has already produced.</p>
+ * <br/>
+ * <p>Errors in the source stream are rethrown to the consumer when it reaches the point at which they occurred, after
+ * all the data read before them. IOExceptions and Errors are rethrown as they are, and other exceptions are wrapped in
+ * an IOException. The stream must be closed if it is abandoned before its end, to stop the reading thread and close the
+ * source.</p>
+ * <br/>
+ * <p>The static open() method opens NexSON files that may be gzip-compressed, recognizing compressed files from their
+ * first two bytes rather than their names.</p>
+ *
+ * @author cody
+ *
+ */
+public class PipelinedInputStream extends InputStream {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+	public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+	private static final int GZIP_MAGIC_0 = 0x1f;
+	private static final int GZIP_MAGIC_1 = 0x8b;
+
+	private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	/**
+	 * A chunk of data read from the source. A chunk with a length of -1 marks the end of the source.
+	 */
+	private static final class Chunk {
+		final byte[] data;
+		int length;
+
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	private final InputStream source;
+	private final BlockingQueue<Chunk> filled;
+	private final BlockingQueue<Chunk> empty;
+	private final Thread reader;
+
+	// set by the reader thread before it queues the end marker
+	private volatile Throwable failure = null;
+
+	private Chunk current = null;
+	private int pos = 0;
+	private boolean ended = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Start reading the source stream ahead of the consumer, using the default chunk size and queue capacity.
+	 * @param source
+	 */
+	public PipelinedInputStream(InputStream source) {
+		this(source, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Start reading the source stream ahead of the consumer. The reading thread stops when queueCapacity chunks of
+	 * chunkSize bytes are waiting to be consumed.
+	 * @param source
+	 * @param chunkSize
+	 * @param queueCapacity
+	 */
+	public PipelinedInputStream(InputStream source, int chunkSize, int queueCapacity) {
+		if (chunkSize < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("The chunk size and queue capacity must be positive");
+		}
+		this.source = source;
+
+		// one more chunk than the queue holds, for the one being consumed, and room for the end marker
+		filled = new ArrayBlockingQueue<Chunk>(queueCapacity + 2);
+		empty = new ArrayBlockingQueue<Chunk>(queueCapacity + 1);
+		for (int i = 0; i <= queueCapacity; i++) {
+			empty.add(new Chunk(chunkSize));
+		}
+
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAhead();
+			}
+		}, "nexson-read-ahead-" + threadNumber.getAndIncrement());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Open the specified file for reading. If the file is gzip-compressed, the returned stream inflates it on a separate
+	 * thread, ahead of the consumer; otherwise the file is read directly.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open(Path file) throws IOException {
+		InputStream in = new BufferedInputStream(Files.newInputStream(file), DEFAULT_CHUNK_SIZE);
+		try {
+			if (isGzip(in)) {
+				return new PipelinedInputStream(new GZIPInputStream(in, DEFAULT_CHUNK_SIZE));
+			}
+		} catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+		return in;
+	}
+
+	/**
+	 * Return true if the file begins with the gzip magic number.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isGzip(Path file) throws IOException {
+		InputStream in = Files.newInputStream(file);
+		try {
+			return in.read() == GZIP_MAGIC_0 && in.read() == GZIP_MAGIC_1;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Peek at the start of the stream, which must support mark(), and return true if it begins with the gzip magic
+	 * number. The stream is reset for subsequent reading.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isGzip(InputStream in) throws IOException {
+		in.mark(2);
+		int b0 = in.read();
+		int b1 = in.read();
+		in.reset();
+		return b0 == GZIP_MAGIC_0 && b1 == GZIP_MAGIC_1;
+	}
+
+	/**
+	 * Read the remainder of the stream into a buffer. The stream is closed.
+	 * @param in
+	 * @return a buffer positioned at the start of the data and limited to its end
+	 * @throws IOException
+	 */
+	public static ByteBuffer readFully(InputStream in) throws IOException {
+		try {
+			byte[] bytes = new byte[DEFAULT_CHUNK_SIZE];
+			int length = 0;
+			int n;
+			while ((n = in.read(bytes, length, bytes.length - length)) >= 0) {
+				length += n;
+				if (length == bytes.length) {
+					byte[] grown = new byte[bytes.length * 2];
+					System.arraycopy(bytes, 0, grown, 0, length);
+					bytes = grown;
+				}
+			}
+			return ByteBuffer.wrap(bytes, 0, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	// ### reading thread
+
+	private void readAhead() {
+		try {
+			try {
+				readChunks();
+			} finally {
+				try {
+					source.close();
+				} catch (IOException ex) {
+					// nothing more to read from it
+				}
+			}
+		} catch (InterruptedException ex) {
+			// the stream was closed, so nothing is waiting for the rest of the data
+		} catch (Throwable ex) {
+			failure = ex;
+		} finally {
+			// queued whatever happened, so that the consumer is never left waiting. there is always room for the end
+			// marker, since the queue can hold every chunk plus one
+			Chunk end = new Chunk(0);
+			end.length = -1;
+			filled.offer(end);
+		}
+	}
+
+	private void readChunks() throws IOException, InterruptedException {
+		while (true) {
+			Chunk chunk = empty.take();
+			int length = 0;
+			int n = 0;
+			try {
+				while (length < chunk.data.length && (n = source.read(chunk.data, length, chunk.data.length - length)) >= 0) {
+					length += n;
+				}
+			} finally {
+				// pass on the data read before a failure too, so that the consumer receives everything that precedes it
+				if (length > 0) {
+					chunk.length = length;
+					filled.put(chunk);
+				}
+			}
+			if (n < 0) {
+				return;
+			}
+		}
+	}
+
+	// ### consuming
+
+	/**
+	 * Make current a chunk with unread data, waiting for the reading thread if necessary. Return false at the end of the
+	 * stream.
+	 */
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (!ended && (current == null || pos == current.length)) {
+			if (current != null) {
+				empty.offer(current);
+				current = null;
+			}
+			Chunk chunk;
+			try {
+				chunk = filled.take();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for input");
+			}
+			if (chunk.length < 0) {
+				ended = true;
+				if (failure instanceof IOException) {
+					throw (IOException) failure;
+				} else if (failure instanceof Error) {
+					throw (Error) failure;
+				} else if (failure != null) {
+					throw new IOException(failure);
+				}
+			} else {
+				current = chunk;
+				pos = 0;
+			}
+		}
+		return !ended;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return current.data[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current.data, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null ? 0 : current.length - pos;
+	}
+
+	/**
+	 * Stop the reading thread and close the source stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			reader.interrupt();
+		}
+	}
+}
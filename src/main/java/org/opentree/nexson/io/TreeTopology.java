@@ -0,0 +1,169 @@
+package org.opentree.nexson.io;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>The shape of a NexSON tree resolved to dense integer node indexes, used to link nodes while a tree is built. Each
+ * node id is assigned the index of its position in the node list, and the edges are resolved through that dictionary
+ * once, so that the parent of every node, and the root, can be found by scanning int arrays rather than by following
+ * object references or repeating map lookups.</p>
+ * <br/>
+ * <p>Edges whose endpoints are unknown, nodes that are the target of more than one edge, and cycles are reported as
+ * NexsonParseExceptions, before any node has been linked.</p>
+ *
+ * @author cody
+ *
+ */
+final class TreeTopology {
+
+	/** the index of the parent of each node, or -1 for nodes that are not the target of any edge */
+	final int[] parent;
+
+	/** the index of the source (parent) node of each edge */
+	final int[] edgeSource;
+
+	/** the index of the target (child) node of each edge */
+	final int[] edgeTarget;
+
+	/** the index of the root node */
+	final int root;
+
+	/** the number of nodes that are not the target of any edge */
+	final int rootCount;
+
+	/**
+	 * Resolve the edges, given as parallel lists of source and target node ids, against the node ids, and find the root.
+	 * If the nodes form more than one tree, the root of the tree containing the last node is used.
+	 * @param treeId used in error messages
+	 * @param nodeIds
+	 * @param edgeSources
+	 * @param edgeTargets
+	 */
+	TreeTopology(String treeId, List<String> nodeIds, List<String> edgeSources, List<String> edgeTargets) {
+		this(treeId, nodeIds, resolveEdges(treeId, nodeIds, edgeSources, edgeTargets));
+	}
+
+	private TreeTopology(String treeId, List<String> nodeIds, int[][] edges) {
+		this(treeId, nodeIds, edges[0], edges[1]);
+	}
+
+	/**
+	 * Check edges that have already been resolved to node indexes (e.g. by a reader of the by-id NexSON layout, in which
+	 * nodes are keyed by id), and find the root. If the nodes form more than one tree, the root of the tree containing the
+	 * last node is used. The arrays are kept, not copied.
+	 * @param treeId used in error messages
+	 * @param nodeIds the id of the node with each index, used in error messages
+	 * @param edgeSource the index of the source (parent) node of each edge
+	 * @param edgeTarget the index of the target (child) node of each edge
+	 */
+	TreeTopology(String treeId, List<String> nodeIds, int[] edgeSource, int[] edgeTarget) {
+
+		int nodeCount = nodeIds.size();
+		if (nodeCount == 0) {
+			throw new NexsonParseException("Tree " + treeId + " does not contain any nodes");
+		}
+
+		int edgeCount = edgeSource.length;
+		this.edgeSource = edgeSource;
+		this.edgeTarget = edgeTarget;
+		parent = new int[nodeCount];
+		Arrays.fill(parent, -1);
+		int[] childCount = new int[nodeCount];
+
+		for (int i = 0; i < edgeCount; i++) {
+			int source = edgeSource[i];
+			int target = edgeTarget[i];
+			if (parent[target] != -1) {
+				throw new NexsonParseException("Node " + nodeIds.get(target) + " of tree " + treeId + " is the target of more than one edge");
+			}
+			parent[target] = source;
+			childCount[source]++;
+		}
+
+		// every node has at most one parent, so the nodes with no parent are the roots of the trees the nodes form, and any
+		// node that cannot be reached from one of them lies on (or below) a cycle
+		int[] childStart = new int[nodeCount + 1];
+		for (int i = 0; i < nodeCount; i++) {
+			childStart[i + 1] = childStart[i] + childCount[i];
+		}
+		int[] children = new int[edgeCount];
+		int[] fill = new int[nodeCount];
+		for (int i = 0; i < edgeCount; i++) {
+			children[childStart[edgeSource[i]] + fill[edgeSource[i]]++] = edgeTarget[i];
+		}
+
+		int[] queue = new int[nodeCount];
+		int tail = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			if (parent[i] == -1) {
+				queue[tail++] = i;
+			}
+		}
+		rootCount = tail;
+		for (int head = 0; head < tail; head++) {
+			int node = queue[head];
+			for (int c = childStart[node]; c < childStart[node + 1]; c++) {
+				queue[tail++] = children[c];
+			}
+		}
+
+		if (tail < nodeCount) {
+			// find an unreachable node; following its parents for nodeCount steps is guaranteed to end inside the cycle
+			boolean[] reached = new boolean[nodeCount];
+			for (int i = 0; i < tail; i++) {
+				reached[queue[i]] = true;
+			}
+			int node = 0;
+			while (reached[node]) {
+				node++;
+			}
+			for (int i = 0; i < nodeCount; i++) {
+				node = parent[node];
+			}
+			throw new NexsonParseException("The edges of tree " + treeId + " contain a cycle including node " + nodeIds.get(node));
+		}
+
+		int r = nodeCount - 1;
+		if (rootCount > 1) {
+			while (parent[r] != -1) {
+				r = parent[r];
+			}
+		} else {
+			r = queue[0];
+		}
+		root = r;
+	}
+
+	/**
+	 * Resolve the source and target ids of the edges to the indexes of the nodes with those ids.
+	 */
+	private static int[][] resolveEdges(String treeId, List<String> nodeIds, List<String> edgeSources, List<String> edgeTargets) {
+
+		int nodeCount = nodeIds.size();
+		HashMap<String, Integer> indexForId = new HashMap<String, Integer>(nodeCount * 2);
+		for (int i = 0; i < nodeCount; i++) {
+			if (indexForId.put(nodeIds.get(i), i) != null) {
+				throw new NexsonParseException("Tree " + treeId + " contains more than one node with the id " + nodeIds.get(i));
+			}
+		}
+
+		int edgeCount = edgeSources.size();
+		int[] edgeSource = new int[edgeCount];
+		int[] edgeTarget = new int[edgeCount];
+		for (int i = 0; i < edgeCount; i++) {
+			Integer source = indexForId.get(edgeSources.get(i));
+			if (source == null) {
+				throw new NexsonParseException("Edge with source property " + edgeSources.get(i) + " not corresponding to any known nodes");
+			}
+			Integer target = indexForId.get(edgeTargets.get(i));
+			if (target == null) {
+				throw new NexsonParseException("Edge with target property " + edgeTargets.get(i) + " not corresponding to any known nodes");
+			}
+			edgeSource[i] = source;
+			edgeTarget[i] = target;
+		}
+		return new int[][] {edgeSource, edgeTarget};
+	}
+}
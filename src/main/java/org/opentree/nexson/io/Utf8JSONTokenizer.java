@@ -0,0 +1,436 @@
+package org.opentree.nexson.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>A JSONTokenizer that works directly on UTF-8 encoded bytes held in a ByteBuffer, typically a memory-mapped file.</p>
+ * <br/>
+ * <p>The input is never decoded as a whole. Structural characters, numbers and string delimiters are all ASCII, so the
+ * tokenizer only needs to record where each string or number starts and ends; the bytes are decoded into a String only
+ * when getText() is called. Skipped values are never decoded at all. Offsets reported by this tokenizer are byte positions
+ * within the buffer.</p>
+ *
+ * @author cody
+ *
+ */
+public class Utf8JSONTokenizer extends JSONTokenizer {
+
+	private static final int NAME_CACHE_SIZE = 512; // must be a power of two
+
+	private final ByteBuffer buf;
+	private int pos;
+	private final int limit;
+
+	private int tokenOffset = 0;
+
+	// the raw (still escaped) bytes of the current string or number token are buf[textStart, textEnd)
+	private int textStart = 0;
+	private int textEnd = 0;
+	private boolean textHasEscapes = false;
+	private String textString = null;
+	private boolean integerLiteral = false;
+
+	// scratch space for decoding
+	private char[] chars = new char[256];
+
+	private boolean rootDone = false;
+	private boolean needComma = false;
+
+	// field names repeat constantly in NexSON, so we keep the strings (and the bytes they came from) we have already made
+	private final String[] nameCache = new String[NAME_CACHE_SIZE];
+	private final byte[][] nameCacheBytes = new byte[NAME_CACHE_SIZE][];
+
+	/**
+	 * Create a tokenizer over the bytes from the position to the limit of the provided buffer. The buffer's position and
+	 * limit are not modified.
+	 * @param buffer
+	 */
+	public Utf8JSONTokenizer(ByteBuffer buffer) {
+		this.buf = buffer;
+		this.pos = buffer.position();
+		this.limit = buffer.limit();
+
+		// skip a byte order mark if there is one
+		if (limit - pos >= 3 && (buf.get(pos) & 0xff) == 0xef && (buf.get(pos + 1) & 0xff) == 0xbb && (buf.get(pos + 2) & 0xff) == 0xbf) {
+			pos += 3;
+		}
+	}
+
+	private Utf8JSONTokenizer(ByteBuffer buffer, int start, int end) {
+		this.buf = buffer;
+		this.pos = start;
+		this.limit = end;
+	}
+
+	/**
+	 * Memory-map the specified file and return a tokenizer over its contents. The file is mapped read-only, and the mapping
+	 * remains valid until the returned tokenizer (and any slices of it) are garbage collected.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Utf8JSONTokenizer map(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Cannot map " + file + ": files larger than 2GB are not supported");
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return new Utf8JSONTokenizer(mapped);
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public boolean supportsSlicing() {
+		return true;
+	}
+
+	@Override
+	public JSONTokenizer slice(long start, long end) {
+		return new Utf8JSONTokenizer(buf, (int) start, (int) end);
+	}
+
+	@Override
+	public byte[] copyUtf8(long start, long end) {
+		byte[] bytes = new byte[(int) (end - start)];
+		ByteBuffer range = buf.duplicate();
+		range.position((int) start);
+		range.get(bytes);
+		return bytes;
+	}
+
+	@Override
+	public Token next() {
+
+		textString = null;
+		skipWhitespace();
+		tokenOffset = pos;
+
+		if (pos >= limit || (getDepth() == 0 && rootDone)) {
+			if (getDepth() == 0 && rootDone) {
+				return current = Token.END_DOCUMENT;
+			}
+			throw new NexsonParseException("Unexpected end of JSON input at offset " + tokenOffset);
+		}
+
+		byte c = buf.get(pos);
+
+		// closing a container
+		if (c == '}' || c == ']') {
+			if (current == Token.FIELD_NAME) {
+				throw new NexsonParseException("Missing value for field name at offset " + tokenOffset);
+			}
+			pos++;
+			boolean isObject = c == '}';
+			pop(isObject);
+			afterValue();
+			return current = isObject ? Token.END_OBJECT : Token.END_ARRAY;
+		}
+
+		// separators between container members
+		if (needComma) {
+			if (c != ',') {
+				throw new NexsonParseException("Expected ',' but found '" + (char) c + "' at offset " + tokenOffset);
+			}
+			pos++;
+			needComma = false;
+			skipWhitespace();
+			tokenOffset = pos;
+			if (pos >= limit) {
+				throw new NexsonParseException("Unexpected end of JSON input at offset " + tokenOffset);
+			}
+			c = buf.get(pos);
+			if (c == '}' || c == ']') {
+				throw new NexsonParseException("Trailing ',' before '" + (char) c + "' at offset " + tokenOffset);
+			}
+		}
+
+		// field names
+		if (expectingName) {
+			if (c != '"') {
+				throw new NexsonParseException("Expected a field name but found '" + (char) c + "' at offset " + tokenOffset);
+			}
+			pos++;
+			scanString();
+			skipWhitespace();
+			if (pos >= limit || buf.get(pos) != ':') {
+				throw new NexsonParseException("Expected ':' after field name at offset " + pos);
+			}
+			pos++;
+			expectingName = false;
+			return current = Token.FIELD_NAME;
+		}
+
+		// values
+		switch (c) {
+		case '{':
+			pos++;
+			push(true);
+			needComma = false;
+			return current = Token.START_OBJECT;
+		case '[':
+			pos++;
+			push(false);
+			needComma = false;
+			return current = Token.START_ARRAY;
+		case '"':
+			pos++;
+			scanString();
+			afterValue();
+			return current = Token.STRING;
+		case 't':
+			scanLiteral("true");
+			afterValue();
+			return current = Token.TRUE;
+		case 'f':
+			scanLiteral("false");
+			afterValue();
+			return current = Token.FALSE;
+		case 'n':
+			scanLiteral("null");
+			afterValue();
+			return current = Token.NULL;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				scanNumber();
+				afterValue();
+				return current = Token.NUMBER;
+			}
+			throw new NexsonParseException("Unexpected character '" + (char) c + "' at offset " + tokenOffset);
+		}
+	}
+
+	@Override
+	public String getText() {
+		if (textString == null) {
+			if (current == Token.FIELD_NAME) {
+				textString = cachedName();
+			} else {
+				textString = decodeText();
+			}
+		}
+		return textString;
+	}
+
+	@Override
+	public double getDouble() {
+		checkCurrent(Token.NUMBER);
+		if (integerLiteral && textEnd - textStart < 18) {
+			return parseSmallInteger(); // avoid making a string for the common case
+		}
+		return Double.parseDouble(getText());
+	}
+
+	@Override
+	public long getTokenOffset() {
+		return tokenOffset;
+	}
+
+	@Override
+	public long getOffset() {
+		return pos;
+	}
+
+	@Override
+	protected boolean isIntegerLiteral() {
+		return integerLiteral;
+	}
+
+	// ### lexing
+
+	private void afterValue() {
+		if (getDepth() == 0) {
+			rootDone = true;
+		} else {
+			needComma = true;
+			expectingName = inObject();
+		}
+	}
+
+	private void skipWhitespace() {
+		while (pos < limit) {
+			byte c = buf.get(pos);
+			if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+				pos++;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Find the end of a string whose opening quote has already been consumed, without decoding it. Multi-byte UTF-8
+	 * sequences never contain bytes in the ASCII range, so we only need to look for quotes and backslashes.
+	 */
+	private void scanString() {
+		textStart = pos;
+		textHasEscapes = false;
+		while (pos < limit) {
+			byte c = buf.get(pos);
+			if (c == '"') {
+				textEnd = pos++;
+				return;
+			} else if (c == '\\') {
+				textHasEscapes = true;
+				pos += 2;
+			} else {
+				pos++;
+			}
+		}
+		throw new NexsonParseException("Unterminated string starting at offset " + tokenOffset);
+	}
+
+	private void scanNumber() {
+		textStart = pos;
+		integerLiteral = true;
+		int state = NUMBER_START;
+		for (;;) {
+			if (pos >= limit) {
+				checkNumberEnd(state, -1);
+				break;
+			}
+			byte c = buf.get(pos);
+			int next = nextNumberState(state, c);
+			if (next < 0) {
+				checkNumberEnd(state, c);
+				break;
+			}
+			if (c == '.' || c == 'e' || c == 'E') {
+				integerLiteral = false;
+			}
+			state = next;
+			pos++;
+		}
+		textEnd = pos;
+		textHasEscapes = false;
+	}
+
+	private void scanLiteral(String literal) {
+		for (int i = 0; i < literal.length(); i++) {
+			if (pos >= limit || buf.get(pos++) != literal.charAt(i)) {
+				throw new NexsonParseException("Invalid literal at offset " + tokenOffset + ", expected '" + literal + "'");
+			}
+		}
+	}
+
+	private double parseSmallInteger() {
+		long value = 0;
+		int i = textStart;
+		boolean negative = buf.get(i) == '-';
+		if (negative) {
+			i++;
+		}
+		for (; i < textEnd; i++) {
+			value = value * 10 + (buf.get(i) - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	// ### decoding
+
+	/**
+	 * Decode the current string or number token into a String, resolving escapes.
+	 */
+	private String decodeText() {
+		int length = 0;
+		if (chars.length < textEnd - textStart) {
+			chars = new char[Math.max(chars.length * 2, textEnd - textStart)];
+		}
+		int i = textStart;
+		while (i < textEnd) {
+			int b = buf.get(i++) & 0xff;
+			if (b < 0x80) {
+				if (b == '\\' && textHasEscapes) {
+					char e = (char) buf.get(i++);
+					switch (e) {
+					case 'b':
+						chars[length++] = '\b';
+						break;
+					case 'f':
+						chars[length++] = '\f';
+						break;
+					case 'n':
+						chars[length++] = '\n';
+						break;
+					case 'r':
+						chars[length++] = '\r';
+						break;
+					case 't':
+						chars[length++] = '\t';
+						break;
+					case 'u':
+						int value = 0;
+						for (int j = 0; j < 4; j++) {
+							int digit = i < textEnd ? Character.digit((char) buf.get(i++), 16) : -1;
+							if (digit < 0) {
+								throw new NexsonParseException("Invalid unicode escape in string at offset " + (i - 1));
+							}
+							value = (value << 4) | digit;
+						}
+						chars[length++] = (char) value;
+						break;
+					case '"':
+					case '\\':
+					case '/':
+						chars[length++] = e;
+						break;
+					default:
+						throw new NexsonParseException("Invalid escape '\\" + e + "' in string at offset " + (i - 1));
+					}
+				} else {
+					chars[length++] = (char) b;
+				}
+			} else if (b < 0xe0) { // two byte sequence
+				chars[length++] = (char) (((b & 0x1f) << 6) | (buf.get(i++) & 0x3f));
+			} else if (b < 0xf0) { // three byte sequence
+				chars[length++] = (char) (((b & 0x0f) << 12) | ((buf.get(i++) & 0x3f) << 6) | (buf.get(i++) & 0x3f));
+			} else { // four byte sequence, becomes a surrogate pair
+				int codePoint = ((b & 0x07) << 18) | ((buf.get(i++) & 0x3f) << 12) | ((buf.get(i++) & 0x3f) << 6) | (buf.get(i++) & 0x3f);
+				chars[length++] = Character.highSurrogate(codePoint);
+				chars[length++] = Character.lowSurrogate(codePoint);
+			}
+		}
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * Return a string for the current field name, reusing a previously created one if its bytes match.
+	 */
+	private String cachedName() {
+		int length = textEnd - textStart;
+		int h = 0;
+		for (int i = textStart; i < textEnd; i++) {
+			h = 31 * h + buf.get(i);
+		}
+		int slot = (h ^ (h >>> 16)) & (NAME_CACHE_SIZE - 1);
+		byte[] cachedBytes = nameCacheBytes[slot];
+		if (cachedBytes != null && cachedBytes.length == length) {
+			boolean same = true;
+			for (int i = 0; i < length; i++) {
+				if (cachedBytes[i] != buf.get(textStart + i)) {
+					same = false;
+					break;
+				}
+			}
+			if (same) {
+				return nameCache[slot];
+			}
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buf.get(textStart + i);
+		}
+		String name = decodeText();
+		nameCache[slot] = name;
+		nameCacheBytes[slot] = bytes;
+		return name;
+	}
+}
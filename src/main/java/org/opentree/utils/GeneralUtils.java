@@ -102,13 +102,13 @@ public class GeneralUtils {
    
 	/**
 	 * Replaces non-alphanumeric characters (excluding "_" and "-") in `dirtyName` with "_" and returns the cleaned name.
+	 * Each run of offending characters (see offendingChars) is replaced by a single "_".
 	 * 
 	 * @param dirtyName
 	 * @return cleaned name
 	 */
 	public static String scrubName(String dirtyName) {
-	    String cleanName = dirtyName.replaceAll(offendingChars, "_");	    
-	    return cleanName;
+	    return LabelEncoder.scrub(dirtyName);
 	}
 	
 	/**
@@ -116,33 +116,15 @@ public class GeneralUtils {
 	 * 
 	 * Quote string if any illegal characters (NEWICK_ILLEGAL_CHARS) are present.
 	 * Replaces single quotes in `origName` with "''" and puts a pair of single quotes around the entire string.
+	 * Otherwise replaces spaces with underscores. See LabelEncoder.NEWICK.
 	 * 
 	 * @param origName
 	 * @return newickName
 	 */
 	public static String newickName (String origName) {
-		Boolean needQuotes = false;
-		String newickName = origName;
-		
 		// replace ':' with '_'. a hack for working with older versions of dendroscope e.g. 2.7.4
 		//newickName = newickName.replaceAll(":", "_");
-		
-		// newick standard way of dealing with single quotes in taxon names
-		if (newickName.contains("'")) {
-			newickName = newickName.replaceAll("'", "''");
-			needQuotes = true;
-		} else if (newickName.matches(NEWICK_ILLEGAL_CHARS)) {
-			// if offending characters are present, quotes are needed
-			needQuotes = true;
-		}
-		if (needQuotes) {
-			newickName = "'" + newickName + "'";
-		} else {
-			// replace all spaces with underscore
-			newickName = newickName.replaceAll(" ", "_");
-		}
-		
-		return newickName;
+		return LabelEncoder.NEWICK.encode(origName);
 	}
 	
 	/**
@@ -150,31 +132,13 @@ public class GeneralUtils {
 	 * 
 	 * Quote string if any illegal characters (NEXUS_ILLEGAL_CHARS) are present.
 	 * Replaces single quotes in `origName` with "''" and puts a pair of single quotes around the entire string.
-	 * Puts quotes around name if any illegal characters are present.
+	 * Otherwise replaces spaces with underscores. See LabelEncoder.NEXUS.
 	 * 
 	 * @param origName
 	 * @return nexusName
 	 */
 	public static String nexusName (String origName) {
-		Boolean needQuotes = false;
-		String nexusName = origName;
-		
-		// Nexus standard way of dealing with single quotes in taxon names
-		if (nexusName.contains("'")) {
-			nexusName = nexusName.replaceAll("'", "''");
-			needQuotes = true;
-		} else if (nexusName.matches(NEXUS_ILLEGAL_CHARS)) {
-			// if offending characters are present, quotes are needed
-			needQuotes = true;
-		}
-		if (needQuotes) {
-			nexusName = "'" + nexusName + "'";
-		} else {
-			// replace all spaces with underscore
-			nexusName = nexusName.replaceAll(" ", "_");
-		}
-		
-		return nexusName;
+		return LabelEncoder.NEXUS.encode(origName);
 	}
 	
 	/**
@@ -0,0 +1,241 @@
+package org.opentree.utils;
+
+import java.io.IOException;
+
+/**
+ * <p>Encodes taxon labels for use in Newick and Nexus files, and scrubs labels for use as identifiers, using precomputed
+ * character-class lookup tables instead of regular expressions.</p>
+ * <br/>
+ * <p>NEWICK and NEXUS produce the same results as GeneralUtils.newickName() and nexusName() have always produced: a label
+ * containing a single quote or any character that is illegal in the format is wrapped in single quotes, with embedded
+ * single quotes doubled; otherwise spaces are replaced by underscores. The encoding is done in a single pass, writing the
+ * unquoted form until an illegal character is found and restarting in quoted form only if one is.</p>
+ * <br/>
+ * <p>Each method that returns a String has a variant that appends to a caller-supplied StringBuilder (or Appendable), and
+ * the encodeAll/scrubAll variants encode arrays of labels reusing a single buffer. Labels that need no changes are
+ * returned as they are, without copying.</p>
+ *
+ * @author cody
+ *
+ */
+public final class LabelEncoder {
+
+	/**
+	 * Encodes labels following the Newick rules of GeneralUtils.newickName().
+	 */
+	public static final LabelEncoder NEWICK = new LabelEncoder(":;[](),");
+
+	/**
+	 * Encodes labels following the Nexus rules of GeneralUtils.nexusName().
+	 */
+	public static final LabelEncoder NEXUS = new LabelEncoder(":;[](),/\\=*'\"`+-<>~");
+
+	// the characters replaced by scrub(), equivalent to GeneralUtils.offendingChars
+	private static final boolean[] SCRUBBED = table("\"~`:;/[]{}|<>,.!@#$%^&*()?+=\\ \t\n\u000B\f\r");
+
+	private static final char QUOTE = '\'';
+	private static final char SPACE = ' ';
+	private static final char SPACE_REPLACEMENT = '_';
+
+	// illegal[c] is true if the ascii character c requires the label to be quoted
+	private final boolean[] illegal;
+
+	private LabelEncoder(String illegalChars) {
+		illegal = table(illegalChars + QUOTE);
+	}
+
+	private static boolean[] table(String chars) {
+		boolean[] t = new boolean[128];
+		for (int i = 0; i < chars.length(); i++) {
+			t[chars.charAt(i)] = true;
+		}
+		return t;
+	}
+
+	private boolean isIllegal(char c) {
+		return c < 128 && illegal[c];
+	}
+
+	// ### encoding
+
+	/**
+	 * Return the encoded label. If the label needs no changes, the label itself is returned.
+	 * @param label
+	 * @return
+	 */
+	public String encode(String label) {
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c == SPACE || isIllegal(c)) {
+				StringBuilder out = new StringBuilder(label.length() + 8);
+				encode(label, out);
+				return out.toString();
+			}
+		}
+		return label;
+	}
+
+	/**
+	 * Append the encoded label to the provided buffer.
+	 * @param label
+	 * @param out
+	 */
+	public void encode(CharSequence label, StringBuilder out) {
+		int start = out.length();
+		int length = label.length();
+		for (int i = 0; i < length; i++) {
+			char c = label.charAt(i);
+			if (isIllegal(c)) {
+				// the label must be quoted after all, so discard what we have written and start over
+				out.setLength(start);
+				appendQuoted(label, out);
+				return;
+			}
+			out.append(c == SPACE ? SPACE_REPLACEMENT : c);
+		}
+	}
+
+	/**
+	 * Append the encoded label to the provided Appendable. Since an Appendable cannot be rewound, the label is checked
+	 * for illegal characters before anything is written.
+	 * @param label
+	 * @param out
+	 * @throws IOException
+	 */
+	public void encode(CharSequence label, Appendable out) throws IOException {
+		if (out instanceof StringBuilder) {
+			encode(label, (StringBuilder) out);
+			return;
+		}
+		int length = label.length();
+		boolean hasSpaces = false;
+		for (int i = 0; i < length; i++) {
+			char c = label.charAt(i);
+			if (isIllegal(c)) {
+				appendQuoted(label, out);
+				return;
+			}
+			hasSpaces |= c == SPACE;
+		}
+		if (! hasSpaces) {
+			out.append(label);
+		} else {
+			for (int i = 0; i < length; i++) {
+				char c = label.charAt(i);
+				out.append(c == SPACE ? SPACE_REPLACEMENT : c);
+			}
+		}
+	}
+
+	/**
+	 * Encode each of the labels, storing the results in the corresponding positions of the results array (which may be
+	 * the labels array itself). A single buffer is used for all the labels that need changes.
+	 * @param labels
+	 * @param results
+	 */
+	public void encodeAll(String[] labels, String[] results) {
+		StringBuilder buffer = new StringBuilder(64);
+		for (int i = 0; i < labels.length; i++) {
+			String label = labels[i];
+			buffer.setLength(0);
+			encode(label, buffer);
+			results[i] = contentEquals(buffer, label) ? label : buffer.toString();
+		}
+	}
+
+	/**
+	 * Return a new array containing the encoded labels.
+	 * @param labels
+	 * @return
+	 */
+	public String[] encodeAll(String[] labels) {
+		String[] results = new String[labels.length];
+		encodeAll(labels, results);
+		return results;
+	}
+
+	private static void appendQuoted(CharSequence label, Appendable out) throws IOException {
+		out.append(QUOTE);
+		int from = 0;
+		int length = label.length();
+		for (int i = 0; i < length; i++) {
+			if (label.charAt(i) == QUOTE) {
+				out.append(label, from, i + 1).append(QUOTE);
+				from = i + 1;
+			}
+		}
+		out.append(label, from, length);
+		out.append(QUOTE);
+	}
+
+	private static void appendQuoted(CharSequence label, StringBuilder out) {
+		try {
+			appendQuoted(label, (Appendable) out);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); // StringBuilder does not throw IOException
+		}
+	}
+
+	// ### scrubbing
+
+	/**
+	 * Return the label with each run of non-identifier characters (whitespace and the characters of
+	 * GeneralUtils.offendingChars) replaced by a single underscore. If the label contains none, the label itself is
+	 * returned.
+	 * @param label
+	 * @return
+	 */
+	public static String scrub(String label) {
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c < 128 && SCRUBBED[c]) {
+				StringBuilder out = new StringBuilder(label.length());
+				scrub(label, out);
+				return out.toString();
+			}
+		}
+		return label;
+	}
+
+	/**
+	 * Append the scrubbed label to the provided buffer.
+	 * @param label
+	 * @param out
+	 */
+	public static void scrub(CharSequence label, StringBuilder out) {
+		boolean inRun = false;
+		int length = label.length();
+		for (int i = 0; i < length; i++) {
+			char c = label.charAt(i);
+			if (c < 128 && SCRUBBED[c]) {
+				if (! inRun) {
+					out.append(SPACE_REPLACEMENT);
+					inRun = true;
+				}
+			} else {
+				out.append(c);
+				inRun = false;
+			}
+		}
+	}
+
+	/**
+	 * Scrub each of the labels, storing the results in the corresponding positions of the results array (which may be the
+	 * labels array itself).
+	 * @param labels
+	 * @param results
+	 */
+	public static void scrubAll(String[] labels, String[] results) {
+		StringBuilder buffer = new StringBuilder(64);
+		for (int i = 0; i < labels.length; i++) {
+			String label = labels[i];
+			buffer.setLength(0);
+			scrub(label, buffer);
+			results[i] = contentEquals(buffer, label) ? label : buffer.toString();
+		}
+	}
+
+	private static boolean contentEquals(StringBuilder buffer, String s) {
+		return buffer.length() == s.length() && s.contentEquals(buffer);
+	}
+}